@@ -4,20 +4,95 @@ import java.io.*;
 import java.nio.channels.*;
 
 /**
- * Accepts connections.
+ * Accepts connections. Each time the port is ready, up to a batch of 
+ * waiting connections is accepted. When the server has as many
+ * connections as it allows, or cannot accept any more, accepting is
+ * paused and resumed later, and meanwhile new clients wait in the
+ * listen backlog.
  *
  */
 class AcceptHandler extends Handler {
 
-	public AcceptHandler (NioWebServer server, InetAddress addr, int port) 
+	/**
+	 * How long, in milliseconds, accepting is paused after accept()
+	 * has failed, such as when the process is out of file descriptors.
+	 */
+	private static final long ACCEPT_RETRY = 100;
+
+	/**
+	 * Whether this is one of several listeners sharing the port, in 
+	 * which case accepted connections are served by this reactor 
+	 * instead of being dispatched by the server.
+	 */
+	private boolean shared;
+
+	private SelectionKey key;
+
+	/**
+	 * Whether accepting is paused.
+	 */
+	private boolean paused = false;
+
+	/**
+	 * Resumes accepting on the reactor thread.
+	 */
+	private Runnable resumeTask = new Runnable() {
+		public void run () {
+			resume();
+		}
+	};
+
+	/**
+	 * Resumes accepting once a connection has been closed.
+	 */
+	private ConnectionLimits.Waiter waiter = new ConnectionLimits.Waiter() {
+		public void resume () {
+			reactor.invokeLater(resumeTask);
+		}
+	};
+
+	/**
+	 * Resumes accepting after a failed accept().
+	 */
+	private TimingWheel.Timer retryTimer = new TimingWheel.Timer() {
+		protected void expired () {
+			resume();
+		}
+	};
+
+	public AcceptHandler (NioWebServer server, Reactor reactor, 
+						  InetAddress addr, int port) throws IOException {
+		this(server, reactor, addr, port, false);
+	}
+
+	/**
+	 * Creates a listener.
+	 *
+	 * @param shared If true, the port is opened with SO_REUSEPORT so 
+	 * that one listener per reactor can bind it and the kernel spreads
+	 * incoming connections over them.
+	 * @throws IOException If the port cannot be bound, or SO_REUSEPORT
+	 * is not supported on this platform.
+	 */
+	public AcceptHandler (NioWebServer server, Reactor reactor, 
+						  InetAddress addr, int port, boolean shared) 
 		throws IOException {
-		super(server);
+		super(server, reactor);
+		this.shared = shared;
 
 		ServerSocketChannel ssc = ServerSocketChannel.open();
 		ssc.configureBlocking(false);
+		if (shared) {
+			if (!ssc.supportedOptions().contains(
+					StandardSocketOptions.SO_REUSEPORT)) {
+				ssc.close();
+				throw new IOException("SO_REUSEPORT is not supported");
+			}
+			ssc.setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
+		}
 		InetSocketAddress isa = new InetSocketAddress(addr, port); 
 		ssc.socket().bind(isa);
-		server.register(ssc, this);
+		this.key = reactor.register(ssc, this);
 	}
 
 	public int getInterestOps () {
@@ -26,9 +101,60 @@ class AcceptHandler extends Handler {
 
 	public void handle (SelectableChannel channel) throws IOException {
 		ServerSocketChannel readyChannel = (ServerSocketChannel)channel;
-		SocketChannel incomingChannel = readyChannel.accept();
-		incomingChannel.configureBlocking(false);
-		server.register(incomingChannel, new HttpRequest(server));
+		ConnectionLimits limits = server.getConnectionLimits();
+		int batch = server.getAcceptBatch();
+		for (int i = 0; i < batch; i++) {
+			if (limits.isFull()) {
+				pause();
+				limits.waitForRoom(waiter);
+				return;
+			}
+
+			SocketChannel incomingChannel;
+			try {
+				incomingChannel = readyChannel.accept();
+			} catch (ClosedChannelException ex) {
+				throw ex;
+			} catch (IOException ex) {
+				server.log("Cannot accept connections: " + ex.getMessage());
+				pause();
+				reactor.getTimers().schedule(
+					retryTimer, System.currentTimeMillis() + ACCEPT_RETRY);
+				return;
+			}
+			if (incomingChannel == null)
+				return;
+
+			if (!limits.opened(incomingChannel.socket().getInetAddress())) {
+				// too many from that client
+				incomingChannel.close();
+				continue;
+			}
+			if (shared)
+				reactor.addConnection(incomingChannel);
+			else
+				server.dispatch(incomingChannel);
+		}
+	}
+
+	/**
+	 * Stops accepting until resume() is called.
+	 */
+	private void pause () {
+		if (!paused && key.isValid()) {
+			key.interestOps(0);
+			paused = true;
+		}
+	}
+
+	/**
+	 * Accepts again. Must be called on the reactor thread.
+	 */
+	private void resume () {
+		if (paused && key.isValid()) {
+			key.interestOps(SelectionKey.OP_ACCEPT);
+			paused = false;
+		}
 	}
 
 }
@@ -0,0 +1,358 @@
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * A simple load generator that compares server configurations. Each
+ * configuration is started in this JVM on its own port, loaded by a
+ * number of client threads for a while, and stopped again. Throughput
+ * and latency percentiles are printed for every configuration.
+ *
+ */
+public class Benchmark {
+
+	/**
+	 * The maximum number of latency samples kept per client thread.
+	 */
+	private static final int MAX_SAMPLES = 1 << 20;
+
+	/**
+	 * The server configurations that can be compared.
+	 */
+	private static final String[] MODES = { 
+		"acceptor", "reuseport", "transferto", "mmap", "threads"
+	};
+
+	/**
+	 * The maximum number of files mapped in "mmap" mode.
+	 */
+	private static final int MAX_MAPPED_FILES = 1024;
+
+	private File root;
+
+	private String uri;
+
+	private int threads;
+
+	private int clients;
+
+	private int seconds;
+
+	/**
+	 * Whether each request opens a new connection, which measures how
+	 * fast connections are accepted rather than how fast requests are
+	 * served.
+	 */
+	private boolean newConnections;
+
+	public Benchmark (File root, String uri, int threads, int clients,
+					  int seconds, boolean newConnections) {
+		this.root = root;
+		this.uri = uri;
+		this.threads = threads;
+		this.clients = clients;
+		this.seconds = seconds;
+		this.newConnections = newConnections;
+	}
+
+	/**
+	 * Creates a server for one of the configurations in MODES.
+	 */
+	private NioWebServer createServer (String mode, int port)
+		throws IOException {
+		if (mode.equals("acceptor"))
+			return new NioWebServer(root, null, port, threads, false);
+		if (mode.equals("reuseport"))
+			return new NioWebServer(root, null, port, threads, true);
+		if (mode.equals("transferto"))
+			return new NioWebServer(root, null, port, threads, false);
+		if (mode.equals("mmap")) {
+			NioWebServer server = 
+				new NioWebServer(root, null, port, threads, false);
+			server.setMappedFiles(
+				new MappedFileCache(0, Integer.MAX_VALUE, MAX_MAPPED_FILES));
+			return server;
+		}
+		if (mode.equals("threads")) {
+			return new NioWebServer(root, null, port, threads, false,
+									NioWebServer.THREAD_ENGINE);
+		}
+		throw new IllegalArgumentException("Unknown mode " + mode);
+	}
+
+	/**
+	 * Finds a free local port.
+	 */
+	private static int freePort () throws IOException {
+		ServerSocket ss = new ServerSocket(0);
+		int port = ss.getLocalPort();
+		ss.close();
+		return port;
+	}
+
+	/**
+	 * Runs the load against one configuration and prints the result.
+	 */
+	public void run (String mode) throws Exception {
+		int port = freePort();
+		NioWebServer server = createServer(mode, port);
+		server.setMaxRequests(Integer.MAX_VALUE);
+		server.setQuiet(true);
+		Thread serverThread = new Thread(server, "server-" + mode);
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		// warm up, then measure
+		load(port, Math.max(1, seconds / 5));
+		Client[] result = load(port, seconds);
+
+		server.stopServer();
+		serverThread.join(5000);
+
+		long requests = 0;
+		long errors = 0;
+		int samples = 0;
+		for (int i = 0; i < result.length; i++) {
+			requests += result[i].requests;
+			errors += result[i].errors;
+			samples += result[i].sampleCount;
+		}
+		long[] all = new long[samples];
+		int n = 0;
+		for (int i = 0; i < result.length; i++) {
+			System.arraycopy(result[i].samples, 0, all, n,
+							 result[i].sampleCount);
+			n += result[i].sampleCount;
+		}
+		Arrays.sort(all);
+
+		System.out.println(mode
+						   + ": " + (requests / seconds) + " req/s"
+						   + ", p50 " + micros(percentile(all, 0.50))
+						   + ", p99 " + micros(percentile(all, 0.99))
+						   + ", p99.9 " + micros(percentile(all, 0.999))
+						   + ", errors " + errors);
+	}
+
+	private static long percentile (long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		return sorted[(int)Math.min(sorted.length - 1,
+									Math.floor(p * sorted.length))];
+	}
+
+	private static String micros (long nanos) {
+		return (nanos / 1000) + " us";
+	}
+
+	/**
+	 * Runs all clients against a port for a number of seconds.
+	 */
+	private Client[] load (int port, int seconds) throws InterruptedException {
+		long end = System.nanoTime() + seconds * 1000000000L;
+		Client[] c = new Client[clients];
+		Thread[] t = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			c[i] = new Client(port, end);
+			t[i] = new Thread(c[i], "client-" + i);
+			t[i].start();
+		}
+		for (int i = 0; i < clients; i++)
+			t[i].join();
+		return c;
+	}
+
+	/**
+	 * A client thread that sends requests one after the other and
+	 * records their latency.
+	 */
+	private class Client implements Runnable {
+
+		private int port;
+
+		private long end;
+
+		long requests = 0;
+
+		long errors = 0;
+
+		long[] samples = new long[1024];
+
+		int sampleCount = 0;
+
+		private byte[] request;
+
+		private byte[] buffer = new byte[65536];
+
+		Client (int port, long end) {
+			this.port = port;
+			this.end = end;
+			try {
+				this.request = ("GET " + uri + " HTTP/1.1\r\n"
+								+ "Host: localhost\r\n"
+								+ (newConnections ? "Connection: close\r\n" : "")
+								+ "\r\n").getBytes("ISO-8859-1");
+			} catch (UnsupportedEncodingException ex) {
+				throw new IllegalArgumentException(ex.toString());
+			}
+		}
+
+		public void run () {
+			Socket socket = null;
+			InputStream in = null;
+			OutputStream out = null;
+			while (System.nanoTime() < end) {
+				long start = System.nanoTime();
+				try {
+					if (socket == null) {
+						socket = new Socket("localhost", port);
+						socket.setTcpNoDelay(true);
+						in = new BufferedInputStream(socket.getInputStream());
+						out = socket.getOutputStream();
+					}
+					out.write(request);
+					out.flush();
+					boolean keepAlive = readResponse(in);
+					if (!keepAlive || newConnections) {
+						socket.close();
+						socket = null;
+					}
+					requests++;
+					record(System.nanoTime() - start);
+				} catch (IOException ex) {
+					errors++;
+					try {
+						if (socket != null)
+							socket.close();
+					} catch (IOException ex2) {
+					}
+					socket = null;
+				}
+			}
+			try {
+				if (socket != null)
+					socket.close();
+			} catch (IOException ex) {
+			}
+		}
+
+		private void record (long nanos) {
+			if (sampleCount == samples.length) {
+				if (samples.length >= MAX_SAMPLES)
+					return;
+				samples = Arrays.copyOf(samples, samples.length * 2);
+			}
+			samples[sampleCount++] = nanos;
+		}
+
+		/**
+		 * Reads one response and discards its content.
+		 *
+		 * @return Whether the server keeps the connection open.
+		 */
+		private boolean readResponse (InputStream in) throws IOException {
+			String status = readLine(in);
+			if (status == null || !status.startsWith("HTTP/1.1 "))
+				throw new IOException("Bad response: " + status);
+			long length = -1;
+			boolean keepAlive = true;
+			String line;
+			while ((line = readLine(in)) != null && line.length() > 0) {
+				String lower = line.toLowerCase();
+				if (lower.startsWith("content-length:"))
+					length = Long.parseLong(line.substring(15).trim());
+				else if (lower.startsWith("connection:")
+						 && lower.indexOf("close") != -1)
+					keepAlive = false;
+			}
+			if (length < 0) {
+				while (in.read(buffer) != -1)
+					;
+				return false;
+			}
+			while (length > 0) {
+				int n = in.read(buffer, 0,
+								(int)Math.min(buffer.length, length));
+				if (n == -1)
+					throw new EOFException();
+				length -= n;
+			}
+			return keepAlive;
+		}
+
+		private String readLine (InputStream in) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			int c;
+			while ((c = in.read()) != -1 && c != '\n') {
+				if (c != '\r')
+					sb.append((char)c);
+			}
+			if (c == -1 && sb.length() == 0)
+				return null;
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Prints usage info and exits.
+	 */
+	public static void usage () {
+		System.err.println("Usage: java Benchmark [-r root] [-u uri]"
+						   + " [-t threads] [-c clients] [-d seconds]"
+						   + " [-close] [modes...]");
+		System.err.println("Modes: " + Arrays.asList(MODES));
+		System.exit(2);
+	}
+
+	/**
+	 * Runs the benchmark. The format of the command line is
+	 * "java Benchmark [-r root] [-u uri] [-t threads] [-c clients]
+	 * [-d seconds] [-close] [modes...]". With -close every request
+	 * uses a new connection. If no modes are given, all of them are
+	 * compared.
+	 */
+	public static void main (String[] args) throws Exception {
+		File root = new File("../www");
+		String uri = "/";
+		int threads = Runtime.getRuntime().availableProcessors();
+		int clients = 64;
+		int seconds = 10;
+		boolean newConnections = false;
+		List<String> modes = new ArrayList<String>();
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-r")) {
+					root = new File(args[++i]);
+				} else if (args[i].equals("-u")) {
+					uri = args[++i];
+				} else if (args[i].equals("-t")) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-c")) {
+					clients = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-d")) {
+					seconds = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-close")) {
+					newConnections = true;
+				} else if (Arrays.asList(MODES).contains(args[i])) {
+					modes.add(args[i]);
+				} else usage();
+			}
+		} catch (Exception ex) {
+			usage();
+		}
+		if (modes.isEmpty())
+			modes.addAll(Arrays.asList(MODES));
+
+		System.out.println("GET " + uri + ", " + threads + " threads, "
+						   + clients + " clients, " + seconds + " s"
+						   + (newConnections ? ", new connection per request"
+							  : ", persistent connections"));
+		Benchmark b = new Benchmark(root, uri, threads, clients, seconds,
+									newConnections);
+		for (int i = 0; i < modes.size(); i++)
+			b.run(modes.get(i));
+	}
+
+}
@@ -0,0 +1,322 @@
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Accepts connections and serves each one with blocking I/O on a
+ * thread of its own, instead of multiplexing them on reactors. The
+ * threads are virtual threads where the Java runtime has them, so
+ * that many connections waiting for slow clients or slow file systems
+ * cost little; otherwise they are platform threads from a pool.
+ *
+ */
+public class BlockingAcceptor implements Runnable {
+
+	private NioWebServer server;
+
+	private ServerSocketChannel serverChannel;
+
+	/**
+	 * Runs the connections.
+	 */
+	private ExecutorService executor;
+
+	/**
+	 * The open connections, which are closed when the server stops.
+	 */
+	private Set<SocketChannel> connections = 
+		Collections.newSetFromMap(
+			new ConcurrentHashMap<SocketChannel,Boolean>());
+
+	/**
+	 * Codings that no connection is using. A connection borrows one
+	 * while it is open.
+	 */
+	private ConcurrentLinkedQueue<HttpCodings> freeCodings =
+		new ConcurrentLinkedQueue<HttpCodings>();
+
+	private volatile boolean keepRunning = true;
+
+	/**
+	 * How long, in milliseconds, to wait after accept() has failed,
+	 * such as when the process is out of file descriptors.
+	 */
+	private static final long ACCEPT_RETRY = 100;
+
+	/**
+	 * Creates an acceptor and binds the port.
+	 */
+	public BlockingAcceptor (NioWebServer server, InetAddress addr, 
+							 int port) throws IOException {
+		this.server = server;
+		this.serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(addr, port));
+		this.executor = FileStage.newVirtualThreadExecutor();
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+					private int count = 0;
+
+					public synchronized Thread newThread (Runnable r) {
+						Thread t = new Thread(r, "connection-" + count++);
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		}
+	}
+
+	/**
+	 * Whether the runtime has virtual threads, which serve the 
+	 * connections.
+	 */
+	public static boolean hasVirtualThreads () {
+		ExecutorService e = FileStage.newVirtualThreadExecutor();
+		if (e == null)
+			return false;
+		e.shutdown();
+		return true;
+	}
+
+	/**
+	 * Gets the number of open connections.
+	 */
+	public int getConnectionCount () {
+		return connections.size();
+	}
+
+	/**
+	 * Stops accepting and closes the open connections. Requests in 
+	 * progress will not be finished.
+	 */
+	public void stop () {
+		keepRunning = false;
+		try {
+			serverChannel.close();
+		} catch (IOException ex) {
+		}
+		Iterator<SocketChannel> i = connections.iterator();
+		while (i.hasNext()) {
+			try {
+				i.next().close();
+			} catch (IOException ex) {
+			}
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Accepts connections until the acceptor is stopped. When the 
+	 * server has as many connections as it allows, it waits for one to
+	 * be closed before accepting the next.
+	 */
+	public void run () {
+		ConnectionLimits limits = server.getConnectionLimits();
+		while (keepRunning) {
+			final SocketChannel channel;
+			try {
+				limits.awaitRoom();
+				channel = serverChannel.accept();
+			} catch (InterruptedException ex) {
+				break;
+			} catch (ClosedChannelException ex) {
+				break;
+			} catch (IOException ex) {
+				server.log("Cannot accept connections: " + ex.getMessage());
+				try {
+					Thread.sleep(ACCEPT_RETRY);
+				} catch (InterruptedException ex2) {
+					break;
+				}
+				continue;
+			}
+
+			final InetAddress address = channel.socket().getInetAddress();
+			if (!limits.opened(address)) {
+				// too many from that client
+				try {
+					channel.close();
+				} catch (IOException ex) {
+				}
+				continue;
+			}
+			connections.add(channel);
+			try {
+				executor.execute(new Runnable() {
+					public void run () {
+						serve(channel, address);
+					}
+				});
+			} catch (RejectedExecutionException ex) {
+				closed(channel, address);
+			}
+		}
+	}
+
+	/**
+	 * Serves the requests on a connection until it is closed, has been
+	 * idle for the idle timeout, has not sent a whole request line and
+	 * headers within the header timeout, has stalled sending a body
+	 * for the body timeout, or has stopped reading a response for the
+	 * write timeout.
+	 */
+	private void serve (SocketChannel channel, InetAddress address) {
+		HttpCodings codings = freeCodings.poll();
+		if (codings == null)
+			codings = new HttpCodings(server.getBufferPool().newSharedCache());
+		HttpRequest request = new HttpRequest(codings, 0);
+		RequestParser parser = 
+			new RequestParser(request, server.getMaxRequestLine(),
+							  server.getMaxHeaders(), 
+							  server.getMaxHeaderBytes());
+		BodyDecoder decoder = server.newBodyDecoder(codings);
+		try {
+			channel.socket().setTcpNoDelay(true);
+			// reads through the socket's stream, which has a timeout
+			ReadableByteChannel in = 
+				Channels.newChannel(channel.socket().getInputStream());
+			int requestCount = 0;
+			long requestStart = 0;
+			boolean keepAlive = true;
+			while (keepAlive) {
+				long timeout = server.getIdleTimeout();
+				if (decoder.isReading()) {
+					timeout = server.getBodyTimeout();
+				} else if (parser.isStarted()) {
+					timeout = requestStart + server.getHeaderTimeout()
+						- System.currentTimeMillis();
+					if (timeout <= 0)
+						break;
+				}
+				channel.socket().setSoTimeout((int)timeout);
+				if (decoder.isTransferable()) {
+					// blocks until the body or chunk has all come
+					if (decoder.transferFrom(in) == 0)
+						break;
+					if (!decoder.isReading()) {
+						keepAlive = respond(channel, codings, request);
+						request.reset(++requestCount);
+						parser.reset(request);
+					}
+					continue;
+				}
+				ByteBuffer buf = codings.read(in);
+				if (buf == null)
+					break;
+				long now = System.currentTimeMillis();
+				if (!parser.isStarted())
+					requestStart = now;
+				while (keepAlive) {
+					if (!decoder.isReading()) {
+						if (!parser.parse(buf))
+							break;
+						requestStart = now;
+						if (decoder.start(request) 
+							&& request.expectsContinue()) {
+							ByteBuffer c = 
+								ByteBuffer.wrap(HeaderWriter.CONTINUE);
+							while (c.hasRemaining())
+								channel.write(c);
+						}
+					}
+					if (decoder.isReading() && !decoder.decode(buf))
+						break;
+					keepAlive = respond(channel, codings, request);
+					request.reset(++requestCount);
+					parser.reset(request);
+				}
+			}
+		} catch (SocketTimeoutException ex) {
+			// idle, or not reading, for too long
+		} catch (IOException ex) {
+			if (keepRunning)
+				ex.printStackTrace();
+		} finally {
+			request.release();
+			freeCodings.offer(codings);
+			closed(channel, address);
+		}
+	}
+
+	/**
+	 * Makes and sends the response to a request that has been read 
+	 * with its body.
+	 *
+	 * @return Whether the connection should be kept open.
+	 */
+	private boolean respond (SocketChannel channel, HttpCodings codings,
+							 HttpRequest request) throws IOException {
+		HttpResponse response = new HttpResponse(server, codings);
+		// a suspended response is finished on this thread
+		final BlockingQueue<Runnable> tasks = 
+			new LinkedBlockingQueue<Runnable>();
+		response.setOwner(new Executor() {
+			public void execute (Runnable task) {
+				tasks.add(task);
+			}
+		}, null);
+		try {
+			if (!response.initResponse(request)) {
+				try {
+					tasks.take().run();
+				} catch (InterruptedException ex) {
+					throw new InterruptedIOException();
+				}
+			}
+			send(channel, response);
+			return response.isKeepAlive();
+		} finally {
+			response.release();
+		}
+	}
+
+	/**
+	 * Writes a response. The channel is in non-blocking mode while it
+	 * is written, so that a client that stops reading is given up on
+	 * after the write timeout, which a blocking write has no way to do.
+	 * The channel goes back to blocking mode for reading.
+	 *
+	 * @throws SocketTimeoutException If the client took nothing for
+	 * the write timeout.
+	 */
+	private void send (SocketChannel channel, HttpResponse response)
+		throws IOException {
+		channel.configureBlocking(false);
+		Selector selector = null;
+		try {
+			while (!response.writeTo(channel)) {
+				if (selector == null) {
+					selector = Selector.open();
+					channel.register(selector, SelectionKey.OP_WRITE);
+				}
+				long timeout = server.getWriteTimeout();
+				long deadline = System.currentTimeMillis() + timeout;
+				while (selector.select(timeout) == 0) {
+					timeout = deadline - System.currentTimeMillis();
+					if (timeout <= 0)
+						throw new SocketTimeoutException("Write timed out");
+				}
+				selector.selectedKeys().clear();
+			}
+		} finally {
+			// deregisters the channel, which it must be to block again
+			if (selector != null)
+				selector.close();
+			if (channel.isOpen())
+				channel.configureBlocking(true);
+		}
+	}
+
+	private void closed (SocketChannel channel, InetAddress address) {
+		connections.remove(channel);
+		try {
+			channel.close();
+		} catch (IOException ex) {
+		}
+		server.getConnectionLimits().closed(address);
+	}
+
+}
@@ -0,0 +1,386 @@
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * An incremental decoder for request bodies, framed by Content-Length
+ * or sent with the chunked transfer coding. Like the RequestParser it
+ * keeps its state between reads, so a body may arrive in any number of
+ * pieces, and it stops exactly at the end of the body so that the
+ * bytes after it are parsed as the next request. Chunk extensions and
+ * trailers are read and ignored.
+ *
+ * If a body is not acceptable, the request is completed with an error
+ * that is thrown when the request is parsed, and the rest of the body
+ * is not read; the response to it closes the connection.
+ *
+ */
+public class BodyDecoder {
+
+	private static final int NONE = 0;
+	private static final int LENGTH = 1;
+	private static final int SIZE = 2;
+	private static final int EXTENSION = 3;
+	private static final int SIZE_LF = 4;
+	private static final int DATA = 5;
+	private static final int DATA_CR = 6;
+	private static final int DATA_LF = 7;
+	private static final int TRAILER_START = 8;
+	private static final int TRAILER = 9;
+	private static final int TRAILER_LF = 10;
+	private static final int END_LF = 11;
+
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+
+	/**
+	 * The most hex digits in a chunk size, so that it fits in a long.
+	 */
+	private static final int MAX_SIZE_DIGITS = 15;
+
+	private HttpCodings codings;
+
+	/**
+	 * The request whose body is being read.
+	 */
+	private HttpRequest request;
+
+	private RequestBody body;
+
+	private int state = NONE;
+
+	/**
+	 * The bytes left of the body, or of the chunk being read.
+	 */
+	private long remaining;
+
+	/**
+	 * The number of digits of the chunk size read so far.
+	 */
+	private int sizeDigits;
+
+	/**
+	 * The number of bytes of chunk extensions and trailers read.
+	 */
+	private int extraBytes;
+
+	/**
+	 * The longest body accepted.
+	 */
+	private long maxBodySize;
+
+	/**
+	 * The most bytes of a body kept in memory.
+	 */
+	private int maxMemory;
+
+	/**
+	 * Where bodies too large for memory are written, or null for the
+	 * default temporary directory.
+	 */
+	private File directory;
+
+	/**
+	 * The most bytes of chunk extensions and trailers in a body.
+	 */
+	private int maxExtraBytes;
+
+	/**
+	 * Creates a decoder.
+	 *
+	 * @param codings The codings whose pool the bodies take buffers
+	 * from.
+	 * @param maxBodySize The longest body accepted. Requests with
+	 * longer bodies get a 413 response.
+	 * @param maxMemory The most bytes of a body kept in memory.
+	 * @param directory Where bodies too large for memory are written,
+	 * or null for the default temporary directory.
+	 * @param maxExtraBytes The most bytes of chunk extensions and
+	 * trailers in a body.
+	 */
+	public BodyDecoder (HttpCodings codings, long maxBodySize,
+						int maxMemory, File directory, int maxExtraBytes) {
+		this.codings = codings;
+		this.maxBodySize = maxBodySize;
+		this.maxMemory = maxMemory;
+		this.directory = directory;
+		this.maxExtraBytes = maxExtraBytes;
+	}
+
+	/**
+	 * Whether a body is being read.
+	 */
+	public boolean isReading () {
+		return state != NONE;
+	}
+
+	/**
+	 * Starts reading the body of a request whose headers have been
+	 * parsed. A request without Content-Length or Transfer-Encoding
+	 * has no body.
+	 *
+	 * @return True if there is a body to read with decode().
+	 */
+	public boolean start (HttpRequest request) {
+		this.request = request;
+		if (request.hasError())
+			return false;
+
+		String te = request.getHeader(HttpRequest.TRANSFER_ENCODING);
+		String cl = request.getHeader(HttpRequest.CONTENT_LENGTH);
+		long size;
+		if (te != null) {
+			// both would let a proxy in front and the server disagree
+			// on where the request ends
+			if (cl != null || !"HTTP/1.1".equals(request.getVersion()))
+				return !error(400, "Bad request");
+			if (request.getHeaders(HttpRequest.TRANSFER_ENCODING).size() != 1
+				|| !te.trim().equalsIgnoreCase("chunked"))
+				return !error(501, "Not implemented");
+			size = -1;
+			state = SIZE;
+			sizeDigits = 0;
+			remaining = 0;
+			extraBytes = 0;
+		} else if (cl != null) {
+			size = parseLength(request);
+			if (size < 0)
+				return !error(400, "Bad request");
+			if (size > maxBodySize)
+				return !error(413, "Request Entity Too Large");
+			if (size == 0)
+				return false;
+			state = LENGTH;
+			remaining = size;
+		} else {
+			return false;
+		}
+
+		try {
+			body = new RequestBody(codings, size, maxMemory, directory);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			return !error(500, "Internal server error");
+		}
+		request.setBody(body);
+		return true;
+	}
+
+	/**
+	 * Gets the value of the Content-Length headers, which must all be
+	 * the same.
+	 *
+	 * @return The length, or -1 if it is not valid.
+	 */
+	private static long parseLength (HttpRequest request) {
+		long length = -1;
+		List<String> values =
+			request.getHeaders(HttpRequest.CONTENT_LENGTH);
+		for (int i = 0; i < values.size(); i++) {
+			String s = values.get(i).trim();
+			if (s.length() == 0 || s.length() > 18)
+				return -1;
+			long n = 0;
+			for (int j = 0; j < s.length(); j++) {
+				char c = s.charAt(j);
+				if (c < '0' || c > '9')
+					return -1;
+				n = n * 10 + (c - '0');
+			}
+			if (length != -1 && n != length)
+				return -1;
+			length = n;
+		}
+		return length;
+	}
+
+	/**
+	 * Whether the next bytes of the body can be moved from the socket
+	 * straight to its file with transferFrom().
+	 */
+	public boolean isTransferable () {
+		return (state == LENGTH || state == DATA) && remaining > 0
+			&& body.isInFile();
+	}
+
+	/**
+	 * Moves the next bytes of the body from a channel to its file, up
+	 * to the end of the body or chunk.
+	 *
+	 * @return The number of bytes moved, 0 if the channel has no data
+	 * or has reached its end.
+	 */
+	public long transferFrom (ReadableByteChannel channel)
+		throws IOException {
+		long n = body.transferFrom(channel, remaining);
+		remaining -= n;
+		if (remaining == 0) {
+			if (state == LENGTH)
+				complete();
+			else
+				state = DATA_CR;
+		}
+		return n;
+	}
+
+	/**
+	 * Decodes bytes until the end of the body, or until there are no
+	 * more bytes.
+	 *
+	 * @return True if the body is complete, or has failed, in which
+	 * case the buffer is positioned after it.
+	 */
+	@SuppressWarnings("fallthrough")
+	public boolean decode (ByteBuffer buf) {
+		try {
+			while (buf.hasRemaining()) {
+				if (state == LENGTH || state == DATA) {
+					int n = (int)Math.min(remaining, buf.remaining());
+					int limit = buf.limit();
+					buf.limit(buf.position() + n);
+					body.write(buf);
+					buf.limit(limit);
+					remaining -= n;
+					if (remaining > 0)
+						return false;
+					if (state == LENGTH)
+						return complete();
+					state = DATA_CR;
+					continue;
+				}
+
+				byte b = buf.get();
+				switch (state) {
+				case SIZE:
+					int digit = Character.digit((char)(b & 0xff), 16);
+					if (digit >= 0) {
+						if (++sizeDigits > MAX_SIZE_DIGITS)
+							return error(413, "Request Entity Too Large");
+						remaining = remaining * 16 + digit;
+						break;
+					}
+					if (sizeDigits == 0)
+						return error(400, "Bad request");
+					if (b == CR) {
+						state = SIZE_LF;
+					} else if (b == LF) {
+						if (endSize())
+							return true;
+					} else if (b == ';' || b == ' ' || b == '\t') {
+						state = EXTENSION;
+					} else {
+						return error(400, "Bad request");
+					}
+					break;
+				case EXTENSION:
+					if (++extraBytes > maxExtraBytes)
+						return error(400, "Bad request");
+					if (b == CR)
+						state = SIZE_LF;
+					else if (b == LF && endSize())
+						return true;
+					break;
+				case SIZE_LF:
+					if (b != LF)
+						return error(400, "Bad request");
+					if (endSize())
+						return true;
+					break;
+				case DATA_CR:
+					if (b == CR)
+						state = DATA_LF;
+					else if (b == LF)
+						startSize();
+					else
+						return error(400, "Bad request");
+					break;
+				case DATA_LF:
+					if (b != LF)
+						return error(400, "Bad request");
+					startSize();
+					break;
+				case TRAILER_START:
+					if (b == CR) {
+						state = END_LF;
+						break;
+					} else if (b == LF) {
+						return complete();
+					}
+					state = TRAILER;
+					// fall through
+				case TRAILER:
+					if (++extraBytes > maxExtraBytes)
+						return error(431, "Request Header Fields Too Large");
+					if (b == CR)
+						state = TRAILER_LF;
+					else if (b == LF)
+						state = TRAILER_START;
+					break;
+				case TRAILER_LF:
+					if (b != LF)
+						return error(400, "Bad request");
+					state = TRAILER_START;
+					break;
+				case END_LF:
+					if (b != LF)
+						return error(400, "Bad request");
+					return complete();
+				}
+			}
+		} catch (IOException ex) {
+			// the body could not be written to its file
+			ex.printStackTrace();
+			return error(500, "Internal server error");
+		}
+		return false;
+	}
+
+	private void startSize () {
+		state = SIZE;
+		sizeDigits = 0;
+		remaining = 0;
+	}
+
+	/**
+	 * Handles the end of a chunk size line.
+	 *
+	 * @return True if the body has failed.
+	 */
+	private boolean endSize () {
+		if (remaining == 0) {
+			// the last chunk, followed by trailers
+			state = TRAILER_START;
+			return false;
+		}
+		if (body.getLength() + remaining > maxBodySize)
+			return error(413, "Request Entity Too Large");
+		state = DATA;
+		return false;
+	}
+
+	private boolean complete () {
+		body.finish();
+		state = NONE;
+		body = null;
+		request = null;
+		return true;
+	}
+
+	/**
+	 * Completes the request with an error, dropping what has been read
+	 * of its body.
+	 *
+	 * @return True.
+	 */
+	private boolean error (int code, String message) {
+		request.setError(new ServerException(code, message));
+		request.setBody(null);
+		state = NONE;
+		body = null;
+		request = null;
+		return true;
+	}
+
+}
@@ -24,20 +24,47 @@ public class BufferContent extends Content {
 	 */
 	private String type;
 
+	/**
+	 * The codings whose pool the buffer is given back to, or null if
+	 * the buffer is not pooled.
+	 */
+	private HttpCodings pool;
+
 	public BufferContent (ByteBuffer buffer, String type) throws IOException {
+		this(buffer, type, null);
+	}
+
+	/**
+	 * Creates a content that sends a pooled buffer and gives it back
+	 * when it is closed.
+	 */
+	public BufferContent (ByteBuffer buffer, String type, HttpCodings pool) {
 		this.buffer = buffer;
 		this.size = buffer.remaining();
+		this.type = type;
+		this.pool = pool;
 	}
 
 	public boolean writeTo (WritableByteChannel to) throws IOException {
 		to.write(buffer);
-		return buffer.hasRemaining();
+		return !buffer.hasRemaining();
 	}
 
 	public long getSize () {
 		return size;
 	}
 
+	public ByteBuffer getBuffer () {
+		return buffer;
+	}
+
+	public void close () {
+		if (pool != null) {
+			pool.recycle(buffer);
+			pool = null;
+		}
+	}
+
 	public String getContentType () {
 		return type;
 	}
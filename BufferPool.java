@@ -0,0 +1,184 @@
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A pool of direct buffers in a few size classes. Buffers are cut from
+ * larger slabs, so that allocating direct memory, which is slow,
+ * happens rarely. Each reactor takes buffers through its own Cache
+ * without locking, and only goes to the shared queues when its cache
+ * is empty or full.
+ *
+ * Buffers should only be held while there is I/O pending, so that the
+ * memory used depends on the number of busy connections rather than
+ * on the number of open ones.
+ *
+ */
+public class BufferPool {
+
+	/**
+	 * The buffer sizes. Larger buffers are allocated when asked for
+	 * and are not pooled.
+	 */
+	private static final int[] SIZES = { 512, 2048, 8192, 32768 };
+
+	/**
+	 * The size of the slabs that buffers are cut from.
+	 */
+	private static final int SLAB_SIZE = 256 << 10;
+
+	/**
+	 * The most free buffers of each size kept by a reactor's cache.
+	 * Half of them are given back to the shared queue when it is full.
+	 */
+	private static final int CACHE_SIZE = 64;
+
+	/**
+	 * A cache of free buffers for one thread.
+	 */
+	public class Cache {
+
+		/**
+		 * The free buffers of each size, or null if the cache is used
+		 * by several threads and keeps none.
+		 */
+		private ArrayList<ByteBuffer>[] free;
+
+		@SuppressWarnings("unchecked")
+		private Cache (boolean shared) {
+			if (shared)
+				return;
+			free = (ArrayList<ByteBuffer>[])new ArrayList<?>[SIZES.length];
+			for (int i = 0; i < SIZES.length; i++)
+				free[i] = new ArrayList<ByteBuffer>(CACHE_SIZE);
+		}
+
+		/**
+		 * Gets a cleared buffer with room for at least a number of
+		 * bytes. Its capacity may be larger.
+		 */
+		public ByteBuffer allocate (int size) {
+			int c = sizeClass(size);
+			if (c == -1)
+				return ByteBuffer.allocateDirect(size);
+			ByteBuffer buf;
+			if (free == null) {
+				buf = take(c);
+			} else {
+				ArrayList<ByteBuffer> list = free[c];
+				int n = list.size();
+				buf = (n > 0) ? list.remove(n - 1) : take(c);
+			}
+			buf.clear();
+			return buf;
+		}
+
+		/**
+		 * Gives back a buffer returned by allocate(). The caller must
+		 * not use it afterwards.
+		 */
+		public void recycle (ByteBuffer buf) {
+			int c = sizeClass(buf.capacity());
+			if (c == -1 || SIZES[c] != buf.capacity() || !buf.isDirect())
+				return;
+			if (free == null) {
+				shared[c].offer(buf);
+				return;
+			}
+			ArrayList<ByteBuffer> list = free[c];
+			if (list.size() == CACHE_SIZE) {
+				while (list.size() > CACHE_SIZE / 2)
+					shared[c].offer(list.remove(list.size() - 1));
+			}
+			list.add(buf);
+		}
+	}
+
+	/**
+	 * The free buffers of each size that no cache holds.
+	 */
+	private ConcurrentLinkedQueue<ByteBuffer>[] shared;
+
+	/**
+	 * The number of bytes allocated for slabs.
+	 */
+	private AtomicLong allocated = new AtomicLong();
+
+	@SuppressWarnings("unchecked")
+	public BufferPool () {
+		shared = (ConcurrentLinkedQueue<ByteBuffer>[])
+			new ConcurrentLinkedQueue<?>[SIZES.length];
+		for (int i = 0; i < SIZES.length; i++)
+			shared[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+	}
+
+	/**
+	 * Creates a cache for one thread.
+	 */
+	public Cache newCache () {
+		return new Cache(false);
+	}
+
+	/**
+	 * Creates a cache that any thread may use, which takes buffers 
+	 * from the shared queues and gives them straight back.
+	 */
+	public Cache newSharedCache () {
+		return new Cache(true);
+	}
+
+	/**
+	 * Gets the smallest size class that holds a number of bytes.
+	 *
+	 * @return The class, or -1 if the size is larger than all classes.
+	 */
+	private static int sizeClass (int size) {
+		for (int i = 0; i < SIZES.length; i++) {
+			if (size <= SIZES[i])
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Takes a free buffer from the shared queue, cutting a new slab if
+	 * there is none.
+	 */
+	private ByteBuffer take (int c) {
+		ByteBuffer buf = shared[c].poll();
+		if (buf != null)
+			return buf;
+
+		int size = SIZES[c];
+		ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+		allocated.addAndGet(SLAB_SIZE);
+		for (int pos = size; pos < SLAB_SIZE; pos += size) {
+			slab.limit(pos + size);
+			slab.position(pos);
+			shared[c].offer(slab.slice());
+		}
+		slab.position(0);
+		slab.limit(size);
+		return slab.slice();
+	}
+
+	/**
+	 * Gets the number of bytes of direct memory allocated for slabs.
+	 */
+	public long getAllocated () {
+		return allocated.get();
+	}
+
+	public String toString () {
+		StringBuffer sb = new StringBuffer("BufferPool[");
+		sb.append(allocated.get()).append(" bytes allocated");
+		for (int i = 0; i < SIZES.length; i++) {
+			sb.append(", ").append(shared[i].size()).append(" free of ")
+				.append(SIZES[i]);
+		}
+		return sb.append(']').toString();
+	}
+
+}
@@ -0,0 +1,133 @@
+
+import java.util.*;
+
+/**
+ * Parses the byte ranges in a Range header.
+ *
+ */
+public class ByteRanges {
+
+	/**
+	 * The most ranges accepted in one request. Requests for more are 
+	 * answered with the whole file, so that a client cannot make the
+	 * server send many small parts. Overlapping ranges are merged, so
+	 * no byte is sent more than once.
+	 */
+	public static final int MAX_RANGES = 16;
+
+	private ByteRanges () {
+	}
+
+	/**
+	 * Parses a Range header such as "bytes=0-499, 1000-, -200".
+	 *
+	 * @param header The header value.
+	 * @param length The length of the file.
+	 * @return The satisfiable ranges as pairs of first and last byte
+	 * positions, an empty array if there are none, or null if the 
+	 * header should be ignored because it is malformed, not in bytes 
+	 * or has too many ranges. Ranges that overlap or are out of order
+	 * are sorted and merged with the ones they overlap or touch.
+	 */
+	public static long[] parse (String header, long length) {
+		int eq = header.indexOf('=');
+		if (eq == -1 || !header.substring(0, eq).trim().equalsIgnoreCase("bytes"))
+			return null;
+
+		StringTokenizer st = new StringTokenizer(header.substring(eq+1), ",");
+		long[] ranges = new long[2 * MAX_RANGES];
+		int count = 0;
+		int specs = 0;
+		while (st.hasMoreTokens()) {
+			String spec = st.nextToken().trim();
+			if (spec.length() == 0)
+				continue;
+			if (++specs > MAX_RANGES)
+				return null;
+
+			int dash = spec.indexOf('-');
+			if (dash == -1)
+				return null;
+			long first;
+			long last;
+			try {
+				if (dash == 0) {
+					// the final bytes
+					long suffix = parseNumber(spec.substring(1));
+					if (suffix == 0)
+						continue;
+					first = Math.max(0, length - suffix);
+					last = length - 1;
+				} else {
+					first = parseNumber(spec.substring(0, dash));
+					if (dash == spec.length() - 1) {
+						last = length - 1;
+					} else {
+						last = parseNumber(spec.substring(dash+1));
+						if (last < first)
+							return null;
+						last = Math.min(last, length - 1);
+					}
+				}
+			} catch (NumberFormatException ex) {
+				return null;
+			}
+			if (first >= length)
+				continue;
+			ranges[count++] = first;
+			ranges[count++] = last;
+		}
+		if (specs == 0)
+			return null;
+		return coalesce(ranges, count);
+	}
+
+	/**
+	 * Sorts and merges ranges, unless they are in ascending order and
+	 * apart already.
+	 *
+	 * @param ranges Pairs of first and last byte positions.
+	 * @param count The number of positions used.
+	 */
+	private static long[] coalesce (long[] ranges, int count) {
+		boolean apart = true;
+		for (int i = 2; i < count && apart; i += 2)
+			apart = ranges[i] > ranges[i-1] + 1;
+		if (apart)
+			return Arrays.copyOf(ranges, count);
+
+		// insertion sort by first position; there are only a few
+		for (int i = 2; i < count; i += 2) {
+			long first = ranges[i];
+			long last = ranges[i+1];
+			int j = i;
+			for (; j > 0 && ranges[j-2] > first; j -= 2) {
+				ranges[j] = ranges[j-2];
+				ranges[j+1] = ranges[j-1];
+			}
+			ranges[j] = first;
+			ranges[j+1] = last;
+		}
+		int n = 2;
+		for (int i = 2; i < count; i += 2) {
+			if (ranges[i] <= ranges[n-1] + 1) {
+				ranges[n-1] = Math.max(ranges[n-1], ranges[i+1]);
+			} else {
+				ranges[n++] = ranges[i];
+				ranges[n++] = ranges[i+1];
+			}
+		}
+		return Arrays.copyOf(ranges, n);
+	}
+
+	/**
+	 * Parses a non-negative decimal number.
+	 */
+	private static long parseNumber (String s) {
+		s = s.trim();
+		if (s.length() == 0 || s.charAt(0) < '0' || s.charAt(0) > '9')
+			throw new NumberFormatException(s);
+		return Long.parseLong(s);
+	}
+
+}
@@ -0,0 +1,234 @@
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Sends content of unknown size with the chunked transfer coding, so
+ * that the connection can be kept open after it. The content is framed
+ * as it is produced: each buffer the content writes becomes a chunk,
+ * and its size line, its data and the line end after it go out in one
+ * gathering write. Nothing is buffered here, so memory use does not
+ * depend on the size of the content.
+ *
+ * The content writes to a channel that frames what it is given and
+ * passes it on, and like any channel, it may take only part of a
+ * buffer; the content then offers the rest again, which continues the
+ * chunk.
+ *
+ */
+public class ChunkedContent extends Content {
+
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	/**
+	 * The last chunk, with no trailers.
+	 */
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+	private static final byte[] HEX = {
+		'0', '1', '2', '3', '4', '5', '6', '7',
+		'8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+	};
+
+	/**
+	 * The content being framed.
+	 */
+	private Content content;
+
+	/**
+	 * Bytes sent before the first chunk, such as the response head, or
+	 * null.
+	 */
+	private ByteBuffer prefix = null;
+
+	/**
+	 * The size line of the chunk being sent, with what remains of it.
+	 */
+	private ByteBuffer sizeLine = ByteBuffer.allocate(18);
+
+	/**
+	 * The line end after the chunk being sent, with what remains of it.
+	 */
+	private ByteBuffer lineEnd = ByteBuffer.wrap(CRLF);
+
+	/**
+	 * The last chunk, with what remains of it.
+	 */
+	private ByteBuffer lastChunk = ByteBuffer.wrap(LAST_CHUNK);
+
+	/**
+	 * The bytes of data of the chunk being sent that remain.
+	 */
+	private long chunkRemaining = 0;
+
+	/**
+	 * Whether all of the content has been framed.
+	 */
+	private boolean contentDone = false;
+
+	private ByteBuffer[] srcs = new ByteBuffer[4];
+
+	/**
+	 * Passes what the content writes on to the real channel.
+	 */
+	private Framer framer = new Framer();
+
+	/**
+	 * The channel that the content writes to.
+	 */
+	private class Framer implements WritableByteChannel {
+
+		WritableByteChannel to;
+
+		public int write (ByteBuffer src) throws IOException {
+			return frame(to, src);
+		}
+
+		public boolean isOpen () {
+			return to.isOpen();
+		}
+
+		public void close () {
+		}
+	}
+
+	/**
+	 * Frames a content.
+	 *
+	 * @param content Content of unknown size.
+	 */
+	public ChunkedContent (Content content) {
+		this.content = content;
+		sizeLine.limit(0);
+		lineEnd.limit(0);
+	}
+
+	/**
+	 * Sends some bytes before the first chunk, in the same write. The
+	 * response head is sent this way.
+	 */
+	void setPrefix (ByteBuffer prefix) {
+		this.prefix = prefix;
+	}
+
+	public boolean writeTo (WritableByteChannel to) throws IOException {
+		if (!contentDone) {
+			framer.to = to;
+			if (!content.writeTo(framer))
+				return false;
+			contentDone = true;
+		}
+		// the end of the last data chunk, and the last chunk
+		int n = 0;
+		n = add(prefix, n);
+		n = add(lineEnd, n);
+		n = add(lastChunk, n);
+		write(to, n);
+		return !lastChunk.hasRemaining();
+	}
+
+	/**
+	 * Frames and writes data that the content has written.
+	 *
+	 * @return The number of bytes of data written.
+	 */
+	private int frame (WritableByteChannel to, ByteBuffer src)
+		throws IOException {
+		if (!src.hasRemaining())
+			return 0;
+		if (chunkRemaining == 0) {
+			// a new chunk, once the end of the last has been sent
+			if (lineEnd.hasRemaining()) {
+				int n = add(prefix, 0);
+				n = add(lineEnd, n);
+				write(to, n);
+				if (lineEnd.hasRemaining())
+					return 0;
+			}
+			chunkRemaining = src.remaining();
+			putSize(chunkRemaining);
+		}
+
+		int limit = src.limit();
+		int data = (int)Math.min(src.remaining(), chunkRemaining);
+		boolean last = (data == chunkRemaining);
+		src.limit(src.position() + data);
+		int n = 0;
+		n = add(prefix, n);
+		n = add(sizeLine, n);
+		srcs[n++] = src;
+		if (last) {
+			lineEnd.clear();
+			srcs[n++] = lineEnd;
+		}
+		int start = src.position();
+		write(to, n);
+		int written = src.position() - start;
+		src.limit(limit);
+		chunkRemaining -= written;
+		if (last && chunkRemaining > 0) {
+			// the data was not all written, so neither was the line end
+			lineEnd.limit(0);
+		}
+		return written;
+	}
+
+	/**
+	 * Adds a buffer to the gathering write if it has something to send.
+	 */
+	private int add (ByteBuffer buf, int n) {
+		if (buf != null && buf.hasRemaining())
+			srcs[n++] = buf;
+		return n;
+	}
+
+	private void write (WritableByteChannel to, int n) throws IOException {
+		if (to instanceof GatheringByteChannel) {
+			((GatheringByteChannel)to).write(srcs, 0, n);
+		} else {
+			for (int i = 0; i < n; i++) {
+				to.write(srcs[i]);
+				if (srcs[i].hasRemaining())
+					break;
+			}
+		}
+		for (int i = 0; i < n; i++)
+			srcs[i] = null;
+	}
+
+	/**
+	 * Puts the size line of a chunk.
+	 */
+	private void putSize (long size) {
+		sizeLine.clear();
+		int shift = 60;
+		while (shift > 0 && (size >>> shift) == 0)
+			shift -= 4;
+		for (; shift >= 0; shift -= 4)
+			sizeLine.put(HEX[(int)(size >>> shift) & 0xf]);
+		sizeLine.put(CRLF);
+		sizeLine.flip();
+	}
+
+	public long getSize () {
+		return -1;
+	}
+
+	public boolean isAvailable () {
+		return contentDone || content.isAvailable();
+	}
+
+	public void setListener (Runnable listener) {
+		content.setListener(listener);
+	}
+
+	public String getContentType () {
+		return content.getContentType();
+	}
+
+	public void close () throws IOException {
+		content.close();
+	}
+
+}
@@ -0,0 +1,170 @@
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * Counts the open connections of a server, in all and by client
+ * address. When there are as many as allowed, acceptors stop accepting
+ * and are resumed as soon as a connection is closed, so that new
+ * clients wait in the listen backlog instead of being refused or
+ * running the server out of file descriptors.
+ *
+ */
+public class ConnectionLimits {
+
+	/**
+	 * Resumed once there is room for another connection.
+	 */
+	public interface Waiter {
+
+		/**
+		 * Called on the thread that closed a connection.
+		 */
+		void resume ();
+	}
+
+	/**
+	 * The most open connections, or 0 for no limit.
+	 */
+	private int maxConnections;
+
+	/**
+	 * The most open connections from one address, or 0 for no limit.
+	 */
+	private int maxPerAddress;
+
+	private int count = 0;
+
+	/**
+	 * The number of open connections from each address, if there is a
+	 * limit per address.
+	 */
+	private HashMap<InetAddress,int[]> counts =
+		new HashMap<InetAddress,int[]>();
+
+	/**
+	 * The acceptors waiting for room.
+	 */
+	private ArrayList<Waiter> waiters = new ArrayList<Waiter>();
+
+	/**
+	 * The number of connections refused because their address had too
+	 * many.
+	 */
+	private long refused = 0;
+
+	/**
+	 * Creates limits.
+	 *
+	 * @param maxConnections The most open connections, or 0 for no
+	 * limit.
+	 * @param maxPerAddress The most open connections from one client
+	 * address, or 0 for no limit.
+	 */
+	public ConnectionLimits (int maxConnections, int maxPerAddress) {
+		this.maxConnections = maxConnections;
+		this.maxPerAddress = maxPerAddress;
+	}
+
+	/**
+	 * Whether there are as many connections as allowed.
+	 */
+	public synchronized boolean isFull () {
+		return maxConnections > 0 && count >= maxConnections;
+	}
+
+	/**
+	 * Counts a new connection. Connections are counted even when there
+	 * are too many already, since they have been accepted.
+	 *
+	 * @param address The client address.
+	 * @return False if the address has as many connections as it may
+	 * have, in which case the connection is not counted and should be
+	 * closed.
+	 */
+	public synchronized boolean opened (InetAddress address) {
+		if (maxPerAddress > 0) {
+			int[] n = counts.get(address);
+			if (n == null) {
+				n = new int[1];
+				counts.put(address, n);
+			} else if (n[0] >= maxPerAddress) {
+				refused++;
+				return false;
+			}
+			n[0]++;
+		}
+		count++;
+		return true;
+	}
+
+	/**
+	 * Uncounts a closed connection, and resumes the waiting acceptors.
+	 *
+	 * @param address The client address, as given to opened().
+	 */
+	public void closed (InetAddress address) {
+		Waiter[] w = null;
+		synchronized (this) {
+			count--;
+			if (maxPerAddress > 0) {
+				int[] n = counts.get(address);
+				if (n != null && --n[0] == 0)
+					counts.remove(address);
+			}
+			notifyAll();
+			if (!waiters.isEmpty() && !isFull()) {
+				w = waiters.toArray(new Waiter[waiters.size()]);
+				waiters.clear();
+			}
+		}
+		for (int i = 0; w != null && i < w.length; i++)
+			w[i].resume();
+	}
+
+	/**
+	 * Waits for room without blocking. The waiter is resumed once a
+	 * connection is closed, or at once if there is room already.
+	 */
+	public void waitForRoom (Waiter waiter) {
+		synchronized (this) {
+			if (isFull()) {
+				waiters.add(waiter);
+				return;
+			}
+		}
+		waiter.resume();
+	}
+
+	/**
+	 * Blocks until there is room for another connection.
+	 */
+	public synchronized void awaitRoom () throws InterruptedException {
+		while (isFull())
+			wait();
+	}
+
+	/**
+	 * Gets the number of open connections.
+	 */
+	public synchronized int getCount () {
+		return count;
+	}
+
+	/**
+	 * Gets the number of connections refused because their client
+	 * address had too many open.
+	 */
+	public synchronized long getRefused () {
+		return refused;
+	}
+
+	public int getMaxConnections () {
+		return maxConnections;
+	}
+
+	public int getMaxPerAddress () {
+		return maxPerAddress;
+	}
+
+}
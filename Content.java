@@ -1,5 +1,6 @@
 
 import java.io.*;
+import java.nio.*;
 import java.nio.channels.*;
 
 /**
@@ -30,4 +31,48 @@ public abstract class Content {
 	 */
 	public abstract String getContentType ();
 
+	/**
+	 * Gets the data that remains to be sent, if the content is held in
+	 * a single buffer. Such content can be written together with the
+	 * response head and other responses. Writing from the buffer 
+	 * consumes the content.
+	 *
+	 * @return The buffer, or null if the content is not in a buffer.
+	 */
+	public ByteBuffer getBuffer () {
+		return null;
+	}
+
+	/**
+	 * Tells the content that reading its buffer failed with an
+	 * InternalError, as reading a mapped file that has been truncated
+	 * does. The content is not sent any further.
+	 */
+	public void bufferFailed () {
+	}
+
+	/**
+	 * Whether some of the content can be written now. Content that
+	 * arrives from elsewhere, such as from an upstream server, may have
+	 * to wait for it; the connection then stops writing until the
+	 * listener is called.
+	 */
+	public boolean isAvailable () {
+		return true;
+	}
+
+	/**
+	 * Sets what to call, on the thread that writes the content, when
+	 * content that was not available has become available.
+	 */
+	public void setListener (Runnable listener) {
+	}
+
+	/**
+	 * Releases any files or other resources held by the content, when
+	 * it will not be sent to the end.
+	 */
+	public void close () throws IOException {
+	}
+
 }
@@ -0,0 +1,297 @@
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Keeps the contents of small, frequently requested files in memory,
+ * keyed by canonical path. The total size of the cached contents is
+ * bounded, and an EvictionPolicy decides what to drop when it is
+ * full. The cache is shared by all reactors.
+ *
+ */
+public class ContentCache {
+
+	/**
+	 * A cached file.
+	 */
+	public static class Entry {
+
+		/**
+		 * The file contents, read-only. Responses send duplicates.
+		 */
+		private ByteBuffer buffer;
+
+		private long lastModified;
+
+		/**
+		 * Header lines encoded when the entry was created.
+		 */
+		private byte[] header;
+
+		/**
+		 * When the file was last checked for changes.
+		 */
+		private volatile long checked;
+
+		public Entry (ByteBuffer buffer, long lastModified, byte[] header) {
+			this.buffer = buffer.asReadOnlyBuffer();
+			this.lastModified = lastModified;
+			this.header = header;
+			this.checked = System.currentTimeMillis();
+		}
+
+		/**
+		 * Gets a buffer with the contents that the caller may consume.
+		 */
+		public ByteBuffer getBuffer () {
+			return buffer.duplicate();
+		}
+
+		public long getLength () {
+			return buffer.capacity();
+		}
+
+		public long getLastModified () {
+			return lastModified;
+		}
+
+		/**
+		 * Gets the encoded header lines that go with the contents, each
+		 * ending in CRLF.
+		 */
+		public byte[] getHeader () {
+			return header;
+		}
+	}
+
+	/**
+	 * How often, in milliseconds, a cached file is checked for changes.
+	 */
+	private static final long CHECK_INTERVAL = 1000;
+
+	private Map<String,Entry> entries = new HashMap<String,Entry>();
+
+	private EvictionPolicy policy;
+
+	/**
+	 * The maximum total size of the cached contents.
+	 */
+	private long maxBytes;
+
+	/**
+	 * The largest file that is cached.
+	 */
+	private long maxEntrySize;
+
+	/**
+	 * The total size of the cached contents.
+	 */
+	private long bytes = 0;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	private long evictions = 0;
+
+	/**
+	 * Whether entries are compared with their files now and then. Not
+	 * needed while the server root is watched, since changed files are
+	 * then removed as they change.
+	 */
+	private volatile boolean checking = true;
+
+	/**
+	 * Counts removals, so that a file read while it was changed is not
+	 * kept.
+	 */
+	private int generation = 0;
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param maxBytes The maximum total size of the cached contents.
+	 * @param maxEntrySize The largest file that is cached.
+	 * @param policy Decides what to evict when the cache is full.
+	 */
+	public ContentCache (long maxBytes, long maxEntrySize,
+						 EvictionPolicy policy) {
+		this.maxBytes = maxBytes;
+		this.maxEntrySize = Math.min(maxEntrySize, maxBytes);
+		this.policy = policy;
+	}
+
+	/**
+	 * Gets the largest file that is cached.
+	 */
+	public long getMaxEntrySize () {
+		return maxEntrySize;
+	}
+
+	/**
+	 * Sets whether entries are compared with their files now and then.
+	 * Turn this off only if changed files are removed as they change,
+	 * such as when a watcher tells about them.
+	 */
+	public void setChecking (boolean checking) {
+		this.checking = checking;
+	}
+
+	/**
+	 * Gets the number of removals so far, to pass to put() for a file
+	 * read after this call.
+	 */
+	public synchronized int getGeneration () {
+		return generation;
+	}
+
+	/**
+	 * Looks up a file. Unless checking is off, an entry that has not
+	 * been checked for a while is compared with the file's modification
+	 * time and length, and dropped if they have changed.
+	 *
+	 * @param file The file, with a canonical path.
+	 * @return The entry, or null if the file is not cached.
+	 */
+	public Entry get (File file) {
+		String key = file.getPath();
+		Entry entry;
+		synchronized (this) {
+			policy.recordRequest(key);
+			entry = entries.get(key);
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			policy.recordHit(key);
+		}
+
+		if (!checking)
+			return entry;
+		long now = System.currentTimeMillis();
+		if (now - entry.checked > CHECK_INTERVAL) {
+			if (file.lastModified() != entry.lastModified
+				|| file.length() != entry.getLength()) {
+				remove(key, entry);
+				return null;
+			}
+			entry.checked = now;
+		}
+		return entry;
+	}
+
+	/**
+	 * Adds a file, evicting others if needed.
+	 *
+	 * @param file The file, with a canonical path.
+	 * @param generation What getGeneration() returned before the file
+	 * was read. If anything has been removed since, the file may have
+	 * changed while it was read, and is not added.
+	 */
+	public synchronized void put (File file, Entry entry, int generation) {
+		String key = file.getPath();
+		long size = entry.getLength();
+		if (size > maxEntrySize || generation != this.generation)
+			return;
+
+		Entry old = entries.put(key, entry);
+		if (old != null) {
+			bytes -= old.getLength();
+			policy.removed(key);
+		}
+		bytes += size;
+		policy.added(key, size);
+
+		while (bytes > maxBytes) {
+			String victim = policy.evict();
+			if (victim == null)
+				break;
+			Entry e = entries.remove(victim);
+			if (e != null) {
+				bytes -= e.getLength();
+				evictions++;
+			}
+		}
+	}
+
+	/**
+	 * Removes an entry if it is still the one cached for the key.
+	 */
+	private synchronized void remove (String key, Entry entry) {
+		generation++;
+		if (entries.get(key) == entry) {
+			entries.remove(key);
+			bytes -= entry.getLength();
+			policy.removed(key);
+		}
+	}
+
+	/**
+	 * Drops a file if it is cached.
+	 *
+	 * @param file The file, with a canonical path.
+	 */
+	public synchronized void remove (File file) {
+		generation++;
+		String key = file.getPath();
+		Entry entry = entries.get(key);
+		if (entry != null)
+			remove(key, entry);
+	}
+
+	/**
+	 * Drops all files.
+	 */
+	public synchronized void clear () {
+		generation++;
+		Iterator<String> i = entries.keySet().iterator();
+		while (i.hasNext())
+			policy.removed(i.next());
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Gets the number of lookups that found the file.
+	 */
+	public synchronized long getHits () {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of lookups that did not find the file.
+	 */
+	public synchronized long getMisses () {
+		return misses;
+	}
+
+	/**
+	 * Gets the number of entries evicted to make room for others.
+	 */
+	public synchronized long getEvictions () {
+		return evictions;
+	}
+
+	/**
+	 * Gets the total size of the cached contents.
+	 */
+	public synchronized long getSize () {
+		return bytes;
+	}
+
+	/**
+	 * Gets the number of cached files.
+	 */
+	public synchronized int getCount () {
+		return entries.size();
+	}
+
+	public synchronized String toString () {
+		return "ContentCache[" + entries.size() + " files, " + bytes
+			+ " bytes, " + hits + " hits, " + misses + " misses, "
+			+ evictions + " evictions]";
+	}
+
+}
@@ -0,0 +1,152 @@
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.zip.*;
+
+/**
+ * Sends the contents of a file compressed with gzip or deflate as it
+ * is read. The compressed size is not known in advance. The output 
+ * only depends on the file contents, so every compression of a file 
+ * gives the same bytes.
+ *
+ */
+public class DeflaterContent extends Content {
+
+	/**
+	 * The size of the input and output buffers.
+	 */
+	private static final int BUFFER_SIZE = 16384;
+
+	/**
+	 * A gzip header without file name or modification time.
+	 */
+	private static final byte[] GZIP_HEADER = {
+		0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff
+	};
+
+	private FileChannel file;
+
+	private Deflater deflater;
+
+	/**
+	 * The checksum of the uncompressed data, for gzip only.
+	 */
+	private CRC32 crc;
+
+	private byte[] input = new byte[BUFFER_SIZE];
+
+	private ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+
+	private byte[] output = new byte[BUFFER_SIZE];
+
+	/**
+	 * The compressed data that has not been sent yet.
+	 */
+	private ByteBuffer outputBuffer = ByteBuffer.wrap(output);
+
+	private boolean headerDone = false;
+
+	private boolean eof = false;
+
+	private boolean done = false;
+
+	/**
+	 * Creates a compressing content.
+	 *
+	 * @param coding "gzip" or "deflate".
+	 */
+	public DeflaterContent (FileChannel file, String coding) {
+		boolean gzip = coding.equals("gzip");
+		this.file = file;
+		this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+		this.crc = gzip ? new CRC32() : null;
+		this.headerDone = !gzip;
+		outputBuffer.limit(0);
+	}
+
+	public boolean writeTo (WritableByteChannel to) throws IOException {
+		while (true) {
+			if (outputBuffer.hasRemaining()) {
+				to.write(outputBuffer);
+				if (outputBuffer.hasRemaining())
+					return false;
+			}
+			if (done) {
+				close();
+				return true;
+			}
+			fill();
+		}
+	}
+
+	/**
+	 * Compresses more of the file into the output buffer.
+	 */
+	private void fill () throws IOException {
+		int n = 0;
+		if (!headerDone) {
+			System.arraycopy(GZIP_HEADER, 0, output, 0, GZIP_HEADER.length);
+			n = GZIP_HEADER.length;
+			headerDone = true;
+		}
+
+		while (n < output.length) {
+			if (deflater.needsInput() && !eof) {
+				inputBuffer.clear();
+				int r = file.read(inputBuffer);
+				if (r == -1) {
+					eof = true;
+					deflater.finish();
+				} else {
+					if (crc != null)
+						crc.update(input, 0, r);
+					deflater.setInput(input, 0, r);
+				}
+			}
+			int d = deflater.deflate(output, n, output.length - n);
+			n += d;
+			if (deflater.finished()) {
+				if (crc != null) {
+					// the trailer goes in the next buffer if there is
+					// no room for it
+					if (output.length - n < 8)
+						break;
+					n = putInt(n, (int)crc.getValue());
+					n = putInt(n, (int)deflater.getBytesRead());
+				}
+				done = true;
+				break;
+			}
+			if (d == 0 && !deflater.needsInput())
+				break;
+		}
+		outputBuffer.clear();
+		outputBuffer.limit(n);
+	}
+
+	/**
+	 * Puts an int in little-endian order, as gzip wants it.
+	 */
+	private int putInt (int n, int v) {
+		output[n++] = (byte)v;
+		output[n++] = (byte)(v >> 8);
+		output[n++] = (byte)(v >> 16);
+		output[n++] = (byte)(v >> 24);
+		return n;
+	}
+
+	public void close () throws IOException {
+		deflater.end();
+		file.close();
+	}
+
+	public long getSize () {
+		return -1;
+	}
+
+	public String getContentType () {
+		return null;
+	}
+
+}
@@ -0,0 +1,522 @@
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.text.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Keeps directory listings in memory, keyed by canonical path. A
+ * directory is read, sorted and encoded once, as HTML table rows and
+ * as JSON objects, and requests for it are then served from the
+ * encoded rows, all of them or a page at a time, without copying them.
+ * Only the few lines around the rows are made for each request.
+ *
+ * A listing is used while the directory has the entity tag it had when
+ * the listing was made, which changes when entries are added, removed
+ * or renamed. When the server root is watched, a change to an entry
+ * drops the listing of its directory too, so that sizes and dates stay
+ * current. The total size of the listings is bounded and the least
+ * recently used ones are dropped first.
+ *
+ */
+public class DirectoryListings {
+
+	/**
+	 * The number of entries on a page.
+	 */
+	public static final int PAGE_SIZE = 1000;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String HTML_TYPE = "text/html; charset=utf-8";
+
+	private static final String JSON_TYPE = "application/json";
+
+	/**
+	 * A directory entry, while a listing is made.
+	 */
+	private static class Entry implements Comparable<Entry> {
+
+		String name;
+
+		boolean directory;
+
+		long size;
+
+		long lastModified;
+
+		Entry (String name, BasicFileAttributes attrs) {
+			this.name = name;
+			this.directory = attrs.isDirectory();
+			this.size = attrs.size();
+			this.lastModified = attrs.lastModifiedTime().toMillis();
+		}
+
+		/**
+		 * Directories come first, then names in case-insensitive order.
+		 */
+		public int compareTo (Entry e) {
+			if (directory != e.directory)
+				return directory ? -1 : 1;
+			int c = String.CASE_INSENSITIVE_ORDER.compare(name, e.name);
+			return (c != 0) ? c : name.compareTo(e.name);
+		}
+	}
+
+	/**
+	 * The sorted and encoded listing of a directory.
+	 */
+	public static class Listing {
+
+		/**
+		 * The entity tag of the directory it was made from.
+		 */
+		private String sourceETag;
+
+		private String etag;
+
+		/**
+		 * The latest modification time of the directory and its
+		 * entries.
+		 */
+		private long lastModified;
+
+		/**
+		 * The request path of the directory, ending in '/'.
+		 */
+		private String path;
+
+		private int count;
+
+		/**
+		 * The encoded rows, read-only, and where each starts, with the
+		 * end of the last one after them.
+		 */
+		private ByteBuffer html;
+
+		private int[] htmlRows;
+
+		/**
+		 * The encoded JSON objects. Each but the first starts with the
+		 * comma that separates it from the one before.
+		 */
+		private ByteBuffer json;
+
+		private int[] jsonRows;
+
+		public String getETag () {
+			return etag;
+		}
+
+		public long getLastModified () {
+			return lastModified;
+		}
+
+		/**
+		 * Gets the number of entries.
+		 */
+		public int getCount () {
+			return count;
+		}
+
+		/**
+		 * Gets the number of pages, which is at least one.
+		 */
+		public int getPages () {
+			return Math.max(1, (count + PAGE_SIZE - 1) / PAGE_SIZE);
+		}
+
+		public long getLength () {
+			return html.capacity() + json.capacity();
+		}
+
+		/**
+		 * Makes the content that sends the listing.
+		 *
+		 * @param asJson Whether to send JSON rather than HTML.
+		 * @param page The page, counting from 1, or 0 for all entries.
+		 */
+		public Content getContent (boolean asJson, int page)
+			throws IOException {
+			if (page < 0 || page > getPages())
+				throw new IllegalArgumentException("No page " + page);
+			int from = 0;
+			int to = count;
+			if (page > 0) {
+				from = (page - 1) * PAGE_SIZE;
+				to = Math.min(count, from + PAGE_SIZE);
+			}
+			StringBuilder head = new StringBuilder(512);
+			String tail;
+			ByteBuffer rows;
+			int start;
+			int end;
+			if (asJson) {
+				head.append("{\"path\":\"");
+				appendJson(head, path);
+				head.append("\",\"count\":").append(count);
+				if (page > 0) {
+					head.append(",\"page\":").append(page)
+						.append(",\"pages\":").append(getPages());
+				}
+				head.append(",\"entries\":[\n");
+				tail = "]}\n";
+				rows = json.duplicate();
+				start = jsonRows[from];
+				// leave out the comma before the first one sent
+				if (from > 0 && from < to)
+					start++;
+				end = jsonRows[to];
+			} else {
+				head.append("<!DOCTYPE html>\n<html><head>")
+					.append("<meta charset=\"utf-8\"><title>Index of ");
+				appendHtml(head, path);
+				head.append("</title></head><body>\n<h1>Index of ");
+				appendHtml(head, path);
+				head.append("</h1>\n");
+				if (page > 0 && getPages() > 1) {
+					head.append("<p>Page ").append(page).append(" of ")
+						.append(getPages());
+					if (page > 1) {
+						head.append(" <a href=\"?page=").append(page - 1)
+							.append("\">Previous</a>");
+					}
+					if (page < getPages()) {
+						head.append(" <a href=\"?page=").append(page + 1)
+							.append("\">Next</a>");
+					}
+					head.append("</p>\n");
+				}
+				head.append("<table>\n<tr><th>Name</th><th>Size</th>")
+					.append("<th>Modified</th></tr>\n");
+				if (path.length() > 1 && from == 0) {
+					String parent = path.substring(
+						0, path.lastIndexOf('/', path.length() - 2) + 1);
+					head.append("<tr><td><a href=\"");
+					HttpCodings.appendPath(head, parent);
+					head.append("\">../</a></td><td>-</td><td></td></tr>\n");
+				}
+				tail = "</table>\n</body></html>\n";
+				rows = html.duplicate();
+				start = htmlRows[from];
+				end = htmlRows[to];
+			}
+			rows.position(start);
+			rows.limit(end);
+			Content[] parts = {
+				new BufferContent(
+					ByteBuffer.wrap(head.toString().getBytes(UTF_8)), null),
+				new BufferContent(rows.slice(), null),
+				new BufferContent(ByteBuffer.wrap(tail.getBytes(UTF_8)), null)
+			};
+			return new SequenceContent(parts, getContentType(asJson));
+		}
+	}
+
+	/**
+	 * Gets the type of the listings sent as HTML, or as JSON.
+	 */
+	public static String getContentType (boolean asJson) {
+		return asJson ? JSON_TYPE : HTML_TYPE;
+	}
+
+	private LinkedHashMap<String,Listing> listings =
+		new LinkedHashMap<String,Listing>(16, 0.75f, true);
+
+	/**
+	 * The maximum total size of the listings.
+	 */
+	private long maxBytes;
+
+	/**
+	 * The total size of the listings.
+	 */
+	private long bytes = 0;
+
+	/**
+	 * Counts changes, so that a listing made while a change was seen is
+	 * not kept.
+	 */
+	private int generation = 0;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param maxBytes The maximum total size of the listings.
+	 */
+	public DirectoryListings (long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Looks up a listing.
+	 *
+	 * @param dir The directory, with a canonical path.
+	 * @param etag The entity tag the directory has now.
+	 * @return The listing, or null if there is none for this version
+	 * of the directory.
+	 */
+	public synchronized Listing get (File dir, String etag) {
+		Listing l = listings.get(dir.getPath());
+		if (l == null || !l.sourceETag.equals(etag)) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return l;
+	}
+
+	/**
+	 * Reads a directory and adds its listing.
+	 *
+	 * @param dir The directory, with a canonical path.
+	 * @param etag The entity tag the directory has now.
+	 * @param path The request path of the directory.
+	 */
+	public Listing load (File dir, String etag, String path)
+		throws IOException {
+		int gen;
+		synchronized (this) {
+			gen = generation;
+		}
+		Listing l = read(dir, etag, path);
+		synchronized (this) {
+			if (gen == generation)
+				put(dir.getPath(), l);
+		}
+		return l;
+	}
+
+	/**
+	 * Adds a listing, dropping the least recently used ones if needed.
+	 */
+	private void put (String key, Listing listing) {
+		if (listing.getLength() > maxBytes)
+			return;
+		Listing old = listings.put(key, listing);
+		if (old != null)
+			bytes -= old.getLength();
+		bytes += listing.getLength();
+
+		Iterator<Listing> i = listings.values().iterator();
+		while (bytes > maxBytes && i.hasNext()) {
+			bytes -= i.next().getLength();
+			i.remove();
+		}
+	}
+
+	/**
+	 * Reads, sorts and encodes a directory listing.
+	 *
+	 * @param dir The directory, with a canonical path.
+	 * @param etag The entity tag the directory has now.
+	 * @param path The request path of the directory.
+	 */
+	public static Listing read (File dir, String etag, String path)
+		throws IOException {
+		Path d = dir.toPath();
+		List<Entry> entries = new ArrayList<Entry>();
+		DirectoryStream<Path> stream = Files.newDirectoryStream(d);
+		try {
+			Iterator<Path> i = stream.iterator();
+			while (i.hasNext()) {
+				Path p = i.next();
+				String name = p.getFileName().toString();
+				if (RequestBody.isStagingName(name))
+					continue;
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(
+						p, BasicFileAttributes.class);
+				} catch (IOException ex) {
+					// a broken link, or removed meanwhile
+					continue;
+				}
+				entries.add(new Entry(name, attrs));
+			}
+		} catch (DirectoryIteratorException ex) {
+			throw ex.getCause();
+		} finally {
+			stream.close();
+		}
+		Collections.sort(entries);
+
+		Listing l = new Listing();
+		l.sourceETag = etag;
+		l.path = path.endsWith("/") ? path : path + "/";
+		l.count = entries.size();
+		l.lastModified = Files.getLastModifiedTime(d).toMillis();
+
+		DateFormat htmlDate = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss",
+												   Locale.US);
+		htmlDate.setTimeZone(TimeZone.getTimeZone("UTC"));
+		DateFormat jsonDate = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'",
+												   Locale.US);
+		jsonDate.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		ByteArrayOutputStream html = new ByteArrayOutputStream();
+		ByteArrayOutputStream json = new ByteArrayOutputStream();
+		l.htmlRows = new int[l.count + 1];
+		l.jsonRows = new int[l.count + 1];
+		StringBuilder sb = new StringBuilder(256);
+		for (int i = 0; i < l.count; i++) {
+			Entry e = entries.get(i);
+			Date date = new Date(e.lastModified);
+			l.lastModified = Math.max(l.lastModified, e.lastModified);
+
+			l.htmlRows[i] = html.size();
+			sb.setLength(0);
+			sb.append("<tr><td><a href=\"");
+			HttpCodings.appendPath(sb, l.path);
+			HttpCodings.appendPath(sb, e.name);
+			if (e.directory)
+				sb.append('/');
+			sb.append("\">");
+			appendHtml(sb, e.name);
+			if (e.directory)
+				sb.append('/');
+			sb.append("</a></td><td>");
+			if (e.directory)
+				sb.append('-');
+			else
+				sb.append(e.size);
+			sb.append("</td><td>").append(htmlDate.format(date))
+				.append("</td></tr>\n");
+			html.write(sb.toString().getBytes(UTF_8));
+
+			l.jsonRows[i] = json.size();
+			sb.setLength(0);
+			if (i > 0)
+				sb.append(',');
+			sb.append("{\"name\":\"");
+			appendJson(sb, e.name);
+			sb.append("\",\"type\":\"")
+				.append(e.directory ? "directory" : "file")
+				.append("\",\"size\":").append(e.directory ? 0 : e.size)
+				.append(",\"modified\":\"").append(jsonDate.format(date))
+				.append("\"}\n");
+			json.write(sb.toString().getBytes(UTF_8));
+		}
+		l.htmlRows[l.count] = html.size();
+		l.jsonRows[l.count] = json.size();
+
+		byte[] jsonBytes = json.toByteArray();
+		l.html = toDirect(html.toByteArray());
+		l.json = toDirect(jsonBytes);
+
+		// the directory's tag does not change with the sizes and dates
+		// of its entries, which the rows have
+		CRC32 crc = new CRC32();
+		crc.update(jsonBytes);
+		l.etag = etag.substring(0, etag.length() - 1) + "-"
+			+ Long.toHexString(crc.getValue()) + '"';
+		return l;
+	}
+
+	private static ByteBuffer toDirect (byte[] b) {
+		ByteBuffer buf = ByteBuffer.allocateDirect(b.length);
+		buf.put(b);
+		buf.flip();
+		return buf.asReadOnlyBuffer();
+	}
+
+	private static void appendHtml (StringBuilder sb, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '<': sb.append("&lt;"); break;
+			case '>': sb.append("&gt;"); break;
+			case '&': sb.append("&amp;"); break;
+			case '"': sb.append("&quot;"); break;
+			case '\'': sb.append("&#39;"); break;
+			default: sb.append(c);
+			}
+		}
+	}
+
+	private static void appendJson (StringBuilder sb, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append("\\u00");
+				sb.append(Character.forDigit(c >> 4, 16));
+				sb.append(Character.forDigit(c & 0xf, 16));
+			} else {
+				sb.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Drops the listing of a changed file's directory, and its own if
+	 * it is a directory.
+	 *
+	 * @param file The file, with a canonical path.
+	 */
+	public synchronized void remove (File file) {
+		generation++;
+		remove(file.getPath());
+		File parent = file.getParentFile();
+		if (parent != null)
+			remove(parent.getPath());
+	}
+
+	private void remove (String key) {
+		Listing l = listings.remove(key);
+		if (l != null)
+			bytes -= l.getLength();
+	}
+
+	/**
+	 * Drops all listings.
+	 */
+	public synchronized void clear () {
+		generation++;
+		listings.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Gets the number of lookups that found a listing.
+	 */
+	public synchronized long getHits () {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of lookups that did not find a listing.
+	 */
+	public synchronized long getMisses () {
+		return misses;
+	}
+
+	/**
+	 * Gets the number of cached listings.
+	 */
+	public synchronized int getCount () {
+		return listings.size();
+	}
+
+	/**
+	 * Gets the total size of the cached listings.
+	 */
+	public synchronized long getSize () {
+		return bytes;
+	}
+
+	public synchronized String toString () {
+		return "DirectoryListings[" + listings.size() + " listings, "
+			+ bytes + " bytes, " + hits + " hits, " + misses + " misses]";
+	}
+
+}
@@ -0,0 +1,44 @@
+
+/**
+ * Decides which entries a ContentCache evicts when it is full. The
+ * cache tells the policy about every lookup, insertion and removal,
+ * and asks it for victims until the entries fit. Calls are made with
+ * the cache locked, so implementations need no locking of their own.
+ *
+ */
+public interface EvictionPolicy {
+
+	/**
+	 * Called on every lookup, whether it hits or not.
+	 */
+	void recordRequest (String key);
+
+	/**
+	 * Called when a lookup finds the key in the cache.
+	 */
+	void recordHit (String key);
+
+	/**
+	 * Called when an entry has been added to the cache.
+	 *
+	 * @param weight The size of the entry in bytes.
+	 */
+	void added (String key, long weight);
+
+	/**
+	 * Called when the cache removes an entry for another reason than 
+	 * eviction, for instance because the file has changed.
+	 */
+	void removed (String key);
+
+	/**
+	 * Chooses the next entry to evict and forgets about it. This may be
+	 * the entry that was just added, if the policy decides that it is
+	 * not worth keeping.
+	 *
+	 * @return The key of the entry to evict, or null if the policy 
+	 * knows of no entries.
+	 */
+	String evict ();
+
+}
@@ -3,7 +3,8 @@ import java.io.*;
 import java.nio.channels.*;
 
 /**
- * Sends the contents of a file.
+ * Sends the contents of a file, or a range of it, with 
+ * FileChannel.transferTo().
  *
  */
 public class FileContent extends Content {
@@ -19,30 +20,63 @@ public class FileContent extends Content {
 	private long size;
 
 	/**
-	 * The number of bytes already sent.
+	 * The file position of the next byte to send.
 	 */
 	private long offset;
 
+	/**
+	 * The file position after the last byte to send.
+	 */
+	private long end;
+
+	/**
+	 * Whether the file is closed once the content has been sent.
+	 */
+	private boolean close;
+
 
 	public FileContent (FileChannel file) throws IOException {
+		this(file, 0, file.size(), true);
+	}
+
+	/**
+	 * Creates a content that sends a range of a file.
+	 *
+	 * @param start The position of the first byte to send.
+	 * @param length The number of bytes to send.
+	 * @param close Whether to close the file once they have been sent.
+	 * Parts of a multipart response share the file, and only the last 
+	 * one closes it.
+	 */
+	public FileContent (FileChannel file, long start, long length, 
+						boolean close) {
 		this.file = file;
-		this.size = file.size();
-		this.offset = 0;
+		this.size = length;
+		this.offset = start;
+		this.end = start + length;
+		this.close = close;
 	}
 
 	public boolean writeTo (WritableByteChannel to) throws IOException {
-		long sent = file.transferTo(offset, size - offset, to);
+		if (offset < end) {
+			long sent = file.transferTo(offset, end - offset, to);
 
-		offset += sent;
+			offset += sent;
+		}
 
-		if (offset >= size) {
-			file.close();
+		if (offset >= end) {
+			if (close)
+				file.close();
 			return true;
 		}
 
 		return false;
 	}
 
+	public void close () throws IOException {
+		file.close();
+	}
+
 	public long getSize () {
 		return size;
 	}
@@ -2,17 +2,44 @@
 import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
+import java.util.*;
 
 /**
- * Handles GET and HEAD requests for files and directory listings.
+ * Handles GET and HEAD requests for files and directory listings, and
+ * if uploads are allowed PUT and POST requests that store files.
+ * Directories without an index file are listed as HTML, or as JSON
+ * with "?format=json", with all their entries or with "?page=n" a page
+ * of them.
  *
  */
-public class FileSender {
+public class FileSender implements RequestHandler {
 
 	/**
-	 * The file names to check when looking for a directory index.
+	 * The most request paths whose resolution is remembered.
 	 */
-	private static final String[] DIR_INDEX = { "index.html", "index.htm" };
+	private static final int MAX_PATHS = 10000;
+
+	/**
+	 * The content codings that are understood, in order of preference.
+	 */
+	private static final String[] CODINGS = { "br", "gzip", "deflate" };
+
+	/**
+	 * The bits for the codings in a mask of accepted codings.
+	 */
+	private static final int GZIP = 1 << 1;
+
+	private static final int DEFLATE = 1 << 2;
+
+	/**
+	 * The suffixes of precompressed siblings, for the first codings.
+	 */
+	private static final String[] SIBLING_SUFFIXES = { ".br", ".gz" };
+
+	/**
+	 * The smallest file that is compressed.
+	 */
+	private static final long MIN_COMPRESSED_SIZE = 256;
 
 	private NioWebServer server;
 
@@ -21,6 +48,44 @@ public class FileSender {
 	 */
 	private File rootFile;
 
+	/**
+	 * Keeps small files in memory, or null if files are always read 
+	 * from disk.
+	 */
+	private ContentCache contentCache = null;
+
+	/**
+	 * Keeps medium-size files mapped, or null if files are not mapped.
+	 */
+	private MappedFileCache mappedFiles = null;
+
+	/**
+	 * Keeps compressed variants of files, or null if files are not 
+	 * compressed unless they have precompressed siblings.
+	 */
+	private VariantCache variants = null;
+
+	/**
+	 * Keeps sorted and encoded directory listings, or null if
+	 * directories are read for every request.
+	 */
+	private DirectoryListings listings = null;
+
+	/**
+	 * Resolves request paths to files.
+	 */
+	private PathCache pathCache;
+
+	/**
+	 * Makes the boundaries of multipart responses.
+	 */
+	private Random random = new Random();
+
+	/**
+	 * Whether PUT and POST requests store their bodies as files.
+	 */
+	private boolean uploadsAllowed = false;
+
 	/**
 	 * Creates a new FileSender.
 	 *
@@ -34,6 +99,135 @@ public class FileSender {
 			throw new FileNotFoundException("Server root " 
 											+ rootFile 
 											+ " is not a directory.");
+
+		this.pathCache = new PathCache(
+			this.rootFile, MAX_PATHS, new MimeTypes(), 
+			new PathCache.Listener() {
+				public void fileChanged (File file) {
+					forget(file);
+				}
+			});
+		if (!pathCache.isWatching())
+			server.log("Cannot watch " + this.rootFile 
+					   + ", request paths are not cached");
+	}
+
+	/**
+	 * Sets the types that files are sent with.
+	 */
+	public void setMimeTypes (MimeTypes mimeTypes) {
+		pathCache.setMimeTypes(mimeTypes);
+	}
+
+	/**
+	 * Stops watching the server root and compressing files.
+	 */
+	public void close () {
+		pathCache.close();
+		if (variants != null)
+			variants.close();
+	}
+
+	/**
+	 * Drops a changed file from the caches.
+	 *
+	 * @param file The file, or null if any file may have changed.
+	 */
+	private void forget (File file) {
+		ContentCache cc = contentCache;
+		MappedFileCache mf = mappedFiles;
+		VariantCache vc = variants;
+		DirectoryListings dl = listings;
+		if (file == null) {
+			if (cc != null)
+				cc.clear();
+			if (mf != null)
+				mf.clear();
+			if (vc != null)
+				vc.clear();
+			if (dl != null)
+				dl.clear();
+		} else {
+			if (dl != null)
+				dl.remove(file);
+			if (cc != null)
+				cc.remove(file);
+			if (mf != null)
+				mf.remove(file);
+			if (vc != null)
+				vc.remove(file);
+		}
+	}
+
+	/**
+	 * Sets the cache for small files. If this is null, files are always
+	 * read from disk.
+	 */
+	public void setContentCache (ContentCache contentCache) {
+		// the watcher tells about changes, so hits need not look
+		if (contentCache != null)
+			contentCache.setChecking(!pathCache.isWatching());
+		this.contentCache = contentCache;
+	}
+
+	/**
+	 * Gets the cache for small files, or null if there is none.
+	 */
+	public ContentCache getContentCache () {
+		return contentCache;
+	}
+
+	/**
+	 * Sets the cache of mapped files. If this is null, files that are
+	 * not in the content cache are sent with FileChannel.transferTo().
+	 */
+	public void setMappedFiles (MappedFileCache mappedFiles) {
+		this.mappedFiles = mappedFiles;
+	}
+
+	/**
+	 * Gets the cache of mapped files, or null if there is none.
+	 */
+	public MappedFileCache getMappedFiles () {
+		return mappedFiles;
+	}
+
+	/**
+	 * Sets the cache of compressed variants. If this is null, files are
+	 * only sent compressed if they have precompressed siblings.
+	 */
+	public void setVariants (VariantCache variants) {
+		this.variants = variants;
+	}
+
+	/**
+	 * Gets the cache of compressed variants, or null if there is none.
+	 */
+	public VariantCache getVariants () {
+		return variants;
+	}
+
+	/**
+	 * Sets the cache of directory listings. If this is null,
+	 * directories are read and sorted for every request.
+	 */
+	public void setListings (DirectoryListings listings) {
+		this.listings = listings;
+	}
+
+	/**
+	 * Gets the cache of directory listings, or null if there is none.
+	 */
+	public DirectoryListings getListings () {
+		return listings;
+	}
+
+	/**
+	 * Sets whether PUT and POST requests store their bodies as the
+	 * requested files.
+	 */
+	public void setUploadsAllowed (boolean uploadsAllowed) {
+		this.uploadsAllowed = uploadsAllowed;
 	}
 
 	/**
@@ -46,92 +240,593 @@ public class FileSender {
 
 		String method = request.getMethod();
 		if (!(method.equals("GET") || method.equals("HEAD"))) {
-			response.addHeader("Allow", "GET, HEAD");
-			throw new ServerException(501, "Method not implemented");
+			if (uploadsAllowed) {
+				throw new ServerException(501, "Method not implemented",
+										  "Allow", "GET, HEAD, PUT, POST");
+			}
+			if (method.equals("PUT") || method.equals("POST")) {
+				throw new ServerException(405, "Method Not Allowed",
+										  "Allow", "GET, HEAD");
+			}
+			throw new ServerException(501, "Method not implemented",
+									  "Allow", "GET, HEAD");
 		}	
 	}
 
 	/**
-	 * Gets the local filename that was requested.
+	 * Checks that a decoded request path has no control characters,
+	 * which no file should be named with, and which would end a header
+	 * or log line early, and that it does not name an upload being
+	 * staged.
+	 *
+	 * @throws ServerException If it has, or does.
 	 */
-	private File getFile (HttpRequest request) throws IOException {
-		String requestPath = request.getRequestURI();
-		StringBuffer path = new StringBuffer(
-			requestPath.replace('/', File.separatorChar));
+	private static void checkPath (String path) throws ServerException {
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if (c < 0x20 || c == 0x7f)
+				throw new ServerException(400, "Bad request");
+		}
+		if (RequestBody.isStagingName(
+				path.substring(path.lastIndexOf('/') + 1)))
+			throw new ServerException(404, "Not found");
+	}
+
+	/**
+	 * Stores the body of a PUT or POST request as the requested file,
+	 * replacing the file if it exists. The directory it goes in must
+	 * exist.
+	 */
+	private void receiveFile (HttpRequest request, HttpResponse response)
+		throws ServerException, IOException {
+
+		String path = request.getRequestURI();
+		if (path.endsWith("/"))
+			throw new ServerException(405, "Method Not Allowed",
+									  "Allow", "GET, HEAD");
+		checkBlocking(response);
+		File file = new File(rootFile, path.substring(1)
+							 .replace('/', File.separatorChar))
+			.getCanonicalFile();
+		if (!pathCache.isBelowRoot(file) || file.equals(rootFile))
+			throw new ServerException(403, "Forbidden");
+		if (!file.getParentFile().isDirectory() || file.isDirectory())
+			throw new ServerException(409, "Conflict");
 
-		// make path relative
-		while (path.length() > 0 && path.charAt(0) == File.separatorChar) {
-			path.deleteCharAt(0);
+		boolean existed = file.exists();
+		RequestBody body = request.getBody();
+		if (body != null) {
+			body.moveTo(file);
+		} else {
+			new FileOutputStream(file).close();
 		}
+		// the watcher may tell about the change later
+		pathCache.clear();
+		forget(file);
 
-		return new File(rootFile, path.toString());
+		if (existed) {
+			response.setStatus(204, "No Content");
+		} else {
+			response.setStatus(201, "Created");
+			StringBuilder location = new StringBuilder(path.length() + 16);
+			HttpCodings.appendPath(location, path);
+			response.addHeader("Location", location.toString());
+			response.addHeader("Content-Length", 0);
+		}
 	}
 
 	/**
-	 * Gets the file that that should be sent. If the requested file
-	 * is a directory we look for index.html in that directory.
+	 * Gets the file that should be sent. If the requested file is a 
+	 * directory we look for index.html in that directory.
 	 * 
-	 * @param file The requested file
-	 * @return The file to send
+	 * @return The resolution, with a canonical path.
 	 * @throws ServerException the file file cannot be found, does not 
 	 * has read permissions or is outside of the sever root directory.
 	 */
-	private File checkFile (File file) 
+	private PathCache.Resolution getFile (HttpRequest request,
+										  HttpResponse response)
 		throws ServerException, IOException {
 
-		if (file.isDirectory()) {
-			for (int i = 0; i < DIR_INDEX.length; i++) {
-				File index = new File(file, DIR_INDEX[i]);
-				if (index.exists()) {
-					// FIX - what if it is a directory?
-					file = index;
-					break;
+		PathCache.Resolution r = resolve(request.getRequestURI(), response);
+		switch (r.getCode()) {
+		case 200:
+			return r;
+		case 403:
+			throw new ServerException(403, "Forbidden");
+		default:
+			throw new ServerException(404, "Not found");
+		}
+	}
+
+	/**
+	 * Resolves a request path, from the path cache if it is there.
+	 */
+	private PathCache.Resolution resolve (String path, HttpResponse response)
+		throws IOException {
+		PathCache.Resolution r = pathCache.peek(path);
+		if (r == null) {
+			checkBlocking(response);
+			r = pathCache.get(path);
+		}
+		return r;
+	}
+
+	/**
+	 * Gives up making the response if it is being made on a reactor
+	 * thread, before anything that may wait for the file system.
+	 */
+	private static void checkBlocking (HttpResponse response) 
+		throws WouldBlockException {
+		if (!response.isBlockingAllowed())
+			throw WouldBlockException.INSTANCE;
+	}
+
+	/**
+	 * Checks whether the client's copy of the file is current, going by
+	 * If-None-Match or, if there is none, If-Modified-Since.
+	 *
+	 * @param etag The entity tag of the representation being sent.
+	 * @param lastModified The modification time of the file.
+	 */
+	private boolean isNotModified (HttpRequest request, String etag, 
+								   long lastModified, 
+								   HttpResponse response) {
+		List<String> tags = request.getHeaders(HttpRequest.IF_NONE_MATCH);
+		if (!tags.isEmpty()) {
+			for (int i = 0; i < tags.size(); i++) {
+				StringTokenizer st = new StringTokenizer(tags.get(i), ",");
+				while (st.hasMoreTokens()) {
+					String tag = st.nextToken().trim();
+					// weak comparison, as for all GET and HEAD requests
+					if (tag.startsWith("W/"))
+						tag = tag.substring(2);
+					if (tag.equals("*") || tag.equals(etag))
+						return true;
 				}
 			}
+			return false;
 		}
-		
-		if (!file.exists()) 
-			throw new ServerException(404, "Not found");
-		
-		if (!file.canRead())
-			throw new ServerException(403, "Forbidden");
 
-		// check that the file is below the root
-		if (!file.getCanonicalPath().startsWith(rootFile.getPath()))
-			throw new ServerException(404, "Not found");
+		String since = request.getHeader(HttpRequest.IF_MODIFIED_SINCE);
+		if (since == null)
+			return false;
+		long time = response.getCodings().parseDate(since);
+		// dates in headers have whole seconds
+		return time != -1 && lastModified / 1000 <= time / 1000;
+	}
+
+	/**
+	 * Gets the content codings the client accepts, as a mask with a
+	 * bit for each of CODINGS. Codings with q=0 are not accepted, and
+	 * "*" accepts all codings that are not listed.
+	 */
+	private static int acceptedCodings (HttpRequest request) {
+		List<String> values = request.getHeaders(HttpRequest.ACCEPT_ENCODING);
+		int accepted = 0;
+		int listed = 0;
+		boolean any = false;
+		for (int i = 0; i < values.size(); i++) {
+			StringTokenizer st = new StringTokenizer(values.get(i), ",");
+			while (st.hasMoreTokens()) {
+				String element = st.nextToken();
+				int semi = element.indexOf(';');
+				String coding = (semi == -1 ? element 
+								 : element.substring(0, semi)).trim();
+				boolean ok = semi == -1 
+					|| qValue(element.substring(semi+1)) > 0;
+				if (coding.equals("*")) {
+					any = ok;
+					continue;
+				}
+				if (coding.equalsIgnoreCase("x-gzip"))
+					coding = "gzip";
+				for (int j = 0; j < CODINGS.length; j++) {
+					if (coding.equalsIgnoreCase(CODINGS[j])) {
+						listed |= 1 << j;
+						if (ok)
+							accepted |= 1 << j;
+					}
+				}
+			}
+		}
+		if (any)
+			accepted |= ~listed & ((1 << CODINGS.length) - 1);
+		return accepted;
+	}
+
+	/**
+	 * Gets the q parameter from the parameters of a list element.
+	 *
+	 * @return The q value, 1 if there is none, 0 if it is malformed.
+	 */
+	private static double qValue (String params) {
+		StringTokenizer st = new StringTokenizer(params, ";");
+		while (st.hasMoreTokens()) {
+			String p = st.nextToken().trim();
+			if (p.length() > 2 && (p.charAt(0) == 'q' || p.charAt(0) == 'Q')
+				&& p.charAt(1) == '=') {
+				try {
+					return Double.parseDouble(p.substring(2).trim());
+				} catch (NumberFormatException ex) {
+					return 0;
+				}
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * Sets up a response with a file compressed by the server. The
+	 * compressed variant is sent if it has been made, otherwise the
+	 * file is compressed as it is sent and a variant is made in the
+	 * background for later requests.
+	 */
+	private void sendCompressed (HttpRequest request, 
+								 PathCache.Resolution resolved,
+								 String coding, HttpResponse response) 
+		throws IOException {
+
+		String sourceETag = resolved.getETag();
+		String etag = sourceETag.substring(0, sourceETag.length() - 1) 
+			+ "-" + coding + "\"";
+		response.addHeader("ETag", etag);
+		response.addHeader("Content-Encoding", coding);
+		response.addDateHeader("Last-modified", resolved.getLastModified());
+		if (isNotModified(request, etag, resolved.getLastModified(), 
+						  response)) {
+			response.setStatus(304, "Not Modified");
+			return;
+		}
+
+		response.addContentType(resolved.getContentType());
+		File file = resolved.getFile();
+		VariantCache.Variant variant = variants.get(file, coding, sourceETag);
+		if (variant != null) {
+			if (request.allowsContent())
+				response.setContent(new BufferContent(variant.getBuffer(), null));
+			else
+				response.addHeader("Content-Length", variant.getLength());
+			return;
+		}
+
+		if (request.allowsContent())
+			checkBlocking(response);
+		if (variants.accepts(resolved.getLength()))
+			variants.compressLater(file, coding, sourceETag);
+		if (request.allowsContent()) {
+			FileChannel fc = new FileInputStream(file).getChannel();
+			response.setContent(new DeflaterContent(fc, coding));
+		}
+	}
+
+	/**
+	 * Checks whether a Range header should be used, going by If-Range.
+	 * The range is used if If-Range has the file's entity tag, or its
+	 * exact modification date.
+	 */
+	private boolean isRangeValid (HttpRequest request, 
+								  PathCache.Resolution resolved,
+								  HttpResponse response) {
+		String ifRange = request.getHeader(HttpRequest.IF_RANGE);
+		if (ifRange == null)
+			return true;
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			// strong comparison, so weak tags never match
+			return ifRange.equals(resolved.getETag());
+		}
+		long time = response.getCodings().parseDate(ifRange);
+		return time != -1 && resolved.getLastModified() / 1000 == time / 1000;
+	}
+
+	/**
+	 * Sets up a 206 response with ranges of a file, or a 416 response
+	 * if none of them are in the file. Ranges are sent from the content
+	 * cache or a mapping if the file is there, and otherwise with 
+	 * transferTo() from the file.
+	 *
+	 * @param type The type of the file, which an encoded file does not
+	 * have itself.
+	 * @return False if the Range header should be ignored.
+	 */
+	private boolean setupRangeResponse (PathCache.Resolution resolved, 
+										String type, String range, 
+										HttpResponse response) 
+		throws ServerException, IOException {
+
+		File file = resolved.getFile();
+		ByteBuffer buf = null;
+		if (contentCache != null) {
+			ContentCache.Entry entry = getCached(resolved, response);
+			if (entry != null)
+				buf = entry.getBuffer();
+		}
+		MappedFileCache.Mapping mapping = null;
+		if (buf == null && mappedFiles != null) {
+			mapping = getMapping(file, response);
+			if (mapping != null)
+				buf = mapping.getBuffer();
+		}
+		FileChannel fc = null;
+		long length;
+		if (buf != null) {
+			length = buf.remaining();
+		} else {
+			checkBlocking(response);
+			fc = new FileInputStream(file).getChannel();
+			length = fc.size();
+		}
+
+		long[] ranges = ByteRanges.parse(range, length);
+		if (ranges == null || ranges.length == 0) {
+			if (fc != null)
+				fc.close();
+			if (ranges == null)
+				return false;
+			throw new ServerException(416, "Range Not Satisfiable",
+									  "Content-Range", "bytes */" + length);
+		}
 
-		return file;
+		response.setStatus(206, "Partial Content");
+		response.addDateHeader("Last-modified", resolved.getLastModified());
+
+		if (ranges.length == 2) {
+			response.addContentType(type);
+			response.addHeader("Content-Range", 
+							   contentRange(ranges[0], ranges[1], length));
+			response.setContent(
+				rangeContent(buf, mapping, fc, ranges[0], ranges[1], true));
+			return true;
+		}
+
+		String boundary = Long.toHexString(random.nextLong()) 
+			+ Long.toHexString(random.nextLong());
+		int n = ranges.length / 2;
+		Content[] parts = new Content[2 * n + 1];
+		for (int i = 0; i < n; i++) {
+			long first = ranges[2*i];
+			long last = ranges[2*i+1];
+			String partHeader = "\r\n--" + boundary + "\r\n"
+				+ "Content-Type: " + type + "\r\n"
+				+ "Content-Range: " + contentRange(first, last, length)
+				+ "\r\n\r\n";
+			parts[2*i] = new BufferContent(
+				response.getCodings().encodePooled(partHeader), null,
+				response.getCodings());
+			parts[2*i+1] = rangeContent(buf, mapping, fc, first, last,
+										i == n - 1);
+		}
+		parts[2*n] = new BufferContent(
+			response.getCodings().encodePooled(
+				"\r\n--" + boundary + "--\r\n"), 
+			null, response.getCodings());
+		response.setContent(new SequenceContent(
+			parts, "multipart/byteranges; boundary=" + boundary));
+		return true;
+	}
+
+	private static String contentRange (long first, long last, long length) {
+		return "bytes " + first + "-" + last + "/" + length;
+	}
+
+	/**
+	 * Makes the content for one range, from a mapping or a buffer if
+	 * there is one and otherwise from the file.
+	 */
+	private static Content rangeContent (ByteBuffer buf, 
+										 MappedFileCache.Mapping mapping,
+										 FileChannel fc, 
+										 long first, long last, 
+										 boolean close) 
+		throws IOException {
+		if (mapping != null)
+			return new MappedFileContent(mapping, first, last - first + 1);
+		if (buf == null)
+			return new FileContent(fc, first, last - first + 1, close);
+		ByteBuffer part = buf.duplicate();
+		part.position((int)first);
+		part.limit((int)last + 1);
+		return new BufferContent(part.slice(), null);
+	}
+
+	/**
+	 * Gets a file from the content cache, reading it into the cache if
+	 * it is not there.
+	 *
+	 * @return The cache entry, or null if the file is too large to be
+	 * cached.
+	 */
+	private ContentCache.Entry getCached (PathCache.Resolution resolved,
+										  HttpResponse response)
+		throws IOException {
+		// known from the resolution, without opening the file
+		if (resolved.getLength() > contentCache.getMaxEntrySize())
+			return null;
+		File file = resolved.getFile();
+		ContentCache.Entry entry = contentCache.get(file);
+		if (entry == null) {
+			checkBlocking(response);
+			entry = cacheFile(file, response);
+		}
+		return entry;
+	}
+
+	/**
+	 * Gets the mapping of a file, mapping it if it is not mapped.
+	 *
+	 * @return The mapping, or null if the file is not in the size band.
+	 */
+	private MappedFileCache.Mapping getMapping (File file, 
+												HttpResponse response)
+		throws IOException {
+		MappedFileCache.Mapping mapping = mappedFiles.peek(file);
+		if (mapping == null) {
+			checkBlocking(response);
+			mapping = mappedFiles.get(file);
+		}
+		return mapping;
+	}
+
+	/**
+	 * Reads a file into memory and adds it to the content cache.
+	 *
+	 * @return The cache entry, or null if the file is too large to be 
+	 * cached.
+	 */
+	private ContentCache.Entry cacheFile (File file, HttpResponse response) 
+		throws IOException {
+
+		int generation = contentCache.getGeneration();
+		long lastModified = file.lastModified();
+		FileInputStream fis = new FileInputStream(file);
+		ByteBuffer buf;
+		try {
+			FileChannel fc = fis.getChannel();
+			long size = fc.size();
+			if (size > contentCache.getMaxEntrySize())
+				return null;
+			buf = ByteBuffer.allocateDirect((int)size);
+			while (buf.hasRemaining() && fc.read(buf) != -1)
+				;
+		} finally {
+			fis.close();
+		}
+		buf.flip();
+		buf = buf.slice();
+
+		byte[] header = HeaderWriter.line(
+			"Last-modified: " 
+			+ response.getCodings().formatDate(lastModified) + "\r\n"
+			+ "Content-Length: " + buf.remaining());
+		ContentCache.Entry entry = 
+			new ContentCache.Entry(buf, lastModified, header);
+		contentCache.put(file, entry, generation);
+		return entry;
 	}
 
 	/**
 	 * Sets up the response according to what we have found out about the
 	 * requested file.
 	 *
-	 * @param file The local file
+	 * @param resolved The local file, which is not a directory
+	 * @param type The type of the file
 	 */
-	private void setupResponse (File file, boolean getContent, 
+	private void setupResponse (PathCache.Resolution resolved, 
+								String type, boolean getContent, 
 								HttpResponse response) throws IOException {
 
-		response.addHeader(
-			"Last-modified", 
-			server.getCodings().formatDate(file.lastModified()));
+		File file = resolved.getFile();
+		if (type != null)
+			response.addContentType(type);
+		if (contentCache != null) {
+			ContentCache.Entry entry = getCached(resolved, response);
+			if (entry != null) {
+				Content content = getContent 
+					? new BufferContent(entry.getBuffer(), null) : null;
+				response.setContent(content, entry.getHeader());
+				return;
+			}
+		}
+
+		if (mappedFiles != null) {
+			MappedFileCache.Mapping mapping = getMapping(file, response);
+			if (mapping != null) {
+				response.addDateHeader("Last-modified", 
+									   mapping.getLastModified());
+				if (getContent)
+					response.setContent(new MappedFileContent(mapping));
+				return;
+			}
+		}
+
+		response.addDateHeader("Last-modified", resolved.getLastModified());
 
 		if (getContent) {
-			if (file.isDirectory()) {
-				String[] files= file.list();
-				StringBuffer sb = new StringBuffer();
-				for (int i = 0; i < files.length; i++){
-					sb.append(files[i]).append('\n');
-				}
-				ByteBuffer buf = 
-					server.getCodings().encode(CharBuffer.wrap(sb));
-				response.setContent(new BufferContent(buf, "text/plain"));
-			} else {
-				FileInputStream fis = new FileInputStream(file);
-				FileChannel fc = fis.getChannel();
-				response.setContent(new FileContent(fc));
+			checkBlocking(response);
+			FileInputStream fis = new FileInputStream(file);
+			FileChannel fc = fis.getChannel();
+			response.setContent(new FileContent(fc));
+		}
+	}
+
+	/**
+	 * Sends the listing of a directory, from the cache if it is there.
+	 * The query may ask for JSON with "format=json" and for a page with
+	 * "page=n", counting from 1.
+	 */
+	private void sendListing (HttpRequest request,
+							  PathCache.Resolution resolved,
+							  HttpResponse response)
+		throws ServerException, IOException {
+		String query = request.getQueryString();
+		boolean json = "json".equals(getParameter(query, "format"));
+		int page = 0;
+		String p = getParameter(query, "page");
+		if (p != null) {
+			try {
+				page = Integer.parseInt(p);
+			} catch (NumberFormatException ex) {
+				throw new ServerException(404, "Not found");
 			}
+			if (page < 1)
+				throw new ServerException(404, "Not found");
+		}
+
+		File dir = resolved.getFile();
+		DirectoryListings dl = listings;
+		DirectoryListings.Listing listing = (dl != null)
+			? dl.get(dir, resolved.getETag()) : null;
+		if (listing == null) {
+			checkBlocking(response);
+			String path = pathCache.getPath(dir);
+			if (dl != null)
+				listing = dl.load(dir, resolved.getETag(), path);
+			else
+				listing = DirectoryListings.read(dir, resolved.getETag(),
+												 path);
 		}
+		if (page > listing.getPages())
+			throw new ServerException(404, "Not found");
+
+		response.addHeader("ETag", listing.getETag());
+		response.addDateHeader("Last-modified", listing.getLastModified());
+		if (isNotModified(request, listing.getETag(),
+						  listing.getLastModified(), response)) {
+			response.setStatus(304, "Not Modified");
+			return;
+		}
+		if (request.allowsContent())
+			response.setContent(listing.getContent(json, page));
+		else
+			response.addContentType(DirectoryListings.getContentType(json));
+	}
+
+	/**
+	 * Gets the value of a parameter in a query string, without decoding
+	 * it.
+	 *
+	 * @return The value, or null if the parameter is not there.
+	 */
+	private static String getParameter (String query, String name) {
+		if (query == null)
+			return null;
+		StringTokenizer st = new StringTokenizer(query, "&");
+		while (st.hasMoreTokens()) {
+			String pair = st.nextToken();
+			int eq = pair.indexOf('=');
+			if (eq == name.length() && pair.startsWith(name))
+				return pair.substring(eq + 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Handles a request for a file. This is the default handler of the
+	 * router.
+	 */
+	public void handle (HttpRequest request, HttpResponse response) 
+		throws ServerException, IOException {
+		handleFileRequest(request, response);
 	}
 
 	/**
@@ -139,10 +834,74 @@ public class FileSender {
 	 */
 	public void handleFileRequest (HttpRequest request, HttpResponse response) 
 		throws ServerException, IOException {
+		checkPath(request.getRequestURI());
+		String method = request.getMethod();
+		if (uploadsAllowed && (method.equals("PUT") || method.equals("POST"))) {
+			receiveFile(request, response);
+			return;
+		}
 		checkMethod(request, response);
-		File requestFile = getFile(request);
-		File localFile = checkFile(requestFile);
-		setupResponse(localFile, request.allowsContent(), response);
+		PathCache.Resolution resolved = getFile(request, response);
+		String type = resolved.getContentType();
+
+		if (!resolved.isDirectory()) {
+			// look for precompressed siblings, which are preferred to
+			// compressing the file
+			int accepted = acceptedCodings(request);
+			String path = pathCache.getPath(resolved.getFile());
+			PathCache.Resolution encoded = null;
+			String coding = null;
+			boolean vary = false;
+			for (int i = 0; i < SIBLING_SUFFIXES.length; i++) {
+				PathCache.Resolution sibling = 
+					resolve(path + SIBLING_SUFFIXES[i], response);
+				if (sibling.getCode() != 200 || sibling.isDirectory())
+					continue;
+				vary = true;
+				if (encoded == null && (accepted & (1 << i)) != 0) {
+					encoded = sibling;
+					coding = CODINGS[i];
+				}
+			}
+
+			boolean compress = variants != null
+				&& resolved.getLength() >= MIN_COMPRESSED_SIZE
+				&& resolved.isCompressible();
+			if (vary || compress)
+				response.addHeader(HeaderWriter.VARY_ACCEPT_ENCODING);
+
+			if (encoded != null) {
+				resolved = encoded;
+				response.addHeader("Content-Encoding", coding);
+			} else if (compress && (accepted & (GZIP | DEFLATE)) != 0) {
+				sendCompressed(request, resolved, 
+							   (accepted & GZIP) != 0 ? "gzip" : "deflate",
+							   response);
+				return;
+			}
+		}
+
+		if (resolved.isDirectory()) {
+			sendListing(request, resolved, response);
+			return;
+		}
+
+		response.addHeader("ETag", resolved.getETag());
+		if (isNotModified(request, resolved.getETag(), 
+						  resolved.getLastModified(), response)) {
+			response.setStatus(304, "Not Modified");
+			response.addDateHeader("Last-modified", resolved.getLastModified());
+			return;
+		}
+
+		response.addHeader(HeaderWriter.ACCEPT_RANGES);
+		String range = request.getHeader(HttpRequest.RANGE);
+		if (range != null && request.getMethod().equals("GET")
+			&& isRangeValid(request, resolved, response)
+			&& setupRangeResponse(resolved, type, range, response)) {
+			return;
+		}
+		setupResponse(resolved, type, request.allowsContent(), response);
 	}
 
 }
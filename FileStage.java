@@ -0,0 +1,137 @@
+
+import java.util.concurrent.*;
+
+/**
+ * Makes responses that need the file system on a bounded set of
+ * threads, so that a slow disk or network mount does not stall the
+ * reactors. A reactor first tries to make each response itself from
+ * what is cached; if that would block, the response is submitted here,
+ * and when it has been made it is handed back to the reactor, which is
+ * woken up to send it.
+ *
+ * At most maxPending responses are submitted at once. When there are
+ * that many submit() fails, and the reactor keeps the response and
+ * tries again later without reading more requests from the connection
+ * meanwhile.
+ *
+ * Where the Java runtime has virtual threads, each response is made on
+ * a virtual thread of its own, otherwise on a fixed pool of threads.
+ *
+ */
+public class FileStage {
+
+	private ExecutorService executor;
+
+	/**
+	 * One permit for each response that may be submitted.
+	 */
+	private Semaphore permits;
+
+	private int maxPending;
+
+	private BufferPool pool;
+
+	/**
+	 * Codings that are not in use, borrowed by each task.
+	 */
+	private ConcurrentLinkedQueue<HttpCodings> freeCodings =
+		new ConcurrentLinkedQueue<HttpCodings>();
+
+	/**
+	 * Creates a stage and starts its threads.
+	 *
+	 * @param pool The pool of the buffers of the responses.
+	 * @param threads The number of threads, if there are no virtual
+	 * threads.
+	 * @param maxPending The most responses submitted at once.
+	 */
+	public FileStage (BufferPool pool, int threads, int maxPending) {
+		this.pool = pool;
+		this.maxPending = maxPending;
+		this.permits = new Semaphore(maxPending);
+		this.executor = newVirtualThreadExecutor();
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(
+				threads, new ThreadFactory() {
+					private int count = 0;
+
+					public synchronized Thread newThread (Runnable r) {
+						Thread t = new Thread(r, "file-" + count++);
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		}
+	}
+
+	/**
+	 * Gets an executor that starts a virtual thread for each task, if
+	 * the runtime has them.
+	 *
+	 * @return The executor, or null.
+	 */
+	static ExecutorService newVirtualThreadExecutor () {
+		try {
+			return (ExecutorService)Executors.class
+				.getMethod("newVirtualThreadPerTaskExecutor")
+				.invoke(null);
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Makes a response that could not be made on its reactor. Must be
+	 * called on the reactor thread.
+	 *
+	 * @param response The response, which is not used by the reactor
+	 * until it has been made.
+	 * @param reactor The reactor that sends the response.
+	 * @param done Run on the reactor thread once the response has been
+	 * made, or has failed.
+	 * @return False if the stage has as many responses as it takes.
+	 */
+	public boolean submit (final HttpResponse response,
+						   final Reactor reactor, final Runnable done) {
+		if (!permits.tryAcquire())
+			return false;
+		try {
+			executor.execute(new Runnable() {
+				public void run () {
+					HttpCodings codings = freeCodings.poll();
+					if (codings == null)
+						codings = new HttpCodings(pool.newSharedCache());
+					try {
+						response.makeOnStage(codings);
+					} catch (Throwable ex) {
+						ex.printStackTrace();
+					} finally {
+						freeCodings.offer(codings);
+						permits.release();
+						reactor.invokeLater(done);
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			permits.release();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the number of responses being made.
+	 */
+	public int getPending () {
+		return maxPending - permits.availablePermits();
+	}
+
+	/**
+	 * Stops the threads. Responses being made are finished, but are
+	 * not sent if their reactors have stopped.
+	 */
+	public void close () {
+		executor.shutdown();
+	}
+
+}
@@ -9,8 +9,14 @@ abstract class Handler {
 	 */
 	protected NioWebServer server;
 
-	protected Handler (NioWebServer server) {
+	/**
+	 * The reactor that the handler's channel is registered with.
+	 */
+	protected Reactor reactor;
+
+	protected Handler (NioWebServer server, Reactor reactor) {
 		this.server = server;
+		this.reactor = reactor;
 	}
 
 	public abstract int getInterestOps ();
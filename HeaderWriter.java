@@ -0,0 +1,402 @@
+
+import java.nio.*;
+import java.util.concurrent.*;
+
+/**
+ * Writes the head of a response as bytes into a pooled buffer. Header
+ * lines are written as they are added, and the status line and Date
+ * header are put in front of them when the head is finished. Constant
+ * lines are encoded once, and numbers and dates are written digit by
+ * digit, so building a head creates no strings.
+ *
+ */
+public class HeaderWriter {
+
+	/*
+	 * Header lines that are the same in many responses.
+	 */
+	public static final byte[] ACCEPT_RANGES = line("Accept-Ranges: bytes");
+
+	public static final byte[] VARY_ACCEPT_ENCODING =
+		line("Vary: Accept-Encoding");
+
+	public static final byte[] CONNECTION_CLOSE = line("Connection: close");
+
+	public static final byte[] CONNECTION_KEEP_ALIVE =
+		line("Connection: keep-alive");
+
+	public static final byte[] TRANSFER_ENCODING_CHUNKED =
+		line("Transfer-Encoding: chunked");
+
+	public static final byte[] CACHE_CONTROL_NO_STORE =
+		line("Cache-Control: no-store");
+
+	/**
+	 * The interim response to a client that waits before sending a 
+	 * request body.
+	 */
+	public static final byte[] CONTINUE = 
+		bytes("HTTP/1.1 100 Continue\r\n\r\n");
+
+	/**
+	 * The status lines of the responses the server sends, with their
+	 * standard messages.
+	 */
+	private static final int[] STATUS_CODES = {
+		200, 201, 204, 206, 304, 400, 403, 404, 405, 409, 413, 414, 416,
+		431, 500, 501, 502, 503, 504
+	};
+
+	private static final String[] STATUS_MESSAGES = {
+		"OK", "Created", "No Content", "Partial Content", "Not Modified",
+		"Bad request", "Forbidden", "Not found", "Method Not Allowed",
+		"Conflict", "Request Entity Too Large", "Request-URI Too Long",
+		"Range Not Satisfiable", "Request Header Fields Too Large",
+		"Internal server error", "Method not implemented",
+		"Bad Gateway", "Service Unavailable", "Gateway Timeout"
+	};
+
+	private static final byte[][] STATUS_LINES =
+		new byte[STATUS_CODES.length][];
+
+	static {
+		for (int i = 0; i < STATUS_CODES.length; i++) {
+			STATUS_LINES[i] = line("HTTP/1.1 " + STATUS_CODES[i] + " "
+								   + STATUS_MESSAGES[i]);
+		}
+	}
+
+	/**
+	 * The most Content-Type lines that are kept encoded.
+	 */
+	private static final int MAX_TYPE_LINES = 1024;
+
+	/**
+	 * Encoded Content-Type lines by type.
+	 */
+	private static final ConcurrentHashMap<String,byte[]> TYPE_LINES =
+		new ConcurrentHashMap<String,byte[]>();
+
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private static final byte[] DAYS = bytes("SunMonTueWedThuFriSat");
+
+	private static final byte[] MONTHS =
+		bytes("JanFebMarAprMayJunJulAugSepOctNovDec");
+
+	/**
+	 * The length of a date such as "Sun, 06 Nov 1994 08:49:37 GMT".
+	 */
+	private static final int DATE_LENGTH = 29;
+
+	/**
+	 * A Date header line for one second.
+	 */
+	private static class DateLine {
+
+		final long second;
+
+		final byte[] line;
+
+		DateLine (long second) {
+			this.second = second;
+			byte[] b = new byte[6 + DATE_LENGTH + 2];
+			putAscii(b, 0, "Date: ");
+			putDate(b, 6, second * 1000);
+			b[b.length - 2] = '\r';
+			b[b.length - 1] = '\n';
+			this.line = b;
+		}
+	}
+
+	/**
+	 * The Date header line of the current second, shared by all
+	 * threads. The thread that first sees a new second replaces it.
+	 */
+	private static volatile DateLine dateLine =
+		new DateLine(System.currentTimeMillis() / 1000);
+
+	/**
+	 * Room left in front of the header lines for the status line and
+	 * the Date header, which are written last.
+	 */
+	private static final int RESERVED = 96;
+
+	/**
+	 * The initial size of the head buffer.
+	 */
+	private static final int INITIAL_SIZE = 512;
+
+	private HttpCodings codings;
+
+	/**
+	 * The head, with the header lines from RESERVED to the position.
+	 * It is taken from the pool when the first line is added.
+	 */
+	private ByteBuffer buffer;
+
+	public HeaderWriter (HttpCodings codings) {
+		this.codings = codings;
+	}
+
+	/**
+	 * Adds a complete, encoded header line ending in CRLF.
+	 */
+	public void add (byte[] line) {
+		ensure(line.length);
+		buffer.put(line);
+	}
+
+	/**
+	 * Adds a header. The name and value must be ISO-8859-1 text; CR
+	 * and LF are replaced, so that they cannot start another header.
+	 */
+	public void add (String name, String value) {
+		ensure(name.length() + value.length() + 4);
+		putAscii(name);
+		buffer.put((byte)':').put((byte)' ');
+		putAscii(value);
+		buffer.put(CRLF);
+	}
+
+	/**
+	 * Adds a header with a number as value.
+	 */
+	public void add (String name, long value) {
+		ensure(name.length() + 24);
+		putAscii(name);
+		buffer.put((byte)':').put((byte)' ');
+		putLong(value);
+		buffer.put(CRLF);
+	}
+
+	/**
+	 * Adds the Keep-Alive header that tells HTTP/1.0 clients how long
+	 * and for how many more requests the connection is kept open.
+	 *
+	 * @param timeout The idle timeout, in seconds.
+	 * @param max The number of requests left.
+	 */
+	public void addKeepAlive (long timeout, long max) {
+		// the text, and room for two numbers
+		ensure(28 + 2 * 20);
+		putAscii("Keep-Alive: timeout=");
+		putLong(timeout);
+		putAscii(", max=");
+		putLong(max);
+		buffer.put(CRLF);
+	}
+
+	/**
+	 * Adds a header with an RFC 1123 date as value.
+	 *
+	 * @param time The number of milliseconds after January 1, 1970
+	 * 00:00:00 GMT.
+	 */
+	public void addDate (String name, long time) {
+		ensure(name.length() + DATE_LENGTH + 4);
+		putAscii(name);
+		buffer.put((byte)':').put((byte)' ');
+		int pos = buffer.position();
+		for (int i = 0; i < DATE_LENGTH; i++)
+			buffer.put((byte)0);
+		putDate(buffer, pos, time);
+		buffer.put(CRLF);
+	}
+
+	/**
+	 * Adds a Content-Type header, which is encoded once per type.
+	 */
+	public void addContentType (String type) {
+		byte[] line = TYPE_LINES.get(type);
+		if (line == null) {
+			line = line("Content-Type: " + type);
+			if (TYPE_LINES.size() < MAX_TYPE_LINES)
+				TYPE_LINES.put(type, line);
+		}
+		add(line);
+	}
+
+	/**
+	 * Puts the status line and the Date header in front of the header
+	 * lines and ends the head.
+	 *
+	 * @return The head, ready to be written. It should be given back
+	 * to the pool of the codings once it has been sent.
+	 */
+	public ByteBuffer finish (int code, String message) {
+		ensure(2);
+		buffer.put(CRLF);
+
+		byte[] status = statusLine(code, message);
+		byte[] date = currentDateLine();
+		int start = RESERVED - status.length - date.length;
+		if (start < 0) {
+			// a long status message, move the lines to make room
+			ByteBuffer b = codings.allocate(
+				buffer.position() - RESERVED + status.length + date.length);
+			b.put(status).put(date);
+			buffer.flip();
+			buffer.position(RESERVED);
+			b.put(buffer);
+			codings.recycle(buffer);
+			b.flip();
+			buffer = null;
+			return b;
+		}
+		int end = buffer.position();
+		buffer.position(start);
+		buffer.put(status).put(date);
+		buffer.position(start);
+		buffer.limit(end);
+		ByteBuffer b = buffer;
+		buffer = null;
+		return b;
+	}
+
+	/**
+	 * Gives back the buffer if the head is not going to be finished.
+	 */
+	public void release () {
+		if (buffer != null) {
+			codings.recycle(buffer);
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Gets the Date header line for the current second.
+	 */
+	private static byte[] currentDateLine () {
+		long second = System.currentTimeMillis() / 1000;
+		DateLine d = dateLine;
+		if (d.second != second) {
+			d = new DateLine(second);
+			dateLine = d;
+		}
+		return d.line;
+	}
+
+	private static byte[] statusLine (int code, String message) {
+		for (int i = 0; i < STATUS_CODES.length; i++) {
+			if (STATUS_CODES[i] == code
+				&& STATUS_MESSAGES[i].equals(message))
+				return STATUS_LINES[i];
+		}
+		return line("HTTP/1.1 " + code + " " + message);
+	}
+
+	/**
+	 * Makes sure there is room for a number of bytes more.
+	 */
+	private void ensure (int n) {
+		if (buffer == null) {
+			buffer = codings.allocate(Math.max(INITIAL_SIZE, RESERVED + n));
+			buffer.position(RESERVED);
+		} else if (buffer.remaining() < n) {
+			ByteBuffer b = codings.allocate(
+				Math.max(buffer.capacity() * 2, buffer.position() + n));
+			buffer.flip();
+			b.put(buffer);
+			codings.recycle(buffer);
+			buffer = b;
+		}
+	}
+
+	private void putAscii (String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			// a CR or LF would end the header line early
+			if (c >= 256 || c == '\r' || c == '\n')
+				c = '?';
+			buffer.put((byte)c);
+		}
+	}
+
+	private void putLong (long v) {
+		if (v < 0) {
+			buffer.put((byte)'-');
+			v = -v;
+		}
+		long div = 1;
+		while (div <= v / 10)
+			div *= 10;
+		for (; div > 0; div /= 10)
+			buffer.put((byte)('0' + (v / div) % 10));
+	}
+
+	private static void putAscii (byte[] b, int pos, String s) {
+		for (int i = 0; i < s.length(); i++)
+			b[pos + i] = (byte)s.charAt(i);
+	}
+
+	private static void putDate (byte[] b, int pos, long time) {
+		putDate(ByteBuffer.wrap(b), pos, time);
+	}
+
+	/**
+	 * Writes a date in the RFC 1123 format, such as
+	 * "Sun, 06 Nov 1994 08:49:37 GMT", at a position in a buffer.
+	 */
+	private static void putDate (ByteBuffer b, int pos, long time) {
+		long secs = Math.floorDiv(time, 1000L);
+		long days = Math.floorDiv(secs, 86400L);
+		int secOfDay = (int)(secs - days * 86400L);
+		// January 1, 1970 was a Thursday
+		int dow = (int)Math.floorMod(days + 4, 7L);
+
+		// civil date from days, after Howard Hinnant's algorithm
+		long z = days + 719468;
+		long era = Math.floorDiv(z, 146097L);
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		int day = (int)(doy - (153 * mp + 2) / 5 + 1);
+		int month = (int)(mp < 10 ? mp + 3 : mp - 9);
+		int year = (int)(yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+		b.put(pos, DAYS[dow * 3]);
+		b.put(pos + 1, DAYS[dow * 3 + 1]);
+		b.put(pos + 2, DAYS[dow * 3 + 2]);
+		b.put(pos + 3, (byte)',');
+		b.put(pos + 4, (byte)' ');
+		put2(b, pos + 5, day);
+		b.put(pos + 7, (byte)' ');
+		b.put(pos + 8, MONTHS[(month - 1) * 3]);
+		b.put(pos + 9, MONTHS[(month - 1) * 3 + 1]);
+		b.put(pos + 10, MONTHS[(month - 1) * 3 + 2]);
+		b.put(pos + 11, (byte)' ');
+		put2(b, pos + 12, year / 100);
+		put2(b, pos + 14, year % 100);
+		b.put(pos + 16, (byte)' ');
+		put2(b, pos + 17, secOfDay / 3600);
+		b.put(pos + 19, (byte)':');
+		put2(b, pos + 20, secOfDay / 60 % 60);
+		b.put(pos + 22, (byte)':');
+		put2(b, pos + 23, secOfDay % 60);
+		b.put(pos + 25, (byte)' ');
+		b.put(pos + 26, (byte)'G');
+		b.put(pos + 27, (byte)'M');
+		b.put(pos + 28, (byte)'T');
+	}
+
+	private static void put2 (ByteBuffer b, int pos, int v) {
+		b.put(pos, (byte)('0' + v / 10));
+		b.put(pos + 1, (byte)('0' + v % 10));
+	}
+
+	private static byte[] bytes (String s) {
+		byte[] b = new byte[s.length()];
+		putAscii(b, 0, s);
+		return b;
+	}
+
+	/**
+	 * Encodes a header line and adds CRLF.
+	 */
+	public static byte[] line (String s) {
+		return bytes(s + "\r\n");
+	}
+
+}
@@ -16,7 +16,12 @@ public class HttpCodings {
 	/**
 	 * The size of the buffers used to read, write, encode and decode data.
 	 */
-	private static final int BUFFER_SIZE = 4096;
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * The most buffers written with one gathering write.
+	 */
+	private static final int MAX_GATHER = 32;
 
 	/** 
 	 * date format string representation.
@@ -39,6 +44,8 @@ public class HttpCodings {
 	 */
 	private static final String URL_CHARSET = "UTF-8";
 
+	private static final Charset PATH_CHARSET = Charset.forName(URL_CHARSET);
+
 	private ByteBuffer byteBuffer;
 
 	private CharBuffer charBuffer;
@@ -47,22 +54,51 @@ public class HttpCodings {
 
 	private CharsetEncoder encoder;
 
+	/**
+	 * The buffers of the reactor that uses these codings.
+	 */
+	private BufferPool.Cache buffers;
+
+	/**
+	 * The buffers for a gathering write, reused for every write.
+	 */
+	private ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];
+
 	
 	private DateFormat dateFormat;
 
+	/**
+	 * Parses dates in requests, whose day and month names are in 
+	 * English whatever the default locale is.
+	 */
+	private DateFormat dateParser;
+
 	/**
 	 * Used when formatting dates to avoid creating unneccesary objects.
 	 */
 	private Date date;
 
 
+	/**
+	 * Creates codings with buffers of their own.
+	 */
 	public HttpCodings () {
-		byteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		this(new BufferPool().newCache());
+	}
+
+	/**
+	 * Creates codings that take buffers from a reactor's cache.
+	 */
+	public HttpCodings (BufferPool.Cache buffers) {
+		this.buffers = buffers;
+		byteBuffer = buffers.allocate(BUFFER_SIZE);
 		charBuffer = CharBuffer.allocate(BUFFER_SIZE);
 		decoder = TEXT_CHARSET.newDecoder();
 		encoder = TEXT_CHARSET.newEncoder();
-	 	dateFormat = new SimpleDateFormat(RFC_1123_DATE_FORMAT);
+	 	dateFormat = new SimpleDateFormat(RFC_1123_DATE_FORMAT, Locale.US);
 		dateFormat.setTimeZone(TimeZone.getTimeZone(RFC_1123_TIMEZONE));
+		dateParser = new SimpleDateFormat(RFC_1123_DATE_FORMAT, Locale.US);
+		dateParser.setTimeZone(TimeZone.getTimeZone(RFC_1123_TIMEZONE));
 		date = new Date();
 	}
 
@@ -72,6 +108,53 @@ public class HttpCodings {
 		return encoder.encode(from);
 	}
 
+	/**
+	 * Encodes text into a pooled direct buffer, such as a response 
+	 * head or a short document. The buffer should be given back with 
+	 * recycle() once it has been sent.
+	 *
+	 * @return The encoded text, ready to be written.
+	 */
+	public ByteBuffer encodePooled (CharSequence text) 
+		throws CharacterCodingException {
+
+		// one byte per character in ISO-8859-1
+		ByteBuffer buf = buffers.allocate(Math.max(1, text.length()));
+		encoder.reset();
+		CoderResult cr = encoder.encode(CharBuffer.wrap(text), buf, true);
+		if (cr.isUnderflow())
+			cr = encoder.flush(buf);
+		if (cr.isError()) {
+			buffers.recycle(buf);
+			cr.throwException();
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Borrows a cleared direct buffer from the reactor's pool.
+	 */
+	public ByteBuffer allocate (int size) {
+		return buffers.allocate(size);
+	}
+
+	/**
+	 * Gives back a buffer returned by allocate() or encodePooled().
+	 */
+	public void recycle (ByteBuffer buf) {
+		buffers.recycle(buf);
+	}
+
+	/**
+	 * Gets an array to collect the buffers for a gathering write. The
+	 * array is shared by all connections of the reactor, and should be
+	 * cleared after the write.
+	 */
+	public ByteBuffer[] getGatherBuffers () {
+		return gatherBuffers;
+	}
+
 	public CharBuffer decode (ByteBuffer from) 
 		throws CharacterCodingException {
 		
@@ -104,10 +187,15 @@ public class HttpCodings {
 	 * Reads as much data as is available (or fits in the input buffer),
 	 * and decodes it using ISO-8859-1.
 	 *
+	 * @return The decoded data, or null if the end of the stream 
+	 * has been reached.
 	 */
 	public CharBuffer readAndDecode (ReadableByteChannel channel) 
 		throws IOException {
-		channel.read(byteBuffer);
+		if (channel.read(byteBuffer) == -1) {
+			byteBuffer.clear();
+			return null;
+		}
 		byteBuffer.flip();
 		charBuffer.clear();
 		decode(byteBuffer, charBuffer); 
@@ -116,6 +204,24 @@ public class HttpCodings {
 		return charBuffer;
 	}
 
+	/**
+	 * Reads as much data as is available, or fits in the input buffer.
+	 * The returned buffer is reused by the next read.
+	 *
+	 * @return The data read, or null if the end of the stream has been
+	 * reached.
+	 */
+	public ByteBuffer read (ReadableByteChannel channel) 
+		throws IOException {
+		byteBuffer.clear();
+		if (channel.read(byteBuffer) == -1) {
+			byteBuffer.clear();
+			return null;
+		}
+		byteBuffer.flip();
+		return byteBuffer;
+	}
+
 	/**
 	 * Decodes a <tt>application/x-www-form-urlencoded</tt> string
 	 * using UTF-8.
@@ -124,6 +230,26 @@ public class HttpCodings {
 		return URLDecoder.decode(s, URL_CHARSET);
 	}
 
+	/**
+	 * Appends a path to a URL, percent-encoding the UTF-8 bytes of all
+	 * but unreserved characters and '/'.
+	 */
+	public static void appendPath (StringBuilder sb, String path) {
+		byte[] b = path.getBytes(PATH_CHARSET);
+		for (int i = 0; i < b.length; i++) {
+			int c = b[i] & 0xff;
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+				|| (c >= '0' && c <= '9') || c == '-' || c == '.'
+				|| c == '_' || c == '~' || c == '/') {
+				sb.append((char)c);
+			} else {
+				sb.append('%');
+				sb.append(Character.toUpperCase(Character.forDigit(c >> 4, 16)));
+				sb.append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+			}
+		}
+	}
+
 	/**
 	 * Formats a date according to the RFC 1123 date format.
 	 * @param time The number of milliseconds after 
@@ -141,4 +267,15 @@ public class HttpCodings {
 		return dateFormat.format(date);
 	}
 
+	/**
+	 * Parses a date in the RFC 1123 date format.
+	 * @return The number of milliseconds after January 1, 1970 
+	 * 00:00:00 GMT, or -1 if the date cannot be parsed.
+	 */
+	public long parseDate (String s) {
+		ParsePosition pos = new ParsePosition(0);
+		Date d = dateParser.parse(s.trim(), pos);
+		return (d == null) ? -1 : d.getTime();
+	}
+
 }
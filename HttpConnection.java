@@ -0,0 +1,481 @@
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Handles the requests and responses on a client connection. Several
+ * requests may arrive in one read (HTTP/1.1 pipelining), their
+ * responses are queued and written back in the order the requests
+ * were received.
+ *
+ */
+public class HttpConnection extends Handler {
+
+	/**
+	 * The maximum number of responses queued on one connection. When
+	 * the queue is full no more data is read until responses have been
+	 * sent.
+	 */
+	private static final int MAX_QUEUED_RESPONSES = 16;
+
+	/**
+	 * The channel to the client.
+	 */
+	private SocketChannel channel;
+
+	/**
+	 * The client address.
+	 */
+	private InetAddress address;
+
+	/**
+	 * The selection key of the channel.
+	 */
+	private SelectionKey key;
+
+	/**
+	 * The request being read. It is reused for the following requests
+	 * once its response has been set up.
+	 */
+	private HttpRequest request;
+
+	/**
+	 * Parses the data read into requests.
+	 */
+	private RequestParser parser;
+
+	/**
+	 * Reads the bodies of the requests.
+	 */
+	private BodyDecoder decoder;
+
+	/**
+	 * Responses waiting to be sent, in request order.
+	 */
+	private LinkedList<HttpResponse> responses = new LinkedList<HttpResponse>();
+
+	/**
+	 * Responses that have to be made on the file stage but have not 
+	 * been taken by it yet, in request order.
+	 */
+	private LinkedList<HttpResponse> deferred = new LinkedList<HttpResponse>();
+
+	/**
+	 * The number of responses that are not ready, because they are
+	 * being made on the file stage or wait to be.
+	 */
+	private int notReady = 0;
+
+	/**
+	 * A response to a request that changes files, such as a PUT, that
+	 * is being made on the file stage, or null. The requests after it
+	 * are not parsed until it has been made, so that they see the
+	 * change.
+	 */
+	private HttpResponse barrier = null;
+
+	/**
+	 * Data read after the barrier, parsed once it has been made, or
+	 * null.
+	 */
+	private ByteBuffer unparsed = null;
+
+	/**
+	 * The number of requests read on this connection.
+	 */
+	private int requestCount = 0;
+
+	/**
+	 * Whether no more requests should be read, because the client has
+	 * closed its side or a response will close the connection.
+	 */
+	private boolean closing = false;
+
+	/**
+	 * The time of the last read, or of the last time the client took
+	 * some of a response.
+	 */
+	private long lastActivity;
+
+	/**
+	 * The time the first byte of the request being read arrived.
+	 */
+	private long requestStart;
+
+	/**
+	 * Closes the connection when its current deadline has passed: the
+	 * idle, header or write timeout, depending on what the connection
+	 * is waiting for.
+	 */
+	private TimingWheel.Timer timer = new TimingWheel.Timer() {
+		protected void expired () {
+			close();
+		}
+	};
+
+	/**
+	 * Resumes writing when the content of the first response, which
+	 * had to wait for data, has some.
+	 */
+	private Runnable writable = new Runnable() {
+		public void run () {
+			if (channel.isOpen()) {
+				key.interestOps(getInterestOps());
+				updateTimer();
+			}
+		}
+	};
+
+	/**
+	 * Creates a new connection and registers it for reading.
+	 */
+	public HttpConnection (NioWebServer server, Reactor reactor,
+						   SocketChannel channel) throws IOException {
+		super(server, reactor);
+		this.channel = channel;
+		this.address = channel.socket().getInetAddress();
+		this.lastActivity = System.currentTimeMillis();
+		this.request = new HttpRequest(reactor.getCodings(), 0);
+		this.parser = new RequestParser(request, server.getMaxRequestLine(),
+										server.getMaxHeaders(), 
+										server.getMaxHeaderBytes());
+		this.decoder = server.newBodyDecoder(reactor.getCodings());
+		this.key = reactor.register(channel, this);
+		updateTimer();
+	}
+
+	public int getInterestOps () {
+		int ops = 0;
+		// no more requests are read while the file stage is busy with
+		// this connection
+		if (!closing && notReady == 0 && unparsed == null
+			&& responses.size() < MAX_QUEUED_RESPONSES)
+			ops |= SelectionKey.OP_READ;
+		if (!responses.isEmpty() && responses.getFirst().isReady()
+			&& responses.getFirst().isAvailable())
+			ops |= SelectionKey.OP_WRITE;
+		return ops;
+	}
+
+	public boolean isOpen () {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Sets the deadline for what the connection is waiting for. While
+	 * a response is being sent, the client must keep taking it; while
+	 * a request is being read, its request line and headers must all
+	 * arrive within the header timeout, and its body must keep coming;
+	 * otherwise the connection is idle. There is no deadline while the
+	 * file stage has the first response, or while its content waits for
+	 * data from elsewhere, which has deadlines of its own.
+	 */
+	private void updateTimer () {
+		TimingWheel timers = reactor.getTimers();
+		if (!responses.isEmpty()) {
+			if (responses.getFirst().isReady()
+				&& responses.getFirst().isAvailable())
+				timers.schedule(timer, lastActivity + server.getWriteTimeout());
+			else
+				timers.cancel(timer);
+		} else if (parser.isStarted()) {
+			timers.schedule(timer, requestStart + server.getHeaderTimeout());
+		} else if (decoder.isReading()) {
+			timers.schedule(timer, lastActivity + server.getBodyTimeout());
+		} else {
+			timers.schedule(timer, lastActivity + server.getIdleTimeout());
+		}
+	}
+
+	/**
+	 * Reads and writes whatever the channel is ready for.
+	 */
+	public void handle (SelectableChannel channel) throws IOException {
+		try {
+			// the client has taken some of what was written
+			if (key.isWritable())
+				lastActivity = System.currentTimeMillis();
+			if (key.isReadable())
+				read();
+			if (channel.isOpen() && !responses.isEmpty()
+				&& responses.getFirst().isReady())
+				write();
+			if (channel.isOpen()) {
+				key.interestOps(getInterestOps());
+				updateTimer();
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Closes the connection. Responses being made on the file stage 
+	 * are released when they are done.
+	 */
+	public void close () {
+		if (!channel.isOpen())
+			return;
+		reactor.connectionClosed(address);
+		reactor.getTimers().cancel(timer);
+		try {
+			channel.close();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+		while (!responses.isEmpty()) {
+			HttpResponse response = responses.removeFirst();
+			if (response.isReady() || deferred.contains(response))
+				response.release();
+		}
+		deferred.clear();
+		request.release();
+		if (unparsed != null) {
+			reactor.getCodings().recycle(unparsed);
+			unparsed = null;
+		}
+	}
+
+	/**
+	 * Reads data from the channel and queues a response for each
+	 * complete request. Bodies that go to a file are moved there from
+	 * the channel directly, where their framing allows it.
+	 */
+	private void read () throws IOException {
+		if (decoder.isTransferable()) {
+			if (decoder.transferFrom(channel) > 0) {
+				lastActivity = System.currentTimeMillis();
+				if (!decoder.isReading())
+					requestRead();
+				return;
+			}
+			// no data, or the end of the stream, which read() finds
+		}
+		ByteBuffer buf = reactor.getCodings().read(channel);
+		if (buf == null) {
+			// the client will not send any more requests
+			closing = true;
+			if (responses.isEmpty())
+				close();
+			return;
+		}
+		lastActivity = System.currentTimeMillis();
+		if (!parser.isStarted())
+			requestStart = lastActivity;
+
+		parse(buf);
+		if (barrier != null && buf.hasRemaining()) {
+			unparsed = reactor.getCodings().allocate(buf.remaining());
+			unparsed.put(buf);
+			unparsed.flip();
+		}
+	}
+
+	/**
+	 * Parses requests and their bodies, and queues their responses,
+	 * until there is no more data or the barrier stops it.
+	 */
+	private void parse (ByteBuffer buf) throws IOException {
+		while (!closing && barrier == null) {
+			if (!decoder.isReading()) {
+				if (!parser.parse(buf))
+					break;
+				// the next request starts with this read
+				requestStart = lastActivity;
+				if (decoder.start(request) && request.expectsContinue())
+					sendContinue();
+			}
+			if (decoder.isReading() && !decoder.decode(buf))
+				break;
+			requestRead();
+		}
+	}
+
+	/**
+	 * Tells a client that waits before sending a request body to go
+	 * on. This is only done when no responses are queued ahead of it,
+	 * otherwise the client sends the body once it tires of waiting.
+	 */
+	private void sendContinue () throws IOException {
+		if (!responses.isEmpty())
+			return;
+		ByteBuffer buf = ByteBuffer.wrap(HeaderWriter.CONTINUE);
+		channel.write(buf);
+		// the socket buffer is empty, this only fails if the client is
+		// gone
+		if (buf.hasRemaining())
+			throw new IOException("Cannot send 100 Continue");
+	}
+
+	/**
+	 * Queues the response to a request that has been read with its 
+	 * body, and starts reading the next request.
+	 */
+	private void requestRead () throws IOException {
+		final HttpResponse response = 
+			new HttpResponse(server, reactor.getCodings());
+		response.setBlockingAllowed(server.getFileStage() == null);
+		response.setOwner(reactor, new Runnable() {
+			public void run () {
+				responseMade(response);
+			}
+		});
+		responses.addLast(response);
+		boolean made = response.initResponse(request);
+		// read before the stage may change it
+		if (!response.isKeepAlive())
+			closing = true;
+		if (made) {
+			request.reset(++requestCount);
+		} else {
+			String method = request.getMethod();
+			if (!method.equals("GET") && !method.equals("HEAD"))
+				barrier = response;
+			// the response takes the request
+			response.detach();
+			notReady++;
+			request = new HttpRequest(reactor.getCodings(), 
+									  ++requestCount);
+			if (response.isSuspended()) {
+				// the handler finishes it later, on this reactor
+			} else if (deferred.isEmpty() && !submit(response)) {
+				deferred.addLast(response);
+				reactor.defer(this);
+			} else if (!deferred.isEmpty()) {
+				deferred.addLast(response);
+			}
+		}
+		parser.reset(request);
+	}
+
+	/**
+	 * Submits a response to the file stage.
+	 *
+	 * @return False if the stage is busy.
+	 */
+	private boolean submit (final HttpResponse response) {
+		return server.getFileStage().submit(
+			response, reactor, new Runnable() {
+				public void run () {
+					responseMade(response);
+				}
+			});
+	}
+
+	/**
+	 * Submits the responses that the file stage could not take before.
+	 * Called on the reactor thread.
+	 *
+	 * @return False if the stage is still busy.
+	 */
+	boolean submitDeferred () {
+		while (!deferred.isEmpty()) {
+			if (!submit(deferred.getFirst()))
+				return false;
+			deferred.removeFirst();
+		}
+		return true;
+	}
+
+	/**
+	 * Sends a response that has been made on the file stage, or that a
+	 * handler has finished after suspending it. Called on the reactor
+	 * thread.
+	 */
+	private void responseMade (HttpResponse response) {
+		boolean made = response.attach(reactor.getCodings());
+		if (!channel.isOpen()) {
+			response.release();
+			return;
+		}
+		notReady--;
+		if (!made) {
+			close();
+			return;
+		}
+		try {
+			if (response == barrier) {
+				barrier = null;
+				if (unparsed != null) {
+					parse(unparsed);
+					if (barrier == null || !unparsed.hasRemaining()) {
+						reactor.getCodings().recycle(unparsed);
+						unparsed = null;
+					}
+				}
+			}
+			if (responses.getFirst().isReady())
+				write();
+			if (channel.isOpen()) {
+				key.interestOps(getInterestOps());
+				updateTimer();
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Writes queued responses in order until the channel does not
+	 * accept any more data.
+	 */
+	private void write () throws IOException {
+		ByteBuffer[] srcs = reactor.getCodings().getGatherBuffers();
+		while (!responses.isEmpty()) {
+			// gather the responses that are held in buffers, up to the 
+			// first one that is not
+			int count = 0;
+			Iterator<HttpResponse> i = responses.iterator();
+			while (i.hasNext() && count + 2 <= srcs.length) {
+				HttpResponse response = i.next();
+				if (!response.isReady())
+					break;
+				int n = response.getBuffers(srcs, count);
+				if (n < 0)
+					break;
+				count += n;
+			}
+			if (count > 0) {
+				try {
+					channel.write(srcs, 0, count);
+				} catch (InternalError ex) {
+					// a mapped file was truncated; which one is not
+					// known, so all the gathered mappings are dropped
+					i = responses.iterator();
+					while (i.hasNext())
+						i.next().bufferFailed();
+					throw new IOException("Mapped file truncated", ex);
+				} finally {
+					Arrays.fill(srcs, 0, count, null);
+				}
+			} else {
+				responses.getFirst().writeTo(channel);
+			}
+
+			if (!responses.getFirst().isSent()) {
+				responses.getFirst().setListener(writable);
+				return;
+			}
+			while (!responses.isEmpty() && responses.getFirst().isReady()
+				   && responses.getFirst().isSent()) {
+				HttpResponse response = responses.removeFirst();
+				response.release();
+				lastActivity = System.currentTimeMillis();
+				if (!response.isKeepAlive()) {
+					close();
+					return;
+				}
+			}
+			if (!responses.isEmpty() && !responses.getFirst().isReady())
+				return;
+		}
+		if (closing)
+			close();
+	}
+
+}
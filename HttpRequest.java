@@ -1,13 +1,64 @@
 
 import java.io.*;
 import java.nio.*;
-import java.nio.channels.*;
+import java.util.*;
 
 /**
- * A simple representation of an HTTP request
+ * A simple representation of an HTTP request. The request line and
+ * headers are filled in by a RequestParser, and the same object is
+ * reused for the following requests on a connection.
  *
  */
-public class HttpRequest extends Handler {
+public class HttpRequest {
+
+	/*
+	 * Well-known headers. The parser recognizes these names without
+	 * creating any strings, and they can be looked up by number.
+	 */
+	public static final int HOST = 0;
+	public static final int CONNECTION = 1;
+	public static final int CONTENT_LENGTH = 2;
+	public static final int TRANSFER_ENCODING = 3;
+	public static final int IF_MODIFIED_SINCE = 4;
+	public static final int IF_NONE_MATCH = 5;
+	public static final int RANGE = 6;
+	public static final int IF_RANGE = 7;
+	public static final int ACCEPT_ENCODING = 8;
+	public static final int ACCEPT = 9;
+	public static final int USER_AGENT = 10;
+	public static final int CONTENT_TYPE = 11;
+	public static final int EXPECT = 12;
+
+	/**
+	 * The names of the well-known headers, indexed by their number.
+	 */
+	static final String[] HEADER_NAMES = {
+		"Host", "Connection", "Content-Length", "Transfer-Encoding",
+		"If-Modified-Since", "If-None-Match", "Range", "If-Range",
+		"Accept-Encoding", "Accept", "User-Agent", "Content-Type",
+		"Expect"
+	};
+
+	/**
+	 * Header number of headers that are not well-known.
+	 */
+	public static final int OTHER = -1;
+
+	/**
+	 * Maps lower case header names to well-known header numbers.
+	 */
+	private static final Map<String,Integer> HEADER_IDS =
+		new HashMap<String,Integer>();
+
+	static {
+		for (int i = 0; i < HEADER_NAMES.length; i++)
+			HEADER_IDS.put(HEADER_NAMES[i].toLowerCase(), Integer.valueOf(i));
+	}
+
+	/**
+	 * Used to decode the request URI.
+	 */
+	private HttpCodings codings;
 	
 	/**
 	 * The request method, "GET", "POST", etc.
@@ -20,16 +71,129 @@ public class HttpRequest extends Handler {
 	private String requestURI = null;
 
 	/**
-	 * Keeps the text representation of the request before it is parsed.
+	 * The query string of the request URI, without the '?', or null if
+	 * there was none.
+	 */
+	private String queryString = null;
+
+	/**
+	 * The protocol version, "HTTP/1.0", "HTTP/1.1", etc.
+	 */
+	private String version = null;
+
+	/**
+	 * The host that the request is for, from the request URI or the
+	 * Host header.
+	 */
+	private String host = null;
+
+	/**
+	 * The number of requests that have been read on this connection
+	 * before this one.
+	 */
+	private int sequence;
+
+	/**
+	 * The initial size of the data buffer.
+	 */
+	private static final int INITIAL_DATA_SIZE = 512;
+
+	/**
+	 * The raw bytes of the request URI, header names and header values.
+	 * The positions below point into this buffer. The buffer is taken 
+	 * from the reactor's pool when the first byte of a request arrives
+	 * and given back when the request is reset, so connections that
+	 * wait for a request hold no buffer.
+	 */
+	private ByteBuffer data = null;
+
+	/**
+	 * The number of bytes used in data.
+	 */
+	private int length = 0;
+
+	private int uriStart;
+
+	private int uriEnd;
+
+	/**
+	 * Where the path of the request URI starts, after the scheme and
+	 * host of an absolute URI.
+	 */
+	private int pathStart;
+
+	/**
+	 * The number of headers.
 	 */
-	private StringBuffer input;
+	private int headerCount = 0;
+
+	/**
+	 * The well-known header number of each header, or OTHER.
+	 */
+	private int[] headerIds = new int[16];
+
+	private int[] nameStart = new int[16];
+
+	private int[] nameEnd = new int[16];
+
+	private int[] valueStart = new int[16];
+
+	private int[] valueEnd = new int[16];
+
+	/**
+	 * The index of the first header with each well-known name, or -1.
+	 * This makes looking up a well-known header a single array access.
+	 */
+	private int[] firstHeader = new int[HEADER_NAMES.length];
+
+	/**
+	 * The index of the next header with the same name, or -1.
+	 */
+	private int[] nextHeader = new int[16];
+
+	/**
+	 * An error found while the request was read, or null.
+	 */
+	private ServerException error = null;
+
+	/**
+	 * The body of the request, or null if it has none.
+	 */
+	private RequestBody body = null;
 
 	/**
 	 * Creates a new empty request.
+	 *
+	 * @param sequence The number of requests read on the connection 
+	 * before this one.
+	 */
+	protected HttpRequest (HttpCodings codings, int sequence) {
+		this.codings = codings;
+		this.sequence = sequence;
+		Arrays.fill(firstHeader, -1);
+	}
+
+	/**
+	 * Clears the request so that it can be reused for the next request
+	 * on the connection.
+	 *
+	 * @param sequence The number of requests read on the connection
+	 * before the next one.
 	 */
-	protected HttpRequest (NioWebServer server) { 
-		super(server);
-		input = new StringBuffer();
+	protected void reset (int sequence) {
+		this.sequence = sequence;
+		method = null;
+		requestURI = null;
+		queryString = null;
+		version = null;
+		host = null;
+		length = 0;
+		release();
+		for (int i = 0; i < headerCount; i++)
+			if (headerIds[i] != OTHER)
+				firstHeader[headerIds[i]] = -1;
+		headerCount = 0;
+		error = null;
 	}
 
 	/**
@@ -57,59 +221,374 @@ public class HttpRequest extends Handler {
 	}
 
 	/**
-	 * Adds data to this request.
+	 * Gets the query string of the request URI, or null if there was
+	 * none. The query string is not decoded.
+	 */
+	public String getQueryString () {
+		return queryString;
+	}
+
+	/**
+	 * Gets the protocol version, "HTTP/1.0", "HTTP/1.1", etc. Calling 
+	 * this method before parse() has been called will return null.
+	 */
+	public String getVersion () {
+		return version;
+	}
+
+	/**
+	 * Gets the path and query of the request URI as they were sent,
+	 * not decoded, such as to forward the request. Calling this method
+	 * before parse() has been called will return null.
+	 */
+	public String getTarget () {
+		if (requestURI == null)
+			return null;
+		if (pathStart == uriEnd)
+			return "/";
+		return text(pathStart, uriEnd);
+	}
+
+	/**
+	 * Gets the host that the request is for, taken from an absolute
+	 * request URI or the Host header. Calling this method before 
+	 * parse() has been called will return null.
+	 */
+	public String getHost () {
+		return host;
+	}
+
+	/**
+	 * Gets the number of requests that were served on the connection 
+	 * before this one.
+	 */
+	public int getSequence () {
+		return sequence;
+	}
+
+	/**
+	 * Gets the value of a well-known header.
+	 *
+	 * @param id The header number, such as HOST.
+	 * @return The value of the first header with that name, or null if
+	 * there is none.
+	 */
+	public String getHeader (int id) {
+		int i = findHeader(id);
+		if (i == -1)
+			return null;
+		return text(valueStart[i], valueEnd[i]);
+	}
+
+	/**
+	 * Gets the value of a header.
+	 *
+	 * @param name The header name, case is ignored.
+	 * @return The value of the first header with that name, or null if
+	 * there is none.
+	 */
+	public String getHeader (String name) {
+		Integer id = HEADER_IDS.get(name.toLowerCase());
+		if (id != null)
+			return getHeader(id.intValue());
+
+		for (int i = 0; i < headerCount; i++) {
+			if (headerIds[i] == OTHER
+				&& equalsIgnoreCase(nameStart[i], nameEnd[i], name))
+				return text(valueStart[i], valueEnd[i]);
+		}
+		return null;
+	}
+
+	/**
+	 * Whether a well-known header contains a token in its comma
+	 * separated value, such as "close" in "Connection: close".
+	 */
+	public boolean headerContains (int id, String token) {
+		for (int i = findHeader(id); i != -1; i = nextHeader[i]) {
+			int start = valueStart[i];
+			int end = valueEnd[i];
+			while (start < end) {
+				int comma = start;
+				while (comma < end && data.get(comma) != ',')
+					comma++;
+				int s = start;
+				int e = comma;
+				while (s < e && (data.get(s) == ' ' || data.get(s) == '\t'))
+					s++;
+				while (e > s && (data.get(e-1) == ' ' || data.get(e-1) == '\t'))
+					e--;
+				if (equalsIgnoreCase(s, e, token))
+					return true;
+				start = comma + 1;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets all values of a well-known header that may be repeated.
 	 *
-	 * @return true if the request is complete. A request is 
-	 * considered complete if it ends in two newlines.
+	 * @return The values in the order they were received, an empty 
+	 * list if there are none.
 	 */
-	private boolean append (CharSequence data) {
-		input.append(data);
+	public List<String> getHeaders (int id) {
+		List<String> values = new ArrayList<String>();
+		for (int i = findHeader(id); i != -1; i = nextHeader[i])
+			values.add(text(valueStart[i], valueEnd[i]));
+		return values;
+	}
 
-		// FIX - cannot handle requests with a body
-		boolean complete = CharSequences.endsWith(input, "\r\n\r\n") 
-				|| CharSequences.endsWith(input, "\n\n");
+	/**
+	 * Gets the number of headers in the request.
+	 */
+	public int getHeaderCount () {
+		return headerCount;
+	}
 
-		return complete;
+	/**
+	 * Gets the name of a header, as it was sent.
+	 *
+	 * @param i The index of the header, from 0 to getHeaderCount()-1.
+	 */
+	public String getHeaderName (int i) {
+		return text(nameStart[i], nameEnd[i]);
 	}
 
 	/**
-	 * Parses the request and sets the data fields accordingly.
+	 * Gets the value of a header.
 	 *
-	 * @throws ServerException If the request could not be understood.
+	 * @param i The index of the header, from 0 to getHeaderCount()-1.
 	 */
-	public void parse () throws ServerException, IOException {
-		// parse request line
-		int fstsp = CharSequences.indexOf(input, ' ');
-		int sndsp = CharSequences.indexOf(input, ' ', fstsp+1);
-		if (fstsp == -1 || sndsp == -1) {
-			throw new ServerException(400, "Bad request");
+	public String getHeaderValue (int i) {
+		return text(valueStart[i], valueEnd[i]);
+	}
+
+	/**
+	 * Gets the well-known header number of a header, or OTHER.
+	 *
+	 * @param i The index of the header, from 0 to getHeaderCount()-1.
+	 */
+	public int getHeaderId (int i) {
+		return headerIds[i];
+	}
+
+	private int findHeader (int id) {
+		return firstHeader[id];
+	}
+
+	private boolean equalsIgnoreCase (int start, int end, String s) {
+		if (end - start != s.length())
+			return false;
+		for (int i = start; i < end; i++) {
+			char c = (char)(data.get(i) & 0xff);
+			char d = s.charAt(i - start);
+			if (c != d && Character.toLowerCase(c) != Character.toLowerCase(d))
+				return false;
 		}
-		method = input.substring(0, fstsp);
-		requestURI = server.getCodings().urlDecode(
-			input.substring(fstsp+1, sndsp));
+		return true;
 	}
 
-	public int getInterestOps () {
-		return SelectionKey.OP_READ;
+	private String text (int start, int end) {
+		char[] chars = new char[end - start];
+		for (int i = start; i < end; i++)
+			chars[i - start] = (char)(data.get(i) & 0xff);
+		return new String(chars);
 	}
 
 	/**
-	 * Reads data from the channel and adds it to the request.
+	 * Gets the body of the request, which is complete once the 
+	 * request is handled.
+	 *
+	 * @return The body, or null if the request has none.
 	 */
-	public void handle (SelectableChannel channel) throws IOException {
-		SocketChannel socketChannel = (SocketChannel)channel;
+	public RequestBody getBody () {
+		return body;
+	}
 
-		try {
-			CharBuffer buf = server.getCodings().readAndDecode(socketChannel);
-			boolean complete = append(buf);
-			
-			if (complete) {
-				HttpResponse response = new HttpResponse(server);
-				response.initResponse(this, socketChannel);
+	/**
+	 * Whether the client waits for "100 Continue" before it sends the
+	 * body.
+	 */
+	public boolean expectsContinue () {
+		return "HTTP/1.1".equals(version)
+			&& headerContains(EXPECT, "100-continue");
+	}
+
+	/**
+	 * Whether the client wants the connection kept open after the 
+	 * response. HTTP/1.1 connections are persistent unless the client
+	 * sends "Connection: close", HTTP/1.0 connections only if the
+	 * client asks for "Connection: keep-alive".
+	 */
+	public boolean isKeepAlive () {
+		if (version == null || error != null)
+			return false;
+		if (version.equals("HTTP/1.1"))
+			return !headerContains(CONNECTION, "close");
+		if (version.equals("HTTP/1.0"))
+			return headerContains(CONNECTION, "keep-alive");
+		return false;
+	}
+
+	/*
+	 * Methods used by the parser to fill in the request.
+	 */
+
+	/**
+	 * Gives the data buffer back to the pool, and releases the body.
+	 */
+	void release () {
+		if (data != null) {
+			codings.recycle(data);
+			data = null;
+		}
+		setBody(null);
+	}
+
+	void append (byte b) {
+		if (data == null) {
+			data = codings.allocate(INITIAL_DATA_SIZE);
+		} else if (length == data.capacity()) {
+			ByteBuffer d = codings.allocate(data.capacity() * 2);
+			data.position(0);
+			data.limit(length);
+			d.put(data);
+			codings.recycle(data);
+			data = d;
+		}
+		data.put(length++, b);
+	}
+
+	int getLength () {
+		return length;
+	}
+
+	byte getByte (int i) {
+		return data.get(i);
+	}
+
+	void setMethod (String method) {
+		this.method = method;
+	}
+
+	void setVersion (String version) {
+		this.version = version;
+	}
+
+	void setURI (int start, int end) {
+		uriStart = start;
+		uriEnd = end;
+	}
+
+	/**
+	 * Gets the bytes between two positions as a string.
+	 */
+	String getText (int start, int end) {
+		return text(start, end);
+	}
+
+	void addHeader (int id, int nameStart, int nameEnd,
+					int valueStart, int valueEnd) {
+		if (headerCount == headerIds.length) {
+			int n = headerCount * 2;
+			headerIds = grow(headerIds, n);
+			this.nameStart = grow(this.nameStart, n);
+			this.nameEnd = grow(this.nameEnd, n);
+			this.valueStart = grow(this.valueStart, n);
+			this.valueEnd = grow(this.valueEnd, n);
+			nextHeader = grow(nextHeader, n);
+		}
+		headerIds[headerCount] = id;
+		this.nameStart[headerCount] = nameStart;
+		this.nameEnd[headerCount] = nameEnd;
+		this.valueStart[headerCount] = valueStart;
+		this.valueEnd[headerCount] = valueEnd;
+		nextHeader[headerCount] = -1;
+		if (id != OTHER) {
+			int i = firstHeader[id];
+			if (i == -1) {
+				firstHeader[id] = headerCount;
+			} else {
+				while (nextHeader[i] != -1)
+					i = nextHeader[i];
+				nextHeader[i] = headerCount;
 			}
-		} catch (IOException ex) {
-			ex.printStackTrace();
-			channel.close();
+		}
+		headerCount++;
+	}
+
+	private static int[] grow (int[] a, int n) {
+		int[] b = new int[n];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	void setError (ServerException error) {
+		this.error = error;
+	}
+
+	boolean hasError () {
+		return error != null;
+	}
+
+	/**
+	 * Sets the body, releasing the one the request had.
+	 */
+	void setBody (RequestBody body) {
+		if (this.body != null)
+			this.body.release();
+		this.body = body;
+	}
+
+	/**
+	 * Finishes parsing the request by finding the host and decoding 
+	 * the request URI.
+	 *
+	 * @throws ServerException If the request could not be understood.
+	 */
+	public void parse () throws ServerException, IOException {
+		if (error != null)
+			throw error;
+
+		int start = uriStart;
+		int end = uriEnd;
+
+		// absolute URIs, "http://host/path"
+		int scheme = start;
+		while (scheme < end && data.get(scheme) != ':' && data.get(scheme) != '/')
+			scheme++;
+		if (scheme < end - 2 && data.get(scheme) == ':' 
+			&& data.get(scheme+1) == '/' && data.get(scheme+2) == '/') {
+			int slash = scheme + 3;
+			while (slash < end && data.get(slash) != '/')
+				slash++;
+			host = text(scheme + 3, slash);
+			start = slash;
+		}
+
+		if (host == null) {
+			host = getHeader(HOST);
+			if (host == null && "HTTP/1.1".equals(version))
+				throw new ServerException(400, "Bad request");
+		}
+		pathStart = start;
+		if (start == end) {
+			requestURI = "/";
+			return;
+		}
+
+		for (int i = start; i < uriEnd; i++) {
+			if (data.get(i) == '?') {
+				queryString = text(i+1, uriEnd);
+				end = i;
+				break;
+			}
+		}
+		try {
+			requestURI = codings.urlDecode(text(start, end));
+		} catch (IllegalArgumentException ex) {
+			throw new ServerException(400, "Bad request");
 		}
 	}
 
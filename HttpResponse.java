@@ -2,15 +2,23 @@
 import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
+import java.util.concurrent.*;
 
 /**
  * A simple class for sending HTTP responses.
  *
  */
-public class HttpResponse extends Handler {
+public class HttpResponse {
 
-	
-	private static final String CRLF_STR = "\r\n";
+	/**
+	 * The server.
+	 */
+	private NioWebServer server;
+
+	/**
+	 * Encoding and decoding for the reactor that sends the response.
+	 */
+	private HttpCodings codings;
 
 	/**
 	 * The response code.
@@ -25,129 +33,547 @@ public class HttpResponse extends Handler {
 	/**
 	 * The response header.
 	 */
-	private StringBuffer header = new StringBuffer();
+	private HeaderWriter header;
+
+	/**
+	 * The encoded status line and header, once the response is ready
+	 * to be sent. The buffer comes from the pool of the codings.
+	 */
+	private ByteBuffer headerBuffer;
+
+	/**
+	 * Whether the whole response has been written.
+	 */
+	private boolean sent = false;
 
 	/**
 	 * The content source.
 	 */
 	private Content content;
 
+	/**
+	 * The request that this is a response to.
+	 */
+	private HttpRequest request;
+
+	/**
+	 * Whether the connection should be kept open for another request 
+	 * once the response has been sent.
+	 */
+	private boolean keepAlive = false;
+
+	/**
+	 * Whether making the response may block on the file system. If
+	 * not, initResponse() gives up when it would.
+	 */
+	private boolean blockingAllowed = true;
+
+	/**
+	 * Whether the response has been made and may be sent. It is false
+	 * while the response is being made on the file stage. Only used on
+	 * the reactor thread.
+	 */
+	private boolean ready = true;
+
+	/**
+	 * Whether the request belongs to the response, and is released 
+	 * with it.
+	 */
+	private boolean ownsRequest = false;
+
+	/**
+	 * Runs tasks on the thread that owns the connection, or null if the
+	 * response cannot be suspended.
+	 */
+	private Executor owner = null;
+
+	/**
+	 * Called on the owning thread once a suspended response has been
+	 * finished.
+	 */
+	private Runnable resumed = null;
+
+	/**
+	 * Whether the handler has suspended the response, to finish it 
+	 * later.
+	 */
+	private boolean suspended = false;
+
 	/**
 	 * Creates a new HttpResponse.
 	 */
-	public HttpResponse (NioWebServer server) { 
-		super(server);
+	public HttpResponse (NioWebServer server, HttpCodings codings) {
+		this.server = server;
+		this.codings = codings;
+		this.header = new HeaderWriter(codings);
+	}
+
+	/**
+	 * Gets the codings of the reactor that sends the response.
+	 */
+	public HttpCodings getCodings () {
+		return codings;
+	}
+
+	/**
+	 * Sets whether making the response may block on the file system.
+	 */
+	public void setBlockingAllowed (boolean blockingAllowed) {
+		this.blockingAllowed = blockingAllowed;
+	}
+
+	public boolean isBlockingAllowed () {
+		return blockingAllowed;
+	}
+
+	/**
+	 * Sets the thread that the response may be finished on after it has
+	 * been suspended, and what to call when it has been.
+	 *
+	 * @param owner Runs tasks on the thread that owns the connection.
+	 * @param resumed Called on that thread once the response has been 
+	 * finished.
+	 */
+	void setOwner (Executor owner, Runnable resumed) {
+		this.owner = owner;
+		this.resumed = resumed;
+	}
+
+	/**
+	 * Gets the reactor that owns the connection, where a suspended
+	 * response is finished.
+	 *
+	 * @return The reactor, or null if the connection is served on a
+	 * thread of its own, or the response is made on the file stage.
+	 */
+	public Reactor getReactor () {
+		return (owner instanceof Reactor) ? (Reactor)owner : null;
+	}
+
+	/**
+	 * Suspends the response, so that the handler may return before it
+	 * has been made. The handler, or whatever it hands the request to,
+	 * finishes it later with resume(). Must not be called on the file
+	 * stage.
+	 */
+	public void suspend () {
+		if (owner == null)
+			throw new IllegalStateException("Response cannot be suspended");
+		suspended = true;
+	}
+
+	/**
+	 * Whether the handler has suspended the response.
+	 */
+	public boolean isSuspended () {
+		return suspended;
+	}
+
+	/**
+	 * Finishes a suspended response. May be called on any thread, once.
+	 * The task runs on the thread that owns the connection, where it
+	 * sets the status, headers and content, and the response is then 
+	 * sent. If the task throws, the response is an internal server 
+	 * error.
+	 */
+	public void resume (final Runnable task) {
+		owner.execute(new Runnable() {
+			public void run () {
+				try {
+					task.run();
+				} catch (RuntimeException ex) {
+					internalError(ex);
+				}
+				finish();
+				if (resumed != null)
+					resumed.run();
+			}
+		});
+	}
+
+	/**
+	 * Whether the response has been made and may be sent.
+	 */
+	public boolean isReady () {
+		return ready;
+	}
+
+	/**
+	 * Whether some of the response can be written now, which is not the
+	 * case while its content waits for data from elsewhere.
+	 */
+	public boolean isAvailable () {
+		if (content == null)
+			return true;
+		if (headerBuffer.hasRemaining() && !(content instanceof ChunkedContent))
+			return true;
+		return content.isAvailable();
+	}
+
+	/**
+	 * Sets what to call when content that was not available has
+	 * become available.
+	 */
+	public void setListener (Runnable listener) {
+		if (content != null)
+			content.setListener(listener);
 	}
 
 	/**
 	 * Adds a name value pair to the header.
 	 */
 	public void addHeader (String name, long value) {
-		addHeader(name, String.valueOf(value));
+		header.add(name, value);
 	}
 
 	/**
 	 * Adds a name value pair to the header.
 	 */
 	public void addHeader (String name, String value) {
-		header.append(name).append(": ").append(value).append(CRLF_STR);
+		header.add(name, value);
 	}
 
 	/**
-	 * Writes the header to the channel.
+	 * Adds a header line that has been encoded in advance, such as 
+	 * HeaderWriter.ACCEPT_RANGES. The line must end in CRLF.
 	 */
-	public void writeHeader (WritableByteChannel channel) throws IOException {
-		
-		channel.write(server.getCodings().encode(CharBuffer.wrap(
-			"HTTP/1.1 " + code + " " + message 
-			+ CRLF_STR +	header + CRLF_STR))); 
+	public void addHeader (byte[] line) {
+		header.add(line);
 	}
 
 	/**
-	 * Sends an error header and a a simple error document to the client.
+	 * Adds a header with a date as value.
+	 *
+	 * @param time The number of milliseconds after January 1, 1970
+	 * 00:00:00 GMT.
 	 */
-	public void writeError (int code, String message, 
-							boolean sendContent,
-							WritableByteChannel channel) throws IOException {
+	public void addDateHeader (String name, long time) {
+		header.addDate(name, time);
+	}
+
+	/**
+	 * Finishes the status line and header so that they can be sent.
+	 */
+	private void prepareHeader () {
+		headerBuffer = header.finish(code, message);
+		// the head goes out in the same write as the first chunk
+		if (content instanceof ChunkedContent)
+			((ChunkedContent)content).setPrefix(headerBuffer);
+	}
+
+	/**
+	 * Sets the status code and message, for responses that are 
+	 * neither errors nor 200 OK.
+	 */
+	public void setStatus (int code, String message) {
+		this.code = code;
+		this.message = message;
+	}
+
+	/**
+	 * Sets up an error header and a a simple error document. The
+	 * header starts over, since what was added for the response that
+	 * failed, such as Content-Encoding or ETag, does not describe the
+	 * error document; any content set is closed.
+	 */
+	public void setError (int code, String message,
+						  boolean sendContent) throws IOException {
 		this.code = code;
 		this.message = message;
+		header.release();
+		header = new HeaderWriter(codings);
+		addHeader(server.getServerLine());
+		if (content != null) {
+			Content c = content;
+			content = null;
+			c.close();
+		}
 
 		String body = "<html><head><title>"+code+" "+message
 			+"</title></head><body><h1>"+code+" "+message
 			+"</h1></body></html>\n";
 
 		if (sendContent) {
-			ByteBuffer buf = server.getCodings().encode(CharBuffer.wrap(body));
-			setContent(new BufferContent(buf, "text/html"));
+			ByteBuffer buf = codings.encodePooled(body);
+			setContent(new BufferContent(buf, "text/html", codings));
 		} else {
 			setContent(null);
 		}
+	}
 
-		writeHeader(channel);
+	/**
+	 * Adds a Content-Type header for content that does not have a
+	 * type of its own.
+	 */
+	public void addContentType (String type) {
+		header.addContentType(type);
 	}
 
 	/**
-	 * Sets the content producer for this response.
+	 * Sets the content producer for this response. If the size of the
+	 * content is unknown, it is sent chunked to HTTP/1.1 clients, and
+	 * to older clients the connection is closed after it.
 	 */
 	public void setContent (Content content) {
 		this.content = content;
 
 		if (content != null) {
-			addHeader("Content-Length", content.getSize());
+			if (content.getSize() >= 0) {
+				addHeader("Content-Length", content.getSize());
+			} else if (request != null 
+					   && "HTTP/1.1".equals(request.getVersion())) {
+				this.content = new ChunkedContent(content);
+				addHeader(HeaderWriter.TRANSFER_ENCODING_CHUNKED);
+			} else {
+				keepAlive = false;
+			}
 			String type = content.getContentType();
 			if (type != null)
-				addHeader("Content-Type", type);
+				header.addContentType(type);
 		}
 	}
 
-	public int getInterestOps () {
-		return SelectionKey.OP_WRITE;
+	/**
+	 * Sets the content producer for this response, with header lines
+	 * that have been rendered in advance. The lines must describe the 
+	 * content, including its length, and end in CRLF.
+	 */
+	public void setContent (Content content, byte[] headerLines) {
+		this.content = content;
+		header.add(headerLines);
+	}
+
+	/**
+	 * Whether the connection should be kept open once this response
+	 * has been sent.
+	 */
+	public boolean isKeepAlive () {
+		return keepAlive;
 	}
 
 	/**
-	 * Checks the request and initializes the response.
+	 * Checks the request and initializes the response. The response
+	 * is sent by calling writeTo().
+	 *
+	 * @return False if blocking is not allowed and making the response
+	 * would block, in which case the response should be made on the 
+	 * file stage, or if the handler has suspended the response.
 	 */
-	public void initResponse (HttpRequest request, SocketChannel channel) 
-		throws IOException {
-		
-		addHeader("Server", server.getServerName());
-		addHeader("Connection", "close");
+	public boolean initResponse (HttpRequest request) throws IOException {
+
+		this.request = request;
+		addHeader(server.getServerLine());
 
 		try {
 			request.parse();
-			server.getFileSender().handleFileRequest(request, this);
-			writeHeader(channel);
+			keepAlive = request.isKeepAlive() 
+				&& request.getSequence() + 1 < server.getMaxRequests();
+			server.getRouter().route(request.getRequestURI())
+				.handle(request, this);
+			if (suspended) {
+				// resume() finishes it
+				return false;
+			}
+		} catch (WouldBlockException ex) {
+			// nothing has been sent for it yet
+			header.release();
+			if (content != null)
+				content.close();
+			content = null;
+			return false;
 		} catch (ServerException ex) {
-			writeError(ex.getCode(), ex.getMessage(), request.allowsContent(), 
-					   channel);
+			setError(ex.getCode(), ex.getMessage(), request.allowsContent());
+			if (ex.getHeaderName() != null)
+				addHeader(ex.getHeaderName(), ex.getHeaderValue());
 		} catch (IOException ex) {
-			writeError(500, "Internal server error", request.allowsContent(),
-					   channel);
+			setError(500, "Internal server error", request.allowsContent());
 			ex.printStackTrace();
+		} catch (RuntimeException ex) {
+			// a bug in a handler, which must not take the thread down
+			internalError(ex);
 		}
 
-		server.log(request.getMethod() + " " 
-				   + request.getRequestURI() + " -> "
-				   + code + " " + message);
-
-		server.register(channel, this);
+		finish();
+		return true;
 	}
-	
+
 	/**
-	 * Serve a complete request.
+	 * Starts the response over as an internal server error, after a
+	 * handler has thrown.
 	 */
-	public void handle (SelectableChannel channel) throws IOException {
-		boolean completed = true;
+	private void internalError (RuntimeException ex) {
+		ex.printStackTrace();
+		suspended = false;
 		try {
-			if (content != null)
-				completed = content.writeTo((SocketChannel)channel);
-		} catch (IOException ex) {
-			ex.printStackTrace();
-		} finally {
-			if (completed)
-				channel.close();
+			setError(500, "Internal server error", request.allowsContent());
+		} catch (IOException ex2) {
+		}
+	}
+
+	/**
+	 * Adds the last headers, encodes the head and logs the response,
+	 * once it has been made.
+	 */
+	private void finish () {
+		addConnectionHeaders(request);
+		prepareHeader();
+
+		if (!server.isQuiet()) {
+			// as sent, since the decoded path may have line breaks
+			server.log(request.getMethod() + " " 
+					   + request.getTarget() + " -> "
+					   + code + " " + message);
+		}
+	}
+
+	/**
+	 * Hands the response over to the file stage, or to the handler that
+	 * suspended it, once initResponse() has returned false. The response
+	 * takes the request, which the connection must not reuse.
+	 */
+	void detach () {
+		ready = false;
+		ownsRequest = true;
+	}
+
+	/**
+	 * Makes the response on a thread of the file stage, with codings
+	 * that the thread has borrowed.
+	 */
+	void makeOnStage (HttpCodings codings) throws IOException {
+		this.codings = codings;
+		this.header = new HeaderWriter(codings);
+		blockingAllowed = true;
+		owner = null;
+		code = 200;
+		message = "OK";
+		initResponse(request);
+	}
+
+	/**
+	 * Takes the response back from the file stage on the reactor that
+	 * sends it.
+	 *
+	 * @return False if the response could not be made.
+	 */
+	boolean attach (HttpCodings codings) {
+		this.codings = codings;
+		ready = true;
+		return headerBuffer != null;
+	}
+
+	/**
+	 * Adds the Connection header, and for HTTP/1.0 clients the 
+	 * Keep-Alive header, according to whether the connection will be
+	 * kept open.
+	 */
+	private void addConnectionHeaders (HttpRequest request) {
+		if (!keepAlive) {
+			addHeader(HeaderWriter.CONNECTION_CLOSE);
+		} else if (!"HTTP/1.1".equals(request.getVersion())) {
+			addHeader(HeaderWriter.CONNECTION_KEEP_ALIVE);
+			header.addKeepAlive(server.getIdleTimeout() / 1000,
+								server.getMaxRequests()
+								- request.getSequence() - 1);
+		}
+	}
+
+	/**
+	 * Writes as much of the response as the channel accepts. Partially
+	 * written headers are continued on the next call.
+	 *
+	 * @return True if the whole response has been sent, false otherwise.
+	 */
+	public boolean writeTo (WritableByteChannel channel) throws IOException {
+		if (headerBuffer.hasRemaining() 
+			&& !(content instanceof ChunkedContent)) {
+			ByteBuffer body = (content != null) ? content.getBuffer() : null;
+			if (body != null && channel instanceof GatheringByteChannel) {
+				// the head and the body in one write
+				ByteBuffer[] srcs = codings.getGatherBuffers();
+				srcs[0] = headerBuffer;
+				srcs[1] = body;
+				try {
+					((GatheringByteChannel)channel).write(srcs, 0, 2);
+				} catch (InternalError ex) {
+					content.bufferFailed();
+					throw new IOException("Mapped file truncated", ex);
+				} finally {
+					srcs[0] = srcs[1] = null;
+				}
+			} else {
+				channel.write(headerBuffer);
+			}
+			if (headerBuffer.hasRemaining())
+				return false;
+		}
+		if (content != null && !content.writeTo(channel))
+			return false;
+		sent = true;
+		return true;
+	}
+
+	/**
+	 * Puts the buffers that remain to be sent into an array for a 
+	 * gathering write, if the response is held in buffers.
+	 *
+	 * @param srcs The array, with room for at least two buffers after
+	 * the offset.
+	 * @return The number of buffers added, or -1 if the content is not
+	 * in a buffer and has to be sent with writeTo().
+	 */
+	public int getBuffers (ByteBuffer[] srcs, int offset) {
+		if (content == null) {
+			srcs[offset] = headerBuffer;
+			return 1;
+		}
+		ByteBuffer body = content.getBuffer();
+		if (body == null)
+			return -1;
+		srcs[offset] = headerBuffer;
+		srcs[offset+1] = body;
+		return 2;
+	}
+
+	/**
+	 * Tells the content that reading the buffer from getBuffers()
+	 * failed.
+	 */
+	void bufferFailed () {
+		if (content != null)
+			content.bufferFailed();
+	}
+
+	/**
+	 * Whether the whole response has been written.
+	 */
+	public boolean isSent () {
+		if (!sent && !headerBuffer.hasRemaining()) {
+			ByteBuffer body = (content != null) ? content.getBuffer() : null;
+			sent = (content == null) || (body != null && !body.hasRemaining());
+		}
+		return sent;
+	}
+
+	/**
+	 * Gives back the head buffer and closes the content, once the 
+	 * response has been sent or the connection has been closed. The
+	 * response cannot be used afterwards.
+	 */
+	public void release () {
+		if (headerBuffer != null) {
+			codings.recycle(headerBuffer);
+			headerBuffer = null;
+		}
+		header.release();
+		if (content != null) {
+			try {
+				content.close();
+			} catch (IOException ex) {
+			}
 		}
+		if (ownsRequest)
+			request.release();
 	}
-		
 
 }
@@ -0,0 +1,40 @@
+
+import java.util.*;
+
+/**
+ * Evicts the least recently used entry.
+ *
+ */
+public class LruPolicy implements EvictionPolicy {
+
+	/**
+	 * The keys in access order, least recently used first.
+	 */
+	private LinkedHashMap<String,Boolean> keys =
+		new LinkedHashMap<String,Boolean>(16, 0.75f, true);
+
+	public void recordRequest (String key) {
+	}
+
+	public void recordHit (String key) {
+		keys.get(key);
+	}
+
+	public void added (String key, long weight) {
+		keys.put(key, Boolean.TRUE);
+	}
+
+	public void removed (String key) {
+		keys.remove(key);
+	}
+
+	public String evict () {
+		Iterator<String> i = keys.keySet().iterator();
+		if (!i.hasNext())
+			return null;
+		String key = i.next();
+		i.remove();
+		return key;
+	}
+
+}
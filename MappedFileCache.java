@@ -0,0 +1,245 @@
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Keeps memory mappings of files within a size band, keyed by canonical
+ * path, so that files requested over and over are not opened for every
+ * request. The mappings are shared by all reactors; responses write 
+ * from read-only duplicates.
+ *
+ * A mapping is dropped when the file's modification time or length 
+ * changes. Files should be replaced by renaming a new file into place,
+ * since reading a mapping of a file that has been truncated fails.
+ *
+ */
+public class MappedFileCache {
+
+	/**
+	 * A mapped file.
+	 */
+	public static class Mapping {
+
+		private MappedByteBuffer buffer;
+
+		private long lastModified;
+
+		/**
+		 * The cache that holds the mapping, and its key there.
+		 */
+		private MappedFileCache cache;
+
+		private String key;
+
+		/**
+		 * When the file was last checked for changes.
+		 */
+		private volatile long checked;
+
+		Mapping (MappedByteBuffer buffer, long lastModified,
+				 MappedFileCache cache, String key) {
+			this.buffer = buffer;
+			this.lastModified = lastModified;
+			this.cache = cache;
+			this.key = key;
+			this.checked = System.currentTimeMillis();
+		}
+
+		/**
+		 * Drops the mapping from its cache, after reading it failed
+		 * because the file was truncated.
+		 */
+		public void invalidate () {
+			cache.drop(key, this);
+		}
+
+		/**
+		 * Gets a read-only buffer with the file contents that the 
+		 * caller may consume.
+		 */
+		public ByteBuffer getBuffer () {
+			return buffer.duplicate();
+		}
+
+		public long getLength () {
+			return buffer.capacity();
+		}
+
+		public long getLastModified () {
+			return lastModified;
+		}
+	}
+
+	/**
+	 * How often, in milliseconds, a mapped file is checked for changes.
+	 */
+	private static final long CHECK_INTERVAL = 1000;
+
+	/**
+	 * The mappings in access order. The least recently used one is 
+	 * dropped when there are too many.
+	 */
+	private LinkedHashMap<String,Mapping> mappings;
+
+	/**
+	 * The smallest file that is mapped.
+	 */
+	private long minSize;
+
+	/**
+	 * The largest file that is mapped.
+	 */
+	private long maxSize;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	/**
+	 * Creates a cache of mappings.
+	 *
+	 * @param minSize The smallest file that is mapped.
+	 * @param maxSize The largest file that is mapped, at most 
+	 * Integer.MAX_VALUE.
+	 * @param maxFiles The maximum number of mapped files.
+	 */
+	public MappedFileCache (long minSize, long maxSize, final int maxFiles) {
+		this.minSize = minSize;
+		this.maxSize = Math.min(maxSize, Integer.MAX_VALUE);
+		this.mappings = new LinkedHashMap<String,Mapping>(16, 0.75f, true) {
+			protected boolean removeEldestEntry (Map.Entry<String,Mapping> e) {
+				return size() > maxFiles;
+			}
+		};
+	}
+
+	/**
+	 * Whether files of a given size are mapped.
+	 */
+	public boolean accepts (long size) {
+		return size >= minSize && size <= maxSize;
+	}
+
+	/**
+	 * Gets the mapping of a file, mapping it if needed. A mapping that
+	 * has not been checked for a while is compared with the file's
+	 * modification time and length, and replaced if they have changed.
+	 *
+	 * @param file The file, with a canonical path.
+	 * @return The mapping, or null if the file is outside the size band.
+	 */
+	public Mapping get (File file) throws IOException {
+		String key = file.getPath();
+		Mapping mapping;
+		synchronized (this) {
+			mapping = mappings.get(key);
+			if (mapping != null)
+				hits++;
+			else
+				misses++;
+		}
+
+		if (mapping != null) {
+			long now = System.currentTimeMillis();
+			if (now - mapping.checked <= CHECK_INTERVAL)
+				return mapping;
+			if (file.lastModified() == mapping.lastModified
+				&& file.length() == mapping.getLength()) {
+				mapping.checked = now;
+				return mapping;
+			}
+		} else if (!accepts(file.length())) {
+			return null;
+		}
+
+		long lastModified = file.lastModified();
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel fc = fis.getChannel();
+			long size = fc.size();
+			if (!accepts(size)) {
+				synchronized (this) {
+					mappings.remove(key);
+				}
+				return null;
+			}
+			mapping = new Mapping(
+				fc.map(FileChannel.MapMode.READ_ONLY, 0, size), lastModified,
+				this, key);
+		} finally {
+			// the mapping stays valid after the channel is closed
+			fis.close();
+		}
+		synchronized (this) {
+			mappings.put(key, mapping);
+		}
+		return mapping;
+	}
+
+	/**
+	 * Gets the mapping of a file if it is mapped and has been checked
+	 * recently, without looking at the file system.
+	 *
+	 * @param file The file, with a canonical path.
+	 * @return The mapping, or null if get() should be used.
+	 */
+	public Mapping peek (File file) {
+		Mapping mapping;
+		synchronized (this) {
+			mapping = mappings.get(file.getPath());
+			if (mapping == null)
+				return null;
+			if (System.currentTimeMillis() - mapping.checked > CHECK_INTERVAL)
+				return null;
+			hits++;
+		}
+		return mapping;
+	}
+
+	/**
+	 * Drops the mapping of a file. Responses that are using it keep it
+	 * until they are done.
+	 *
+	 * @param file The file, with a canonical path.
+	 */
+	public synchronized void remove (File file) {
+		mappings.remove(file.getPath());
+	}
+
+	/**
+	 * Drops a mapping unless it has been replaced already.
+	 */
+	private synchronized void drop (String key, Mapping mapping) {
+		if (mappings.get(key) == mapping)
+			mappings.remove(key);
+	}
+
+	/**
+	 * Drops all mappings.
+	 */
+	public synchronized void clear () {
+		mappings.clear();
+	}
+
+	/**
+	 * Gets the number of requests served from an existing mapping.
+	 */
+	public synchronized long getHits () {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of requests that had to map the file.
+	 */
+	public synchronized long getMisses () {
+		return misses;
+	}
+
+	public synchronized String toString () {
+		return "MappedFileCache[" + mappings.size() + " files, " + hits 
+			+ " hits, " + misses + " misses]";
+	}
+
+}
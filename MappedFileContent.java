@@ -0,0 +1,77 @@
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Sends the contents of a memory mapped file. Many responses may send
+ * the same mapping at the same time, each from its own duplicate.
+ * If the file is truncated meanwhile, reading the lost pages fails
+ * with an InternalError; the mapping is then dropped and the write
+ * fails with an IOException.
+ *
+ */
+public class MappedFileContent extends Content {
+
+	/**
+	 * The part of the mapping not sent yet.
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * The total number of bytes to be sent.
+	 */
+	private long size;
+
+	private MappedFileCache.Mapping mapping;
+
+	public MappedFileContent (MappedFileCache.Mapping mapping) {
+		this.mapping = mapping;
+		this.buffer = mapping.getBuffer();
+		this.size = buffer.remaining();
+	}
+
+	/**
+	 * Creates a content that sends part of a mapping.
+	 *
+	 * @param first The offset of the first byte sent.
+	 * @param length The number of bytes sent.
+	 */
+	public MappedFileContent (MappedFileCache.Mapping mapping, 
+							  long first, long length) {
+		this.mapping = mapping;
+		ByteBuffer b = mapping.getBuffer();
+		b.position((int)first);
+		b.limit((int)(first + length));
+		this.buffer = b.slice();
+		this.size = length;
+	}
+
+	public boolean writeTo (WritableByteChannel to) throws IOException {
+		try {
+			to.write(buffer);
+		} catch (InternalError ex) {
+			// SIGBUS: the file was truncated under the mapping
+			bufferFailed();
+			throw new IOException("Mapped file truncated", ex);
+		}
+		return !buffer.hasRemaining();
+	}
+
+	public void bufferFailed () {
+		mapping.invalidate();
+	}
+
+	public long getSize () {
+		return size;
+	}
+
+	public ByteBuffer getBuffer () {
+		return buffer;
+	}
+
+	public String getContentType () {
+		return null;
+	}
+
+}
@@ -0,0 +1,222 @@
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Maps file name extensions to MIME types. A set of common types is
+ * built in, and more can be loaded from a file in the format of
+ * mime.types, where each line has a type followed by its extensions.
+ *
+ * Lookups hash the extension in place in an open addressing table, so
+ * they do not create any objects. Types should be added before the
+ * server starts; lookups are not synchronized with additions.
+ *
+ */
+public class MimeTypes {
+
+	/**
+	 * The type of files whose extension is unknown.
+	 */
+	public static final String DEFAULT_TYPE = "application/octet-stream";
+
+	/**
+	 * The built-in types, each followed by its extensions.
+	 */
+	private static final String[][] BUILT_IN = {
+		{ "text/html", "html", "htm" },
+		{ "text/css", "css" },
+		{ "text/javascript", "js", "mjs" },
+		{ "text/plain", "txt", "text", "log" },
+		{ "text/csv", "csv" },
+		{ "text/markdown", "md" },
+		{ "text/xml", "xml" },
+		{ "application/json", "json", "map" },
+		{ "application/manifest+json", "webmanifest" },
+		{ "application/wasm", "wasm" },
+		{ "application/pdf", "pdf" },
+		{ "application/zip", "zip" },
+		{ "application/gzip", "gz" },
+		{ "application/x-tar", "tar" },
+		{ "image/svg+xml", "svg" },
+		{ "image/png", "png" },
+		{ "image/jpeg", "jpg", "jpeg" },
+		{ "image/gif", "gif" },
+		{ "image/webp", "webp" },
+		{ "image/avif", "avif" },
+		{ "image/x-icon", "ico" },
+		{ "font/woff", "woff" },
+		{ "font/woff2", "woff2" },
+		{ "font/ttf", "ttf" },
+		{ "font/otf", "otf" },
+		{ "audio/mpeg", "mp3" },
+		{ "audio/ogg", "ogg" },
+		{ "audio/wav", "wav" },
+		{ "video/mp4", "mp4" },
+		{ "video/webm", "webm" }
+	};
+
+	/**
+	 * The extensions in lower case, indexed by hash, or null.
+	 */
+	private String[] extensions = new String[64];
+
+	/**
+	 * The type of each extension.
+	 */
+	private String[] types = new String[64];
+
+	private int count = 0;
+
+	/**
+	 * Creates a registry with the built-in types.
+	 */
+	public MimeTypes () {
+		for (int i = 0; i < BUILT_IN.length; i++) {
+			for (int j = 1; j < BUILT_IN[i].length; j++)
+				put(BUILT_IN[i][j], BUILT_IN[i][0]);
+		}
+	}
+
+	/**
+	 * Adds the types in a mime.types file, replacing the types of
+	 * extensions that are already known.
+	 */
+	public void load (File file) throws IOException {
+		BufferedReader in = new BufferedReader(
+			new InputStreamReader(new FileInputStream(file), "ISO-8859-1"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int hash = line.indexOf('#');
+				if (hash != -1)
+					line = line.substring(0, hash);
+				// nginx style files end lines with ';'
+				StringTokenizer st = new StringTokenizer(line, " \t;{}");
+				if (!st.hasMoreTokens())
+					continue;
+				String type = st.nextToken();
+				if (type.indexOf('/') == -1)
+					continue;
+				while (st.hasMoreTokens())
+					put(st.nextToken(), type);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Sets the type of an extension.
+	 */
+	public void put (String extension, String type) {
+		if (2 * (count + 1) > extensions.length)
+			grow();
+		String ext = extension.toLowerCase();
+		int i = hash(ext, 0, ext.length()) & (extensions.length - 1);
+		while (extensions[i] != null && !extensions[i].equals(ext))
+			i = (i + 1) & (extensions.length - 1);
+		if (extensions[i] == null)
+			count++;
+		extensions[i] = ext;
+		types[i] = type;
+	}
+
+	/**
+	 * Gets the type of a file from the extension of its name.
+	 *
+	 * @param path A file name or path.
+	 * @return The type, or DEFAULT_TYPE if the extension is unknown.
+	 */
+	public String lookup (String path) {
+		int end = path.length();
+		int dot = end - 1;
+		while (dot >= 0) {
+			char c = path.charAt(dot);
+			if (c == '.')
+				break;
+			if (c == '/' || c == File.separatorChar)
+				return DEFAULT_TYPE;
+			dot--;
+		}
+		if (dot < 0)
+			return DEFAULT_TYPE;
+
+		int start = dot + 1;
+		int mask = extensions.length - 1;
+		for (int i = hash(path, start, end) & mask;
+			 extensions[i] != null; i = (i + 1) & mask) {
+			if (matches(extensions[i], path, start, end))
+				return types[i];
+		}
+		return DEFAULT_TYPE;
+	}
+
+	/**
+	 * Whether files of a type are worth compressing.
+	 */
+	public static boolean isCompressible (String type) {
+		return type.startsWith("text/")
+			|| type.endsWith("+xml") || type.endsWith("+json")
+			|| type.equals("application/json")
+			|| type.equals("application/javascript")
+			|| type.equals("application/xml")
+			|| type.equals("application/wasm");
+	}
+
+	/**
+	 * Hashes characters in lower case.
+	 */
+	private static int hash (String s, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++)
+			h = 31 * h + toLower(s.charAt(i));
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Whether characters equal a lower case extension, ignoring case.
+	 */
+	private static boolean matches (String ext, String s, int start,
+									int end) {
+		if (ext.length() != end - start)
+			return false;
+		for (int i = 0; i < ext.length(); i++) {
+			if (ext.charAt(i) != toLower(s.charAt(start + i)))
+				return false;
+		}
+		return true;
+	}
+
+	private static char toLower (char c) {
+		return (c >= 'A' && c <= 'Z') ? (char)(c + ('a' - 'A')) : c;
+	}
+
+	/**
+	 * Doubles the size of the table.
+	 */
+	private void grow () {
+		String[] oldExtensions = extensions;
+		String[] oldTypes = types;
+		extensions = new String[oldExtensions.length * 2];
+		types = new String[oldTypes.length * 2];
+		int mask = extensions.length - 1;
+		for (int j = 0; j < oldExtensions.length; j++) {
+			String ext = oldExtensions[j];
+			if (ext == null)
+				continue;
+			int i = hash(ext, 0, ext.length()) & mask;
+			while (extensions[i] != null)
+				i = (i + 1) & mask;
+			extensions[i] = ext;
+			types[i] = oldTypes[j];
+		}
+	}
+
+	/**
+	 * Gets the number of known extensions.
+	 */
+	public int getCount () {
+		return count;
+	}
+
+}
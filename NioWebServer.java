@@ -16,15 +16,123 @@ public class NioWebServer implements Runnable {
 	 */
 	private static final String SERVER_NAME = "Jarvis Web Server";
 
+	/**
+	 * The encoded Server header line.
+	 */
+	private static final byte[] SERVER_LINE = 
+		HeaderWriter.line("Server: " + SERVER_NAME);
+
 	/**
 	 * The default port for the server.
 	 */
 	private static final int DEFAULT_PORT = 8080;
 
 	/**
-	 * Handle various encoding and decoding.
+	 * The default number of seconds that an idle persistent connection 
+	 * is kept open.
+	 */
+	private static final int DEFAULT_IDLE_TIMEOUT = 15;
+
+	/**
+	 * The default number of seconds a client has to send the request
+	 * line and headers, from the first byte of a request.
+	 */
+	private static final int DEFAULT_HEADER_TIMEOUT = 10;
+
+	/**
+	 * The default number of seconds a client may go without sending 
+	 * any of a request body.
+	 */
+	private static final int DEFAULT_BODY_TIMEOUT = 30;
+
+	/**
+	 * The default number of seconds a client may go without taking 
+	 * any of a response.
+	 */
+	private static final int DEFAULT_WRITE_TIMEOUT = 30;
+
+	/**
+	 * The default maximum number of open connections.
+	 */
+	private static final int DEFAULT_MAX_CONNECTIONS = 10000;
+
+	/**
+	 * The default maximum number of connections accepted each time the
+	 * port is ready.
+	 */
+	private static final int DEFAULT_ACCEPT_BATCH = 64;
+
+	/**
+	 * The default maximum number of requests served on one connection.
+	 */
+	private static final int DEFAULT_MAX_REQUESTS = 100;
+
+	/**
+	 * The default maximum length of a request line.
+	 */
+	private static final int DEFAULT_MAX_REQUEST_LINE = 8192;
+
+	/**
+	 * The default maximum number of headers in a request.
+	 */
+	private static final int DEFAULT_MAX_HEADERS = 100;
+
+	/**
+	 * The default maximum total length of the headers in a request.
+	 */
+	private static final int DEFAULT_MAX_HEADER_BYTES = 16384;
+
+	/**
+	 * The default length of the longest request body accepted.
+	 */
+	private static final long DEFAULT_MAX_BODY_SIZE = 1L << 20;
+
+	/**
+	 * The default most bytes of a request body kept in memory. Longer
+	 * bodies are written to a temporary file.
+	 */
+	private static final int DEFAULT_BODY_MEMORY = 32 << 10;
+
+	/**
+	 * The default size of the file cache in bytes.
+	 */
+	private static final long DEFAULT_CACHE_SIZE = 32L << 20;
+
+	/**
+	 * The largest file that is kept in the file cache.
+	 */
+	private static final long MAX_CACHED_FILE = 256L << 10;
+
+	/**
+	 * The maximum number of files kept mapped.
+	 */
+	private static final int MAX_MAPPED_FILES = 1024;
+
+	/**
+	 * The default size of the cache of compressed files in bytes.
+	 */
+	private static final long DEFAULT_VARIANT_CACHE_SIZE = 16L << 20;
+
+	/**
+	 * The largest file that is compressed in the background. Larger 
+	 * files are compressed every time they are sent.
+	 */
+	private static final long MAX_VARIANT_SOURCE = 4L << 20;
+
+	/**
+	 * The default size of the cache of directory listings in bytes.
+	 */
+	private static final long DEFAULT_LISTING_CACHE_SIZE = 64L << 20;
+
+	/**
+	 * The default number of threads that wait for the file system.
 	 */
-	private HttpCodings codings;
+	private static final int DEFAULT_FILE_THREADS = 16;
+
+	/**
+	 * The most responses being made on the file stage at once.
+	 */
+	private static final int MAX_PENDING_FILE_RESPONSES = 1024;
 
 	/**
 	 * Serves requests for files and directories.
@@ -32,14 +140,147 @@ public class NioWebServer implements Runnable {
 	private FileSender fileSender;
 
 	/**
-	 * Multiplexes all I/O (accepts, reads and writes)
+	 * Chooses the handler for each request, by default the file sender.
+	 */
+	private Router router;
+
+	/**
+	 * Makes the responses that need the file system, or null if the
+	 * reactors make them.
+	 */
+	private FileStage fileStage = null;
+
+	/**
+	 * The direct buffers used for I/O by all reactors.
+	 */
+	private BufferPool bufferPool = new BufferPool();
+
+	/**
+	 * Hand accepted connections to the worker reactors in turn.
 	 */
-	private Selector selector;
+	public static final int ROUND_ROBIN = 0;
 
 	/**
-	 * Controls whether the server should keep running.
+	 * Hand accepted connections to the reactor with the fewest open 
+	 * connections.
 	 */
-	private boolean keepRunning = true;
+	public static final int LEAST_LOADED = 1;
+
+	/**
+	 * Serve connections with selectors on a few reactor threads.
+	 */
+	public static final int SELECTOR_ENGINE = 0;
+
+	/**
+	 * Serve each connection with blocking I/O on a thread of its own,
+	 * a virtual thread where the runtime has them.
+	 */
+	public static final int THREAD_ENGINE = 1;
+
+	/**
+	 * Accepts connections. When there are no worker reactors it also
+	 * serves them. Null if every worker accepts its own connections.
+	 */
+	private Reactor acceptor;
+
+	/**
+	 * Accepts connections and serves each on a thread of its own, or 
+	 * null if reactors serve them.
+	 */
+	private BlockingAcceptor blockingAcceptor;
+
+	/**
+	 * The reactors that serve accepted connections, each running on 
+	 * its own thread. Empty if everything runs on the acceptor.
+	 */
+	private Reactor[] workers;
+
+	/**
+	 * How accepted connections are spread over the workers, 
+	 * ROUND_ROBIN or LEAST_LOADED.
+	 */
+	private int balancing = ROUND_ROBIN;
+
+	/**
+	 * The worker that the next connection is handed to when balancing
+	 * round-robin, or where the search for the least loaded worker 
+	 * starts.
+	 */
+	private int nextWorker = 0;
+
+	/**
+	 * Whether requests are not logged.
+	 */
+	private boolean quiet = false;
+
+	/**
+	 * The number of milliseconds that an idle connection is kept open.
+	 */
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT * 1000L;
+
+	/**
+	 * The number of milliseconds a client has to send the request line
+	 * and headers.
+	 */
+	private long headerTimeout = DEFAULT_HEADER_TIMEOUT * 1000L;
+
+	/**
+	 * The number of milliseconds a request body may stall.
+	 */
+	private long bodyTimeout = DEFAULT_BODY_TIMEOUT * 1000L;
+
+	/**
+	 * The number of milliseconds a response may stall.
+	 */
+	private long writeTimeout = DEFAULT_WRITE_TIMEOUT * 1000L;
+
+	/**
+	 * The maximum number of requests served on one connection.
+	 */
+	private int maxRequests = DEFAULT_MAX_REQUESTS;
+
+	/**
+	 * The maximum length of a request line.
+	 */
+	private int maxRequestLine = DEFAULT_MAX_REQUEST_LINE;
+
+	/**
+	 * The maximum number of headers in a request.
+	 */
+	private int maxHeaders = DEFAULT_MAX_HEADERS;
+
+	/**
+	 * The maximum total length of the headers in a request.
+	 */
+	private int maxHeaderBytes = DEFAULT_MAX_HEADER_BYTES;
+
+	/**
+	 * The length of the longest request body accepted.
+	 */
+	private long maxBodySize = DEFAULT_MAX_BODY_SIZE;
+
+	/**
+	 * The most bytes of a request body kept in memory.
+	 */
+	private int bodyMemory = DEFAULT_BODY_MEMORY;
+
+	/**
+	 * Where request bodies too long for memory are written, or null for
+	 * the default temporary directory.
+	 */
+	private File bodyDirectory = null;
+
+	/**
+	 * Limits the number of open connections.
+	 */
+	private ConnectionLimits connectionLimits = 
+		new ConnectionLimits(DEFAULT_MAX_CONNECTIONS, 0);
+
+	/**
+	 * The maximum number of connections accepted each time the port is
+	 * ready.
+	 */
+	private int acceptBatch = DEFAULT_ACCEPT_BATCH;
 
 	/**
 	 * Creates a new web server, but does not start it.
@@ -51,11 +292,81 @@ public class NioWebServer implements Runnable {
 	 */
 	public NioWebServer (File root, InetAddress addr, int port) 
 			throws FileNotFoundException, IOException {
+		this(root, addr, port, 0);
+	}
+
+	/**
+	 * Creates a new web server with a number of worker threads, but does
+	 * not start it.
+	 * 
+	 * @param root The server root directory.
+	 * @param addr The local address that the server should bind to. If this 
+	 * is null, the wildcard address is used.
+	 * @param port The port that the server will listen on.
+	 * @param threads The number of worker reactors. If this is 0, 
+	 * connections are served by the thread that accepts them.
+	 */
+	public NioWebServer (File root, InetAddress addr, int port, int threads) 
+			throws FileNotFoundException, IOException {
+		this(root, addr, port, threads, false);
+	}
+
+	/**
+	 * Creates a new web server with a number of worker threads, but does
+	 * not start it.
+	 * 
+	 * @param root The server root directory.
+	 * @param addr The local address that the server should bind to. If this 
+	 * is null, the wildcard address is used.
+	 * @param port The port that the server will listen on.
+	 * @param threads The number of worker reactors. If this is 0, 
+	 * connections are served by the thread that accepts them.
+	 * @param reusePort If true, each worker listens on the port itself 
+	 * using SO_REUSEPORT and the kernel spreads connections over them,
+	 * instead of one acceptor dispatching them.
+	 */
+	public NioWebServer (File root, InetAddress addr, int port, int threads,
+						 boolean reusePort) 
+			throws FileNotFoundException, IOException {
+		this(root, addr, port, threads, reusePort, SELECTOR_ENGINE);
+	}
+
+	/**
+	 * Creates a new web server, but does not start it.
+	 * 
+	 * @param root The server root directory.
+	 * @param addr The local address that the server should bind to. If this 
+	 * is null, the wildcard address is used.
+	 * @param port The port that the server will listen on.
+	 * @param threads The number of worker reactors, for the selector
+	 * engine.
+	 * @param reusePort Whether each worker reactor listens on the port
+	 * itself, for the selector engine.
+	 * @param engine How connections are served, SELECTOR_ENGINE or 
+	 * THREAD_ENGINE.
+	 */
+	public NioWebServer (File root, InetAddress addr, int port, int threads,
+						 boolean reusePort, int engine) 
+			throws FileNotFoundException, IOException {
 
-		this.codings = new HttpCodings();
 		this.fileSender = new FileSender(this, root);
-		this.selector = Selector.open();
-		new AcceptHandler(this, addr, port);
+		this.router = new Router(fileSender);
+		if (engine == THREAD_ENGINE) {
+			this.workers = new Reactor[0];
+			this.blockingAcceptor = new BlockingAcceptor(this, addr, port);
+			return;
+		}
+		this.workers = new Reactor[threads];
+		for (int i = 0; i < threads; i++)
+			workers[i] = new Reactor(this);
+
+		if (reusePort && threads > 0) {
+			for (int i = 0; i < threads; i++)
+				new AcceptHandler(this, workers[i], addr, port, true);
+		} else {
+			this.acceptor = new Reactor(this);
+			new AcceptHandler(this, acceptor, addr, port);
+		}
 	}
 
 	/**
@@ -65,15 +376,33 @@ public class NioWebServer implements Runnable {
 		return SERVER_NAME;
 	}
 
-	public HttpCodings getCodings () {
-		return codings;
+	/**
+	 * Gets the encoded Server header line.
+	 */
+	public byte[] getServerLine () {
+		return SERVER_LINE;
 	}
 
 	/**
 	 * Logs a message.
 	 */
 	public void log (String msg) {
-		System.err.println(msg);
+		if (!quiet)
+			System.err.println(msg);
+	}
+
+	/**
+	 * Turns logging off or on.
+	 */
+	public void setQuiet (boolean quiet) {
+		this.quiet = quiet;
+	}
+
+	/**
+	 * Whether logging is off.
+	 */
+	public boolean isQuiet () {
+		return quiet;
 	}
 
 	protected FileSender getFileSender () {
@@ -81,70 +410,494 @@ public class NioWebServer implements Runnable {
 	}
 
 	/**
-	 * Registers an socket with a handler for multiplexed I/O.
+	 * Gets the router that chooses the handler for each request.
 	 */
-	protected void register (SelectableChannel channel, Handler handler) 
-		throws IOException {
-		channel.register(selector, handler.getInterestOps(), handler);
+	public Router getRouter () {
+		return router;
 	}
 
 	/**
-	 * Stops the server. Requests in progress will not be finished.
+	 * Sends the requests for a path to a handler instead of the file
+	 * sender. Must be called before the server is started.
+	 *
+	 * @param pattern A path, or a path followed by "*" for all paths 
+	 * that start with it.
 	 */
-	public synchronized void stopServer () {
-		keepRunning = false;
-		selector.wakeup();
+	public void addRoute (String pattern, RequestHandler handler) {
+		router.add(pattern, handler);
 	}
 
 	/**
-	 * Runs the server.
+	 * Gets the pool of direct buffers that the reactors take their 
+	 * buffers from.
 	 */
-	public void run () {
-		try {
+	public BufferPool getBufferPool () {
+		return bufferPool;
+	}
 
-			while (true) {
-				synchronized (this) {
-					if (!keepRunning)
-						break;
-				}
+	/**
+	 * Sets the cache for small files. If this is null, files are always
+	 * read from disk.
+	 */
+	public void setContentCache (ContentCache contentCache) {
+		fileSender.setContentCache(contentCache);
+	}
 
-				selector.select();
-				Iterator i = selector.selectedKeys().iterator();
-				while (i.hasNext()) {
-					SelectionKey key = (SelectionKey)i.next();
-					i.remove();
-					SelectableChannel channel = 
-						(SelectableChannel)key.channel();
-					Handler handler = (Handler)key.attachment();
-					try {
-						handler.handle(channel);
-					} catch (IOException ex) {
-						ex.printStackTrace();
-					}
+	/**
+	 * Gets the cache for small files, or null if there is none.
+	 */
+	public ContentCache getContentCache () {
+		return fileSender.getContentCache();
+	}
+
+	/**
+	 * Sets the cache of mapped files. If this is null, files that are
+	 * not in the content cache are sent with FileChannel.transferTo().
+	 */
+	public void setMappedFiles (MappedFileCache mappedFiles) {
+		fileSender.setMappedFiles(mappedFiles);
+	}
+
+	/**
+	 * Sets the stage that makes responses which need the file system.
+	 * If this is null, the reactors make them and may block. Must be 
+	 * called before the server is started.
+	 */
+	public void setFileStage (FileStage fileStage) {
+		this.fileStage = fileStage;
+	}
+
+	/**
+	 * Gets the file stage, or null if there is none.
+	 */
+	public FileStage getFileStage () {
+		return fileStage;
+	}
+
+	/**
+	 * Sets the types that files are sent with.
+	 */
+	public void setMimeTypes (MimeTypes mimeTypes) {
+		fileSender.setMimeTypes(mimeTypes);
+	}
+
+	/**
+	 * Gets the cache of mapped files, or null if there is none.
+	 */
+	public MappedFileCache getMappedFiles () {
+		return fileSender.getMappedFiles();
+	}
+
+	/**
+	 * Sets the cache of compressed variants. If this is null, files are
+	 * only sent compressed if they have precompressed siblings.
+	 */
+	public void setVariants (VariantCache variants) {
+		fileSender.setVariants(variants);
+	}
+
+	/**
+	 * Gets the cache of compressed variants, or null if there is none.
+	 */
+	public VariantCache getVariants () {
+		return fileSender.getVariants();
+	}
+
+	/**
+	 * Sets the cache of directory listings. If this is null, 
+	 * directories are read and sorted for every request.
+	 */
+	public void setListings (DirectoryListings listings) {
+		fileSender.setListings(listings);
+	}
+
+	/**
+	 * Gets the cache of directory listings, or null if there is none.
+	 */
+	public DirectoryListings getListings () {
+		return fileSender.getListings();
+	}
+
+	/**
+	 * Gets the number of milliseconds that an idle connection is kept 
+	 * open.
+	 */
+	public long getIdleTimeout () {
+		return idleTimeout;
+	}
+
+	/**
+	 * Sets the number of milliseconds that an idle connection is kept 
+	 * open.
+	 */
+	public void setIdleTimeout (long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Gets the number of milliseconds a client has to send the request
+	 * line and headers, from the first byte of the request. Reading 
+	 * slowly does not extend it.
+	 */
+	public long getHeaderTimeout () {
+		return headerTimeout;
+	}
+
+	public void setHeaderTimeout (long headerTimeout) {
+		this.headerTimeout = headerTimeout;
+	}
+
+	/**
+	 * Gets the number of milliseconds a client may go without sending 
+	 * any of a request body before the connection is closed.
+	 */
+	public long getBodyTimeout () {
+		return bodyTimeout;
+	}
+
+	public void setBodyTimeout (long bodyTimeout) {
+		this.bodyTimeout = bodyTimeout;
+	}
+
+	/**
+	 * Gets the number of milliseconds a client may go without taking 
+	 * any of a response before the connection is closed.
+	 */
+	public long getWriteTimeout () {
+		return writeTimeout;
+	}
+
+	public void setWriteTimeout (long writeTimeout) {
+		this.writeTimeout = writeTimeout;
+	}
+
+	/**
+	 * Gets the maximum number of requests served on one connection.
+	 */
+	public int getMaxRequests () {
+		return maxRequests;
+	}
+
+	/**
+	 * Sets the maximum number of requests served on one connection. 
+	 * A value of 1 disables persistent connections.
+	 */
+	public void setMaxRequests (int maxRequests) {
+		this.maxRequests = maxRequests;
+	}
+
+	/**
+	 * Gets the maximum length of a request line.
+	 */
+	public int getMaxRequestLine () {
+		return maxRequestLine;
+	}
+
+	/**
+	 * Sets the maximum length of a request line. Requests with longer
+	 * request lines are answered with 414.
+	 */
+	public void setMaxRequestLine (int maxRequestLine) {
+		this.maxRequestLine = maxRequestLine;
+	}
+
+	/**
+	 * Gets the maximum number of headers in a request.
+	 */
+	public int getMaxHeaders () {
+		return maxHeaders;
+	}
+
+	/**
+	 * Sets the maximum number of headers in a request. Requests with 
+	 * more headers are answered with 431.
+	 */
+	public void setMaxHeaders (int maxHeaders) {
+		this.maxHeaders = maxHeaders;
+	}
+
+	/**
+	 * Gets the maximum total length of the headers in a request.
+	 */
+	public int getMaxHeaderBytes () {
+		return maxHeaderBytes;
+	}
+
+	/**
+	 * Sets the maximum total length of the headers in a request. 
+	 * Requests with longer headers are answered with 431.
+	 */
+	public void setMaxHeaderBytes (int maxHeaderBytes) {
+		this.maxHeaderBytes = maxHeaderBytes;
+	}
+
+	/**
+	 * Gets the length of the longest request body accepted.
+	 */
+	public long getMaxBodySize () {
+		return maxBodySize;
+	}
+
+	/**
+	 * Sets the length of the longest request body accepted. Requests
+	 * with longer bodies are answered with 413.
+	 */
+	public void setMaxBodySize (long maxBodySize) {
+		this.maxBodySize = maxBodySize;
+	}
+
+	/**
+	 * Gets the most bytes of a request body kept in memory.
+	 */
+	public int getBodyMemory () {
+		return bodyMemory;
+	}
+
+	/**
+	 * Sets the most bytes of a request body kept in memory. Longer 
+	 * bodies are written to a temporary file as they arrive.
+	 */
+	public void setBodyMemory (int bodyMemory) {
+		this.bodyMemory = bodyMemory;
+	}
+
+	/**
+	 * Gets the directory where request bodies too long for memory are
+	 * written, or null for the default temporary directory.
+	 */
+	public File getBodyDirectory () {
+		return bodyDirectory;
+	}
+
+	/**
+	 * Sets the directory where request bodies too long for memory are
+	 * written. Uploads are moved into place without copying if it is
+	 * on the same file system as the server root.
+	 */
+	public void setBodyDirectory (File bodyDirectory) {
+		this.bodyDirectory = bodyDirectory;
+	}
+
+	/**
+	 * Makes a decoder for the request bodies on a connection.
+	 */
+	protected BodyDecoder newBodyDecoder (HttpCodings codings) {
+		return new BodyDecoder(codings, maxBodySize, bodyMemory,
+							   bodyDirectory, maxHeaderBytes);
+	}
+
+	/**
+	 * Sets whether PUT and POST requests store their bodies as the 
+	 * requested files.
+	 */
+	public void setUploadsAllowed (boolean uploadsAllowed) {
+		fileSender.setUploadsAllowed(uploadsAllowed);
+	}
+
+	/**
+	 * Gets the limits on the number of open connections.
+	 */
+	public ConnectionLimits getConnectionLimits () {
+		return connectionLimits;
+	}
+
+	/**
+	 * Sets the limits on the number of open connections. Must be 
+	 * called before the server is started.
+	 */
+	public void setConnectionLimits (ConnectionLimits connectionLimits) {
+		this.connectionLimits = connectionLimits;
+	}
+
+	/**
+	 * Gets the maximum number of connections accepted each time the 
+	 * port is ready.
+	 */
+	public int getAcceptBatch () {
+		return acceptBatch;
+	}
+
+	public void setAcceptBatch (int acceptBatch) {
+		this.acceptBatch = acceptBatch;
+	}
+
+	/**
+	 * Sets how accepted connections are spread over the worker 
+	 * reactors.
+	 *
+	 * @param balancing ROUND_ROBIN or LEAST_LOADED
+	 */
+	public void setBalancing (int balancing) {
+		this.balancing = balancing;
+	}
+
+	/**
+	 * Hands an accepted connection to the reactor that will serve it.
+	 * Called on the acceptor thread.
+	 */
+	protected void dispatch (SocketChannel channel) {
+		if (workers.length == 0) {
+			acceptor.addConnection(channel);
+			return;
+		}
+
+		Reactor worker = workers[nextWorker];
+		if (balancing == LEAST_LOADED) {
+			int least = worker.getConnectionCount();
+			for (int i = 1; i < workers.length && least > 0; i++) {
+				Reactor r = workers[(nextWorker + i) % workers.length];
+				int count = r.getConnectionCount();
+				if (count < least) {
+					worker = r;
+					least = count;
 				}
 			}
-				
-		} catch (IOException ex) {
-			ex.printStackTrace();
 		}
+		nextWorker = (nextWorker + 1) % workers.length;
+		worker.addConnection(channel);
+	}
+
+	/**
+	 * Stops the server. Requests in progress will not be finished.
+	 */
+	public void stopServer () {
+		if (acceptor != null)
+			acceptor.stop();
+		if (blockingAcceptor != null)
+			blockingAcceptor.stop();
+		for (int i = 0; i < workers.length; i++)
+			workers[i].stop();
+		fileSender.close();
+		if (fileStage != null)
+			fileStage.close();
+	}
+
+	/**
+	 * Runs the server. The worker reactors are started on their own 
+	 * threads and the acceptor runs on the calling thread. If the 
+	 * workers accept their own connections, the first one runs on the
+	 * calling thread. With the thread engine, connections are accepted
+	 * on the calling thread.
+	 */
+	public void run () {
+		router.compile();
+		if (blockingAcceptor != null) {
+			blockingAcceptor.run();
+			return;
+		}
+		int first = (acceptor == null) ? 1 : 0;
+		for (int i = first; i < workers.length; i++) {
+			Thread t = new Thread(workers[i], "reactor-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+		if (acceptor != null)
+			acceptor.run();
+		else
+			workers[0].run();
 	}
 
 	/**
 	 * Prints usage info and exits.
 	 */
 	public static void usage () {
-			System.err.println("Usage: java NioWebServer [-r root] [-p port]");
+			System.err.println("Usage: java NioWebServer [-r root] [-p port]"
+							   + " [-k idle-timeout] [-n max-requests]"
+							   + " [-t threads] [-b roundrobin|leastloaded]"
+							   + " [-s] [-c cache-size[:lru|tinylfu]]"
+							   + " [-m min-size:max-size] [-z variant-cache-size]"
+							   + " [-l listing-cache-size]"
+							   + " [-T mime-types-file] [-f file-threads]"
+							   + " [-e selector|threads]"
+							   + " [-K header-timeout:body-timeout:write-timeout]"
+							   + " [-C max-connections[:max-per-client]]"
+							   + " [-u] [-B max-body-size[:memory-size]]"
+							   + " [-S status-prefix]"
+							   + " [-P prefix=host:port[,host:port...]]");
 			System.exit(2);
 	}
 
+	/**
+	 * Parses a size in bytes that may end in k, m or g.
+	 */
+	private static long parseSize (String s) {
+		long unit = 1;
+		char last = Character.toLowerCase(s.charAt(s.length()-1));
+		if (last == 'k')
+			unit = 1L << 10;
+		else if (last == 'm')
+			unit = 1L << 20;
+		else if (last == 'g')
+			unit = 1L << 30;
+		if (unit != 1)
+			s = s.substring(0, s.length()-1);
+		return Long.parseLong(s) * unit;
+	}
+
 	/**
 	 * Runs the web server application. The format of the command line
-	 * is "java NioWebServer [-r root] [-p port]"
+	 * is "java NioWebServer [-r root] [-p port] [-k idle-timeout] 
+	 * [-n max-requests] [-t threads] [-b roundrobin|leastloaded] [-s]
+	 * [-c cache-size[:lru|tinylfu]] [-m min-size:max-size] 
+	 * [-z variant-cache-size] [-l listing-cache-size] [-T mime-types-file]
+	 * [-f file-threads] [-e selector|threads] [-K header-timeout:body-timeout:write-timeout]
+	 * [-C max-connections[:max-per-client]] [-u]
+	 * [-B max-body-size[:memory-size]] [-S status-prefix]
+	 * [-P prefix=host:port[,host:port...]]", where the timeouts are in
+	 * seconds.
+	 * With -s every worker thread listens on the port with SO_REUSEPORT
+	 * instead of using a single acceptor. Sizes may end in k, m or g, 
+	 * a cache size of 0 turns the file cache off. With -m files within
+	 * the size range that are not cached are kept memory mapped. The 
+	 * variant cache keeps compressed files, a size of 0 turns 
+	 * compression off except for precompressed .gz and .br files. 
+	 * The listing cache keeps directory listings sorted and encoded, a
+	 * size of 0 reads directories for every request.
+	 * Types in a mime.types file given with -T are added to the
+	 * built-in ones. Requests that need the file system are served on
+	 * the file threads, 0 serves them on the reactors. With -e threads
+	 * each connection is served on a thread of its own with blocking 
+	 * I/O instead of by reactors, and -t, -b, -s and -f do not apply.
+	 * When there are max-connections open, no more are accepted until
+	 * one is closed; connections from a client address that has 
+	 * max-per-client open are closed at once. A limit of 0 turns it 
+	 * off. With -u, PUT and POST requests store their bodies as the
+	 * requested files. Request bodies longer than max-body-size are 
+	 * refused, and those longer than memory-size are written to a
+	 * temporary file as they arrive. With -S the server reports its
+	 * status and health at status-prefix followed by "status" and
+	 * "health". With -P the requests for paths that start with prefix
+	 * are forwarded to the upstream servers, to the one with the fewest
+	 * requests in progress; -P may be given several times.
 	 */
 	public static void main(String[] args) {
 		File root = new File("../www");
 		InetAddress addr = null;
 		int port = DEFAULT_PORT;
+		int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+		int headerTimeout = DEFAULT_HEADER_TIMEOUT;
+		int bodyTimeout = DEFAULT_BODY_TIMEOUT;
+		int writeTimeout = DEFAULT_WRITE_TIMEOUT;
+		int maxRequests = DEFAULT_MAX_REQUESTS;
+		int threads = 0;
+		int balancing = ROUND_ROBIN;
+		boolean reusePort = false;
+		long cacheSize = DEFAULT_CACHE_SIZE;
+		String cachePolicy = "tinylfu";
+		long mapMin = -1;
+		long mapMax = -1;
+		long variantCacheSize = DEFAULT_VARIANT_CACHE_SIZE;
+		long listingCacheSize = DEFAULT_LISTING_CACHE_SIZE;
+		File mimeTypesFile = null;
+		int fileThreads = DEFAULT_FILE_THREADS;
+		int engine = SELECTOR_ENGINE;
+		int maxConnections = DEFAULT_MAX_CONNECTIONS;
+		int maxPerClient = 0;
+		boolean uploads = false;
+		long maxBodySize = DEFAULT_MAX_BODY_SIZE;
+		long bodyMemory = DEFAULT_BODY_MEMORY;
+		String statusPrefix = null;
+		List<String> proxies = new ArrayList<String>();
 
 		try {
 			for (int i = 0; i < args.length; i++) {
@@ -152,6 +905,81 @@ public class NioWebServer implements Runnable {
 					root = new File(args[++i]);
 				} else if (args[i].equals("-p")) {
 					port = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-k")) {
+					idleTimeout = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-n")) {
+					maxRequests = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-t")) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-b")) {
+					String b = args[++i];
+					if (b.equals("roundrobin"))
+						balancing = ROUND_ROBIN;
+					else if (b.equals("leastloaded"))
+						balancing = LEAST_LOADED;
+					else usage();
+				} else if (args[i].equals("-s")) {
+					reusePort = true;
+				} else if (args[i].equals("-c")) {
+					String c = args[++i];
+					int colon = c.indexOf(':');
+					if (colon != -1) {
+						cachePolicy = c.substring(colon+1);
+						c = c.substring(0, colon);
+					}
+					cacheSize = parseSize(c);
+				} else if (args[i].equals("-m")) {
+					String m = args[++i];
+					int colon = m.indexOf(':');
+					mapMin = parseSize(m.substring(0, colon));
+					mapMax = parseSize(m.substring(colon+1));
+				} else if (args[i].equals("-z")) {
+					variantCacheSize = parseSize(args[++i]);
+				} else if (args[i].equals("-l")) {
+					listingCacheSize = parseSize(args[++i]);
+				} else if (args[i].equals("-T")) {
+					mimeTypesFile = new File(args[++i]);
+				} else if (args[i].equals("-f")) {
+					fileThreads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-K")) {
+					StringTokenizer st = new StringTokenizer(args[++i], ":");
+					headerTimeout = Integer.parseInt(st.nextToken());
+					bodyTimeout = Integer.parseInt(st.nextToken());
+					writeTimeout = Integer.parseInt(st.nextToken());
+				} else if (args[i].equals("-C")) {
+					String c = args[++i];
+					int colon = c.indexOf(':');
+					if (colon != -1) {
+						maxPerClient = Integer.parseInt(c.substring(colon+1));
+						c = c.substring(0, colon);
+					}
+					maxConnections = Integer.parseInt(c);
+				} else if (args[i].equals("-u")) {
+					uploads = true;
+				} else if (args[i].equals("-B")) {
+					String b = args[++i];
+					int colon = b.indexOf(':');
+					if (colon != -1) {
+						bodyMemory = parseSize(b.substring(colon+1));
+						b = b.substring(0, colon);
+					}
+					maxBodySize = parseSize(b);
+				} else if (args[i].equals("-S")) {
+					statusPrefix = args[++i];
+					if (!statusPrefix.endsWith("/"))
+						statusPrefix += "/";
+				} else if (args[i].equals("-P")) {
+					String p = args[++i];
+					if (p.indexOf('=') <= 0)
+						usage();
+					proxies.add(p);
+				} else if (args[i].equals("-e")) {
+					String e = args[++i];
+					if (e.equals("selector"))
+						engine = SELECTOR_ENGINE;
+					else if (e.equals("threads"))
+						engine = THREAD_ENGINE;
+					else usage();
 				} else usage();
 			}
 		} catch (Exception ex) {
@@ -161,7 +989,70 @@ public class NioWebServer implements Runnable {
 		try {
 			System.err.println("Starting Jarvis server at port " + port 
 							   + " with server root " + root);
-			NioWebServer server = new NioWebServer(root, addr, port);
+			if (engine == THREAD_ENGINE) {
+				System.err.println("Serving each connection on a " 
+								   + (BlockingAcceptor.hasVirtualThreads() 
+									  ? "virtual" : "platform")
+								   + " thread");
+			}
+			NioWebServer server = new NioWebServer(
+				root, addr, port, threads, reusePort, engine);
+			server.setBalancing(balancing);
+			server.setIdleTimeout(idleTimeout * 1000L);
+			server.setHeaderTimeout(headerTimeout * 1000L);
+			server.setBodyTimeout(bodyTimeout * 1000L);
+			server.setWriteTimeout(writeTimeout * 1000L);
+			server.setConnectionLimits(
+				new ConnectionLimits(maxConnections, maxPerClient));
+			server.setMaxRequests(maxRequests);
+			server.setUploadsAllowed(uploads);
+			server.setMaxBodySize(maxBodySize);
+			server.setBodyMemory((int)Math.min(bodyMemory, Integer.MAX_VALUE));
+			if (statusPrefix != null)
+				StatusHandler.mount(server, statusPrefix);
+			for (int i = 0; i < proxies.size(); i++) {
+				String p = proxies.get(i);
+				int eq = p.indexOf('=');
+				server.addRoute(p.substring(0, eq) + "*",
+								new ProxyHandler(server, ProxyHandler
+												 .parseAddresses(
+													 p.substring(eq + 1))));
+			}
+			if (fileThreads > 0 && engine == SELECTOR_ENGINE) {
+				server.setFileStage(
+					new FileStage(server.getBufferPool(), fileThreads,
+								  MAX_PENDING_FILE_RESPONSES));
+			}
+			if (mimeTypesFile != null) {
+				MimeTypes mimeTypes = new MimeTypes();
+				mimeTypes.load(mimeTypesFile);
+				server.setMimeTypes(mimeTypes);
+			}
+			if (cacheSize > 0) {
+				EvictionPolicy policy;
+				if (cachePolicy.equals("lru"))
+					policy = new LruPolicy();
+				else if (cachePolicy.equals("tinylfu"))
+					policy = new TinyLfuPolicy(cacheSize);
+				else {
+					usage();
+					return;
+				}
+				server.setContentCache(
+					new ContentCache(cacheSize, MAX_CACHED_FILE, policy));
+			}
+			if (mapMax > 0) {
+				server.setMappedFiles(
+					new MappedFileCache(mapMin, mapMax, MAX_MAPPED_FILES));
+			}
+			if (variantCacheSize > 0) {
+				int cpus = Runtime.getRuntime().availableProcessors();
+				server.setVariants(
+					new VariantCache(variantCacheSize, MAX_VARIANT_SOURCE,
+									 Math.max(1, cpus / 4)));
+			}
+			if (listingCacheSize > 0)
+				server.setListings(new DirectoryListings(listingCacheSize));
 			server.run();
 		} catch (FileNotFoundException ex) {
 			System.err.println(ex.getMessage());
@@ -0,0 +1,450 @@
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Remembers how request paths resolve to files below the server root:
+ * whether the file exists and is readable, which directory index was
+ * chosen, and the canonical path. A cached lookup does not touch the
+ * file system.
+ *
+ * The root and all directories below it are watched with a
+ * WatchService. Any change below the root drops all resolutions,
+ * since a change to one file or directory may affect many paths, and
+ * tells the listener which file changed so other caches can drop it
+ * too. If the root cannot be watched, nothing is cached.
+ *
+ */
+public class PathCache implements Runnable {
+
+	/**
+	 * Told about changes below the root.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called from the watch thread when a file has changed.
+		 *
+		 * @param file The changed file, with a canonical path, or null
+		 * if changes were lost and any file may have changed.
+		 */
+		void fileChanged (File file);
+	}
+
+	/**
+	 * How a request path resolves.
+	 */
+	public static class Resolution {
+
+		private File file;
+
+		private int code;
+
+		private boolean directory;
+
+		private long lastModified;
+
+		private long length;
+
+		private String etag;
+
+		private String contentType;
+
+		private boolean compressible;
+
+		Resolution (File file, int code, boolean directory,
+					long lastModified, long length, String etag,
+					String contentType) {
+			this.file = file;
+			this.code = code;
+			this.directory = directory;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.etag = etag;
+			this.contentType = contentType;
+			this.compressible = (contentType != null)
+				&& MimeTypes.isCompressible(contentType);
+		}
+
+		/**
+		 * Gets the file to send, with a canonical path, or null if
+		 * there is none.
+		 */
+		public File getFile () {
+			return file;
+		}
+
+		/**
+		 * Gets 200 if the file can be sent, otherwise the error code.
+		 */
+		public int getCode () {
+			return code;
+		}
+
+		/**
+		 * Whether the file is a directory without an index file.
+		 */
+		public boolean isDirectory () {
+			return directory;
+		}
+
+		public long getLastModified () {
+			return lastModified;
+		}
+
+		public long getLength () {
+			return length;
+		}
+
+		/**
+		 * Gets the strong entity tag of the file, including the quotes.
+		 */
+		public String getETag () {
+			return etag;
+		}
+
+		/**
+		 * Gets the MIME type of the file, from the extension of the
+		 * name it was requested by, or null for a directory.
+		 */
+		public String getContentType () {
+			return contentType;
+		}
+
+		/**
+		 * Whether the type of the file is worth compressing.
+		 */
+		public boolean isCompressible () {
+			return compressible;
+		}
+	}
+
+	/**
+	 * The file names to check when looking for a directory index.
+	 */
+	private static final String[] DIR_INDEX = { "index.html", "index.htm" };
+
+	/**
+	 * The server root, with a canonical path.
+	 */
+	private File root;
+
+	/**
+	 * The root path followed by a separator, which all files below the
+	 * root start with.
+	 */
+	private String rootPrefix;
+
+	private Listener listener;
+
+	private MimeTypes mimeTypes;
+
+	/**
+	 * The most resolutions kept. When there are more, all are dropped.
+	 */
+	private int maxEntries;
+
+	private ConcurrentHashMap<String,Resolution> resolutions =
+		new ConcurrentHashMap<String,Resolution>();
+
+	/**
+	 * Counts the times the resolutions have been dropped, so that a
+	 * lookup that raced with a change does not cache a stale result.
+	 */
+	private int generation = 0;
+
+	/**
+	 * Watches the root, or null if it cannot be watched.
+	 */
+	private volatile WatchService watcher;
+
+	private volatile boolean keepRunning = true;
+
+	/**
+	 * Creates a cache and starts watching the root.
+	 *
+	 * @param root The server root, with a canonical path.
+	 * @param maxEntries The most resolutions kept.
+	 * @param mimeTypes Gives the types of files.
+	 * @param listener Told about changed files, or null.
+	 */
+	public PathCache (File root, int maxEntries, MimeTypes mimeTypes,
+					  Listener listener) {
+		this.root = root;
+		this.mimeTypes = mimeTypes;
+		this.rootPrefix = root.getPath().endsWith(File.separator)
+			? root.getPath() : root.getPath() + File.separator;
+		this.maxEntries = maxEntries;
+		this.listener = listener;
+		try {
+			this.watcher = root.toPath().getFileSystem().newWatchService();
+			watchTree(watcher, root.toPath());
+		} catch (IOException ex) {
+			close();
+			return;
+		} catch (UnsupportedOperationException ex) {
+			close();
+			return;
+		}
+
+		Thread t = new Thread(this, "path-watcher");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Sets the types of files, and drops the resolutions made with the
+	 * old ones.
+	 */
+	public void setMimeTypes (MimeTypes mimeTypes) {
+		this.mimeTypes = mimeTypes;
+		clear();
+	}
+
+	/**
+	 * Whether the root is watched, so that resolutions are cached.
+	 */
+	public boolean isWatching () {
+		return watcher != null;
+	}
+
+	/**
+	 * Whether a canonical path is the root or below it.
+	 */
+	public boolean isBelowRoot (File file) {
+		String path = file.getPath();
+		return path.startsWith(rootPrefix) || path.equals(root.getPath());
+	}
+
+	/**
+	 * Gets the request path of a file below the root.
+	 *
+	 * @param file A file with a canonical path.
+	 */
+	public String getPath (File file) {
+		String path = file.getPath();
+		if (path.length() < rootPrefix.length())
+			return "/";
+		return "/" + path.substring(rootPrefix.length())
+			.replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Resolves a request path, looking at the file system only if it
+	 * has not been resolved since the last change.
+	 *
+	 * @param path The decoded request path.
+	 */
+	public Resolution get (String path) throws IOException {
+		if (watcher == null)
+			return resolve(path);
+
+		Resolution r = resolutions.get(path);
+		if (r != null)
+			return r;
+
+		int gen;
+		synchronized (this) {
+			gen = generation;
+		}
+		r = resolve(path);
+		synchronized (this) {
+			if (gen == generation) {
+				if (resolutions.size() >= maxEntries)
+					resolutions.clear();
+				resolutions.put(path, r);
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Gets the resolution of a request path if it is cached, without
+	 * looking at the file system.
+	 *
+	 * @return The resolution, or null if the path has to be resolved
+	 * with get().
+	 */
+	public Resolution peek (String path) {
+		if (watcher == null)
+			return null;
+		return resolutions.get(path);
+	}
+
+	/**
+	 * Resolves a request path against the file system.
+	 */
+	private Resolution resolve (String path) throws IOException {
+		StringBuffer relative = new StringBuffer(
+			path.replace('/', File.separatorChar));
+
+		// make path relative
+		while (relative.length() > 0
+			   && relative.charAt(0) == File.separatorChar) {
+			relative.deleteCharAt(0);
+		}
+		File file = new File(root, relative.toString());
+
+		if (file.isDirectory()) {
+			for (int i = 0; i < DIR_INDEX.length; i++) {
+				File index = new File(file, DIR_INDEX[i]);
+				if (index.isFile()) {
+					file = index;
+					break;
+				}
+			}
+		}
+
+		if (!file.exists())
+			return new Resolution(null, 404, false, 0, 0, null, null);
+
+		if (!file.canRead())
+			return new Resolution(null, 403, false, 0, 0, null, null);
+
+		// check that the file is below the root
+		File canonicalFile = file.getCanonicalFile();
+		if (!isBelowRoot(canonicalFile))
+			return new Resolution(null, 404, false, 0, 0, null, null);
+
+		Path p = canonicalFile.toPath();
+		BasicFileAttributes attrs = 
+			Files.readAttributes(p, BasicFileAttributes.class);
+		long lastModified = attrs.lastModifiedTime().toMillis();
+		// the name that was asked for, which a link may not have
+		String type = attrs.isDirectory()
+			? null : mimeTypes.lookup(file.getName());
+		return new Resolution(canonicalFile, 200, attrs.isDirectory(),
+							  lastModified, attrs.size(),
+							  makeETag(p, attrs, lastModified), type);
+	}
+
+	/**
+	 * Makes a strong entity tag from the inode number, size and
+	 * modification time of a file. Where there are no inode numbers,
+	 * the file key is used, or nothing.
+	 */
+	private static String makeETag (Path p, BasicFileAttributes attrs,
+									 long lastModified) {
+		Object id = null;
+		try {
+			id = Files.getAttribute(p, "unix:ino");
+		} catch (UnsupportedOperationException ex) {
+		} catch (IllegalArgumentException ex) {
+		} catch (IOException ex) {
+		}
+		if (id == null)
+			id = attrs.fileKey();
+
+		StringBuffer sb = new StringBuffer("\"");
+		if (id instanceof Long)
+			sb.append(Long.toHexString(((Long)id).longValue())).append('-');
+		else if (id != null)
+			sb.append(Integer.toHexString(id.hashCode())).append('-');
+		sb.append(Long.toHexString(attrs.size())).append('-');
+		sb.append(Long.toHexString(lastModified)).append('"');
+		return sb.toString();
+	}
+
+	/**
+	 * Drops all resolutions.
+	 */
+	public synchronized void clear () {
+		generation++;
+		resolutions.clear();
+	}
+
+	/**
+	 * Gets the number of cached resolutions.
+	 */
+	public int getCount () {
+		return resolutions.size();
+	}
+
+	/**
+	 * Stops watching the root.
+	 */
+	public void close () {
+		keepRunning = false;
+		try {
+			if (watcher != null)
+				watcher.close();
+		} catch (IOException ex) {
+		}
+		watcher = null;
+		clear();
+	}
+
+	/**
+	 * Registers a directory and all directories below it.
+	 */
+	private static void watchTree (final WatchService watcher, Path dir)
+		throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			public FileVisitResult preVisitDirectory (
+				Path d, BasicFileAttributes attrs) throws IOException {
+				d.register(watcher,
+						   StandardWatchEventKinds.ENTRY_CREATE,
+						   StandardWatchEventKinds.ENTRY_DELETE,
+						   StandardWatchEventKinds.ENTRY_MODIFY);
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult visitFileFailed (Path f, IOException ex) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Waits for changes below the root.
+	 */
+	public void run () {
+		WatchService w = watcher;
+		while (keepRunning && w != null) {
+			WatchKey key;
+			try {
+				key = w.take();
+			} catch (InterruptedException ex) {
+				break;
+			} catch (ClosedWatchServiceException ex) {
+				break;
+			}
+
+			clear();
+			Path dir = (Path)key.watchable();
+			List<WatchEvent<?>> events = key.pollEvents();
+			for (int i = 0; i < events.size(); i++) {
+				WatchEvent<?> event = events.get(i);
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					changed(null);
+					continue;
+				}
+				Path child = dir.resolve((Path)event.context());
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+					&& Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+					try {
+						watchTree(w, child);
+					} catch (IOException ex) {
+						// paths below it may resolve to what was
+						// there first until the next change elsewhere
+					}
+				}
+				changed(child.toFile());
+			}
+			// the key is invalid once the directory is gone
+			key.reset();
+
+			// drop anything resolved while the events were handled
+			clear();
+		}
+	}
+
+	private void changed (File file) {
+		if (listener != null)
+			listener.fileChanged(file);
+	}
+
+}
@@ -0,0 +1,160 @@
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * The body of a response that is relayed from an upstream server as it
+ * arrives. The upstream connection decodes the body into a buffer that
+ * the client connection writes from. When the buffer is full, the
+ * upstream connection stops reading until the client has taken some,
+ * and when it is empty the client connection stops writing until more
+ * has arrived, so that neither side is read faster than the other can
+ * take it.
+ *
+ * With blocking I/O, writing the content reads from the upstream
+ * whenever the buffer is empty.
+ *
+ */
+public class ProxyContent extends Content {
+
+	/**
+	 * The size of the buffer between the upstream and the client.
+	 */
+	private static final int BUFFER_SIZE = 32768;
+
+	/**
+	 * The connection the body arrives on, or null once all of it has
+	 * arrived, or the connection has failed.
+	 */
+	private UpstreamConnection upstream;
+
+	private HttpCodings codings;
+
+	/**
+	 * The data that has arrived and has not been written, from the
+	 * start of the buffer to its position.
+	 */
+	private ByteBuffer data;
+
+	private long size;
+
+	/**
+	 * Whether all of the body has arrived.
+	 */
+	private boolean complete = false;
+
+	/**
+	 * Why the upstream connection failed, or null.
+	 */
+	private IOException failure = null;
+
+	private Runnable listener = null;
+
+	/**
+	 * Creates the content for a response.
+	 *
+	 * @param codings The codings of the thread that writes the content,
+	 * which the buffer is taken from.
+	 * @param size The length of the body, or -1 if it is unknown.
+	 */
+	ProxyContent (UpstreamConnection upstream, HttpCodings codings,
+				  long size) {
+		this.upstream = upstream;
+		this.codings = codings;
+		this.size = size;
+		this.data = codings.allocate(BUFFER_SIZE);
+	}
+
+	/**
+	 * Gets the buffer that the body is decoded into.
+	 */
+	ByteBuffer getData () {
+		return data;
+	}
+
+	/**
+	 * Called by the upstream connection when it has added data.
+	 */
+	void available () {
+		if (listener != null)
+			listener.run();
+	}
+
+	/**
+	 * Called by the upstream connection when all of the body has
+	 * arrived.
+	 */
+	void complete () {
+		complete = true;
+		upstream = null;
+		available();
+	}
+
+	/**
+	 * Called by the upstream connection when it has failed before all
+	 * of the body has arrived. Writing the content then fails, which
+	 * closes the client connection, since the response is cut short.
+	 */
+	void failed (IOException ex) {
+		failure = ex;
+		upstream = null;
+		available();
+	}
+
+	public boolean writeTo (WritableByteChannel to) throws IOException {
+		while (true) {
+			if (failure != null)
+				throw new IOException("Upstream failed", failure);
+			if (data.position() > 0) {
+				data.flip();
+				to.write(data);
+				boolean all = !data.hasRemaining();
+				data.compact();
+				if (upstream != null)
+					upstream.drained();
+				if (!all)
+					return false;
+			} else if (complete) {
+				return true;
+			} else if (upstream.isBlocking()) {
+				upstream.fill();
+			} else {
+				return false;
+			}
+		}
+	}
+
+	public boolean isAvailable () {
+		return data.position() > 0 || complete || failure != null;
+	}
+
+	public void setListener (Runnable listener) {
+		this.listener = listener;
+	}
+
+	public long getSize () {
+		return size;
+	}
+
+	public String getContentType () {
+		return null;
+	}
+
+	/**
+	 * Gives back the buffer, and closes the upstream connection if it
+	 * has not sent all of the body.
+	 */
+	public void close () {
+		if (upstream != null) {
+			UpstreamConnection u = upstream;
+			upstream = null;
+			u.abort();
+		}
+		if (data != null) {
+			codings.recycle(data);
+			data = null;
+		}
+	}
+
+}
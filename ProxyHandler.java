@@ -0,0 +1,357 @@
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Forwards requests to upstream HTTP/1.1 servers, such as application
+ * processes behind the server, and relays their responses. Each request
+ * goes to the upstream with the fewest requests in progress; one whose
+ * connections fail is passed over for a while.
+ *
+ * On a reactor the response is suspended while the request is
+ * forwarded on a connection registered with the same reactor, taken
+ * from the ones kept open between requests if there is one. The
+ * request body has been read in full by then and is sent from memory
+ * or from its file; the response body streams back as it arrives,
+ * and is read no faster than the client takes it. With the thread
+ * engine the same is done with blocking I/O.
+ *
+ * A request that fails on a kept connection before any of the
+ * response arrives is sent again on a new one, since the upstream may
+ * have closed the connection while it was idle. As the upstream may
+ * also have acted on the request and then failed, this is only done
+ * for idempotent methods (GET, HEAD, OPTIONS, PUT, DELETE and TRACE),
+ * or when none of the request had been written; otherwise the client
+ * gets a 502 response. A request whose upstream cannot be connected to
+ * goes to another upstream instead.
+ *
+ */
+public class ProxyHandler implements RequestHandler {
+
+	/**
+	 * The default number of milliseconds an upstream may take to
+	 * connect, or to make progress with a response.
+	 */
+	public static final long DEFAULT_TIMEOUT = 30000;
+
+	/**
+	 * The default number of milliseconds an idle upstream connection is
+	 * kept open.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 15000;
+
+	/**
+	 * The default most idle connections kept to each upstream, for each
+	 * reactor.
+	 */
+	public static final int DEFAULT_MAX_IDLE = 32;
+
+	/**
+	 * How long, in milliseconds, an upstream that could not be reached
+	 * is passed over.
+	 */
+	private static final long DOWN_TIME = 1000;
+
+	/**
+	 * Request headers that are not forwarded, besides those named by
+	 * the Connection header.
+	 */
+	private static final String[] HOP_BY_HOP = {
+		"keep-alive", "proxy-connection", "te", "trailer", "upgrade"
+	};
+
+	private NioWebServer server;
+
+	private Upstream[] upstreams;
+
+	/**
+	 * Where the search for the least busy upstream starts, so that
+	 * upstreams that are equally busy take turns.
+	 */
+	private AtomicInteger next = new AtomicInteger();
+
+	private long timeout = DEFAULT_TIMEOUT;
+
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+	/**
+	 * Creates a handler.
+	 *
+	 * @param addresses The upstream servers.
+	 */
+	public ProxyHandler (NioWebServer server,
+						 List<InetSocketAddress> addresses) {
+		if (addresses.isEmpty())
+			throw new IllegalArgumentException("No upstreams");
+		this.server = server;
+		this.upstreams = new Upstream[addresses.size()];
+		for (int i = 0; i < upstreams.length; i++)
+			upstreams[i] = new Upstream(addresses.get(i), DEFAULT_MAX_IDLE);
+	}
+
+	/**
+	 * Parses a list of upstreams such as "localhost:9000,localhost:9001".
+	 */
+	public static List<InetSocketAddress> parseAddresses (String s) {
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		StringTokenizer st = new StringTokenizer(s, ",");
+		while (st.hasMoreTokens()) {
+			String a = st.nextToken().trim();
+			int colon = a.lastIndexOf(':');
+			if (colon == -1)
+				throw new IllegalArgumentException("No port in " + a);
+			addresses.add(new InetSocketAddress(
+							  a.substring(0, colon),
+							  Integer.parseInt(a.substring(colon + 1))));
+		}
+		return addresses;
+	}
+
+	public Upstream[] getUpstreams () {
+		return upstreams;
+	}
+
+	public long getTimeout () {
+		return timeout;
+	}
+
+	/**
+	 * Sets how long, in milliseconds, an upstream may take to connect,
+	 * or to make progress with a response.
+	 */
+	public void setTimeout (long timeout) {
+		this.timeout = timeout;
+	}
+
+	public long getIdleTimeout () {
+		return idleTimeout;
+	}
+
+	/**
+	 * Sets how long, in milliseconds, an idle upstream connection is
+	 * kept open.
+	 */
+	public void setIdleTimeout (long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public void handle (HttpRequest request, HttpResponse response)
+		throws ServerException, IOException {
+		if (request.getMethod().equals("CONNECT"))
+			throw new ServerException(501, "Method not implemented");
+		Upstream upstream = choose(true);
+		Reactor reactor = response.getReactor();
+		ByteBuffer head = encodeHead(request, response.getCodings());
+		UpstreamConnection connection = connect(upstream, reactor);
+		if (connection == null) {
+			response.getCodings().recycle(head);
+			throw new ServerException(502, "Bad Gateway");
+		}
+		if (reactor != null) {
+			response.suspend();
+			connection.start(request, response, head);
+			return;
+		}
+
+		try {
+			while (!connection.forward(request, response, head)) {
+				// kept open too long, try a new connection
+				head.rewind();
+				connection = open(upstream, null);
+				if (connection == null) {
+					response.getCodings().recycle(head);
+					throw new ServerException(502, "Bad Gateway");
+				}
+				upstream = connection.getUpstream();
+			}
+		} catch (IOException ex) {
+			log(connection.getUpstream(), ex);
+			if (ex instanceof SocketTimeoutException)
+				throw new ServerException(504, "Gateway Timeout");
+			throw new ServerException(502, "Bad Gateway");
+		}
+	}
+
+	/**
+	 * Whether a request with a method can be sent twice with the same
+	 * effect as once, so that it may be sent again after a failure.
+	 */
+	static boolean isIdempotent (String method) {
+		return method.equals("GET") || method.equals("HEAD")
+			|| method.equals("OPTIONS") || method.equals("PUT")
+			|| method.equals("DELETE") || method.equals("TRACE");
+	}
+
+	/**
+	 * Chooses the upstream with the fewest requests in progress, of
+	 * those that are not down.
+	 *
+	 * @param any Whether to choose one anyway if all are down, rather
+	 * than return null.
+	 */
+	private Upstream choose (boolean any) {
+		long now = System.currentTimeMillis();
+		int start = (next.getAndIncrement() & Integer.MAX_VALUE)
+			% upstreams.length;
+		Upstream best = null;
+		int least = Integer.MAX_VALUE;
+		for (int i = 0; i < upstreams.length; i++) {
+			Upstream u = upstreams[(start + i) % upstreams.length];
+			if (u.isDown(now))
+				continue;
+			int active = u.getActive();
+			if (active < least) {
+				best = u;
+				least = active;
+			}
+		}
+		// if all are down, try one anyway
+		return (best != null || !any) ? best : upstreams[start];
+	}
+
+	/**
+	 * Gets a kept connection to an upstream, or opens a new one.
+	 *
+	 * @param reactor The reactor that will use it, or null for blocking
+	 * I/O.
+	 * @return The connection, or null if no upstream could be reached.
+	 */
+	private UpstreamConnection connect (Upstream upstream, Reactor reactor) {
+		UpstreamConnection c;
+		long now = System.currentTimeMillis();
+		while ((c = upstream.takeIdle(reactor)) != null) {
+			// the reactors close theirs when they expire
+			if (reactor != null || !c.isExpired(now))
+				return c;
+			c.close();
+		}
+		return open(upstream, reactor);
+	}
+
+	/**
+	 * Opens a connection to an upstream, or if it cannot be reached, to
+	 * another that is not down, since nothing has been sent yet.
+	 *
+	 * @return The connection, or null if no upstream could be reached.
+	 */
+	private UpstreamConnection open (Upstream upstream, Reactor reactor) {
+		while (upstream != null) {
+			try {
+				return UpstreamConnection.open(server, reactor, this,
+											   upstream);
+			} catch (IOException ex) {
+				log(upstream, ex);
+				upstream = choose(false);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Encodes the head of a request to forward. Headers about the client
+	 * connection are left out, and the body, which has been read, is
+	 * sent with its length.
+	 */
+	private ByteBuffer encodeHead (HttpRequest request, HttpCodings codings)
+		throws IOException {
+		StringBuilder sb = new StringBuilder(512);
+		sb.append(request.getMethod()).append(' ').append(request.getTarget())
+			.append(" HTTP/1.1\r\n");
+		boolean host = false;
+		for (int i = 0; i < request.getHeaderCount(); i++) {
+			int id = request.getHeaderId(i);
+			if (id == HttpRequest.CONNECTION || id == HttpRequest.EXPECT
+				|| id == HttpRequest.CONTENT_LENGTH
+				|| id == HttpRequest.TRANSFER_ENCODING)
+				continue;
+			String name = request.getHeaderName(i);
+			if (id == HttpRequest.OTHER && isHopByHop(request, name))
+				continue;
+			if (id == HttpRequest.HOST)
+				host = true;
+			sb.append(name).append(": ").append(request.getHeaderValue(i))
+				.append("\r\n");
+		}
+		if (!host && request.getHost() != null)
+			sb.append("Host: ").append(request.getHost()).append("\r\n");
+		RequestBody body = request.getBody();
+		if (body != null)
+			sb.append("Content-Length: ").append(body.getLength()).append("\r\n");
+		sb.append("\r\n");
+		return codings.encodePooled(sb);
+	}
+
+	private static boolean isHopByHop (HttpRequest request, String name) {
+		for (int i = 0; i < HOP_BY_HOP.length; i++) {
+			if (name.equalsIgnoreCase(HOP_BY_HOP[i]))
+				return true;
+		}
+		return request.headerContains(HttpRequest.CONNECTION, name);
+	}
+
+	/**
+	 * Sends a request again on a new connection, after a kept one
+	 * turned out to have been closed, or a connection could not be
+	 * made. Called on the reactor thread.
+	 *
+	 * @param upstream The upstream to send it to, or null to choose
+	 * another that is not down.
+	 * @param ex Why the request is sent again.
+	 */
+	void retry (Upstream upstream, Reactor reactor, HttpRequest request,
+				HttpResponse response, ByteBuffer head, IOException ex) {
+		if (upstream == null)
+			upstream = choose(false);
+		UpstreamConnection c = null;
+		if (upstream != null) {
+			head.rewind();
+			c = open(upstream, reactor);
+		}
+		if (c == null) {
+			response.getCodings().recycle(head);
+			fail(request, response, ex);
+			return;
+		}
+		c.start(request, response, head);
+	}
+
+	/**
+	 * Finishes a suspended response with an error, when the upstream
+	 * has failed before sending the response head.
+	 */
+	void fail (final HttpRequest request, final HttpResponse response,
+			   IOException ex) {
+		final boolean timedOut = ex instanceof SocketTimeoutException;
+		server.log("Upstream failed: " + ex.getMessage());
+		response.resume(new Runnable() {
+			public void run () {
+				try {
+					if (timedOut)
+						response.setError(504, "Gateway Timeout",
+										  request.allowsContent());
+					else
+						response.setError(502, "Bad Gateway",
+										  request.allowsContent());
+				} catch (IOException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Passes over an upstream for a while, after it could not be
+	 * reached.
+	 */
+	void markDown (Upstream upstream) {
+		upstream.markDown(System.currentTimeMillis() + DOWN_TIME);
+	}
+
+	void log (Upstream upstream, IOException ex) {
+		server.log("Upstream " + upstream + " failed: " + ex.getMessage());
+	}
+
+}
@@ -0,0 +1,266 @@
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Multiplexes I/O for a set of channels on one thread. Each reactor
+ * has its own selector and its own codings, so the handlers that run
+ * on it need no locking.
+ *
+ */
+public class Reactor implements Runnable, Executor {
+
+	/**
+	 * The server.
+	 */
+	private NioWebServer server;
+
+	/**
+	 * Multiplexes the I/O of the channels owned by this reactor.
+	 */
+	private Selector selector;
+
+	/**
+	 * Encoding and decoding for the handlers running on this reactor.
+	 */
+	private HttpCodings codings;
+
+	/**
+	 * Accepted channels handed over from another thread, waiting to be
+	 * registered with the selector.
+	 */
+	private Queue<SocketChannel> incoming =
+		new ConcurrentLinkedQueue<SocketChannel>();
+
+	/**
+	 * Tasks handed over from other threads, run on the reactor thread.
+	 */
+	private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Connections with responses that the file stage could not take
+	 * yet, in the order they were turned away.
+	 */
+	private LinkedList<HttpConnection> deferred = 
+		new LinkedList<HttpConnection>();
+
+	/**
+	 * How often, in milliseconds, deferred responses are offered to 
+	 * the file stage again.
+	 */
+	private static final long RETRY_INTERVAL = 10;
+
+	/**
+	 * The number of connections owned by this reactor, including those
+	 * that have been handed over but not yet registered.
+	 */
+	private AtomicInteger connectionCount = new AtomicInteger();
+
+	/**
+	 * Controls whether the reactor should keep running.
+	 */
+	private volatile boolean keepRunning = true;
+
+	/**
+	 * The length of a tick of the timing wheel in milliseconds.
+	 */
+	private static final long TICK = 100;
+
+	/**
+	 * The number of slots of the timing wheel, so that one turn takes
+	 * about 100 seconds and most deadlines are less than one turn away.
+	 */
+	private static final int WHEEL_SLOTS = 1024;
+
+	/**
+	 * The deadlines of the connections owned by this reactor.
+	 */
+	private TimingWheel timers =
+		new TimingWheel(TICK, WHEEL_SLOTS, System.currentTimeMillis());
+
+	/**
+	 * Creates a new reactor, but does not start it.
+	 */
+	public Reactor (NioWebServer server) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+		this.codings = new HttpCodings(server.getBufferPool().newCache());
+	}
+
+	public HttpCodings getCodings () {
+		return codings;
+	}
+
+	/**
+	 * Gets the timing wheel of the reactor, which may only be used on
+	 * the reactor thread.
+	 */
+	public TimingWheel getTimers () {
+		return timers;
+	}
+
+	/**
+	 * Gets the number of connections owned by this reactor.
+	 */
+	public int getConnectionCount () {
+		return connectionCount.get();
+	}
+
+	/**
+	 * Registers a channel with a handler for multiplexed I/O. Must be
+	 * called on the reactor thread.
+	 */
+	protected SelectionKey register (SelectableChannel channel,
+									 Handler handler) throws IOException {
+		return channel.register(selector, handler.getInterestOps(), handler);
+	}
+
+	/**
+	 * Hands an accepted connection over to this reactor. May be called
+	 * from any thread.
+	 */
+	public void addConnection (SocketChannel channel) {
+		connectionCount.incrementAndGet();
+		incoming.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs a task on the reactor thread. May be called from any thread.
+	 */
+	public void invokeLater (Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs a task on the reactor thread, like invokeLater().
+	 */
+	public void execute (Runnable task) {
+		invokeLater(task);
+	}
+
+	/**
+	 * Remembers a connection whose responses the file stage could not
+	 * take, so that they are offered again. Must be called on the 
+	 * reactor thread.
+	 */
+	protected void defer (HttpConnection connection) {
+		deferred.addLast(connection);
+	}
+
+	/**
+	 * Called by a connection owned by this reactor when it is closed.
+	 *
+	 * @param address The client address.
+	 */
+	protected void connectionClosed (InetAddress address) {
+		connectionCount.decrementAndGet();
+		server.getConnectionLimits().closed(address);
+	}
+
+	/**
+	 * Stops the reactor. Requests in progress will not be finished.
+	 */
+	public void stop () {
+		keepRunning = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Registers the connections that have been handed over since the
+	 * last select.
+	 */
+	private void registerIncoming () {
+		SocketChannel channel;
+		while ((channel = incoming.poll()) != null) {
+			InetAddress address = channel.socket().getInetAddress();
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				new HttpConnection(server, this, channel);
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				connectionClosed(address);
+				try {
+					channel.close();
+				} catch (IOException ex2) {
+					ex2.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs the tasks handed over since the last select.
+	 */
+	private void runTasks () {
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+			task.run();
+	}
+
+	/**
+	 * Offers deferred responses to the file stage again, in order, 
+	 * until it is busy.
+	 */
+	private void submitDeferred () {
+		while (!deferred.isEmpty()) {
+			HttpConnection connection = deferred.getFirst();
+			if (connection.isOpen() && !connection.submitDeferred())
+				return;
+			deferred.removeFirst();
+		}
+	}
+
+	/**
+	 * Gets how long to wait in select(): until the next tick of the
+	 * timing wheel, or sooner if responses wait for the file stage.
+	 */
+	private long selectTimeout () {
+		long timeout = deferred.isEmpty() ? 1000 : RETRY_INTERVAL;
+		long next = timers.getTimeout(System.currentTimeMillis());
+		return (next > 0) ? Math.min(timeout, next) : timeout;
+	}
+
+	/**
+	 * Runs the reactor.
+	 */
+	public void run () {
+		try {
+
+			while (keepRunning) {
+				selector.select(selectTimeout());
+				Iterator i = selector.selectedKeys().iterator();
+				while (i.hasNext()) {
+					SelectionKey key = (SelectionKey)i.next();
+					i.remove();
+					SelectableChannel channel =
+						(SelectableChannel)key.channel();
+					Handler handler = (Handler)key.attachment();
+					try {
+						handler.handle(channel);
+					} catch (IOException ex) {
+						ex.printStackTrace();
+					}
+				}
+				runTasks();
+				submitDeferred();
+				registerIncoming();
+				timers.advance(System.currentTimeMillis());
+			}
+
+			Iterator<SelectionKey> i = selector.keys().iterator();
+			while (i.hasNext())
+				i.next().channel().close();
+			selector.close();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,322 @@
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * The body of a request, as it has been read. Small bodies are kept in
+ * a buffer from the reactor's pool; a body that grows larger, or is
+ * known to be larger from its Content-Length, goes to a temporary file
+ * instead, and data is moved from the socket straight to the file
+ * where the framing allows it. The temporary file is deleted when the
+ * body is released, unless it has been moved into place.
+ *
+ */
+public class RequestBody {
+
+	/**
+	 * The size of the buffer for a body of unknown length.
+	 */
+	private static final int INITIAL_SIZE = 2048;
+
+	private HttpCodings codings;
+
+	/**
+	 * The most bytes kept in memory.
+	 */
+	private int maxMemory;
+
+	/**
+	 * Where temporary files are created, or null for the default
+	 * temporary directory.
+	 */
+	private File directory;
+
+	/**
+	 * Starts the names of the files staged next to a target, when the
+	 * temporary directory is on another file system.
+	 */
+	static final String STAGING_PREFIX = ".body";
+
+	/**
+	 * Ends the names of staged files.
+	 */
+	static final String STAGING_SUFFIX = ".tmp";
+
+	/**
+	 * The data, if the body is kept in memory. It is flipped for
+	 * reading once the body is complete.
+	 */
+	private ByteBuffer buffer = null;
+
+	/**
+	 * The temporary file, or null if the body is kept in memory.
+	 */
+	private File file = null;
+
+	private FileChannel channel = null;
+
+	/**
+	 * The number of bytes read.
+	 */
+	private long length = 0;
+
+	/**
+	 * Whether the whole body has been read.
+	 */
+	private boolean complete = false;
+
+	/**
+	 * Creates an empty body.
+	 *
+	 * @param codings The codings whose pool the buffer is taken from.
+	 * @param size The length of the body, or -1 if it is unknown.
+	 * @param maxMemory The most bytes kept in memory.
+	 * @param directory Where temporary files are created, or null for
+	 * the default temporary directory.
+	 */
+	RequestBody (HttpCodings codings, long size, int maxMemory,
+				 File directory) throws IOException {
+		this.codings = codings;
+		this.maxMemory = maxMemory;
+		this.directory = directory;
+		if (size > maxMemory)
+			openFile();
+		else
+			buffer = codings.allocate(size < 0 ? INITIAL_SIZE : (int)size);
+	}
+
+	private void openFile () throws IOException {
+		file = File.createTempFile("body", ".tmp", directory);
+		channel = new RandomAccessFile(file, "rw").getChannel();
+	}
+
+	/**
+	 * Appends the remaining bytes of a buffer, moving the body to a
+	 * file if it becomes too large to keep in memory.
+	 */
+	void write (ByteBuffer src) throws IOException {
+		int n = src.remaining();
+		if (buffer != null && buffer.remaining() < n) {
+			if (buffer.position() + n > maxMemory) {
+				openFile();
+				buffer.flip();
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				codings.recycle(buffer);
+				buffer = null;
+			} else {
+				ByteBuffer b = codings.allocate(
+					Math.min(maxMemory, Math.max(buffer.capacity() * 2,
+												 buffer.position() + n)));
+				buffer.flip();
+				b.put(buffer);
+				codings.recycle(buffer);
+				buffer = b;
+			}
+		}
+		if (buffer != null) {
+			buffer.put(src);
+		} else {
+			while (src.hasRemaining())
+				channel.write(src);
+		}
+		length += n;
+	}
+
+	/**
+	 * Moves bytes from a channel straight to the file, without copying
+	 * them through the reactor's buffers. The body must be in a file.
+	 *
+	 * @param count The most bytes moved.
+	 * @return The number of bytes moved, which is 0 if the channel has
+	 * no data or has reached its end.
+	 */
+	long transferFrom (ReadableByteChannel src, long count)
+		throws IOException {
+		long n = channel.transferFrom(src, length, count);
+		length += n;
+		// transferFrom() does not move the position that write() uses
+		channel.position(length);
+		return n;
+	}
+
+	/**
+	 * Marks the body as complete so that it can be read.
+	 */
+	void finish () {
+		complete = true;
+		if (buffer != null)
+			buffer.flip();
+	}
+
+	/**
+	 * Whether the whole body has been read.
+	 */
+	public boolean isComplete () {
+		return complete;
+	}
+
+	/**
+	 * Gets the length of the body, or of the part that has been read.
+	 */
+	public long getLength () {
+		return length;
+	}
+
+	/**
+	 * Whether the body is in a temporary file rather than in memory.
+	 */
+	public boolean isInFile () {
+		return file != null;
+	}
+
+	/**
+	 * Gets the temporary file, or null if the body is in memory.
+	 */
+	public File getFile () {
+		return file;
+	}
+
+	/**
+	 * Gets the data of a complete body that is in memory. The buffer
+	 * belongs to the body and is valid until it is released.
+	 *
+	 * @return A read-only view of the data, or null if the body is in
+	 * a file.
+	 */
+	public ByteBuffer getBuffer () {
+		return (buffer != null) ? buffer.asReadOnlyBuffer() : null;
+	}
+
+	/**
+	 * Writes part of a complete body to a channel, such as to forward
+	 * it. A body in a file is sent with FileChannel.transferTo(), which
+	 * the kernel may do without copying.
+	 *
+	 * @param position Where in the body to start.
+	 * @return The number of bytes written, which may be fewer than
+	 * remain if the channel is non-blocking.
+	 */
+	public long transferTo (long position, WritableByteChannel target)
+		throws IOException {
+		if (buffer != null) {
+			ByteBuffer b = buffer.duplicate();
+			b.position((int)position);
+			return target.write(b);
+		}
+		return channel.transferTo(position, length - position, target);
+	}
+
+	/**
+	 * Opens a stream that reads a complete body from the start.
+	 */
+	public InputStream getInputStream () throws IOException {
+		if (buffer != null) {
+			final ByteBuffer b = buffer.duplicate();
+			return new InputStream() {
+				public int read () {
+					return b.hasRemaining() ? b.get() & 0xff : -1;
+				}
+
+				public int read (byte[] dst, int off, int len) {
+					if (!b.hasRemaining())
+						return -1;
+					len = Math.min(len, b.remaining());
+					b.get(dst, off, len);
+					return len;
+				}
+			};
+		}
+		return new FileInputStream(file);
+	}
+
+	/**
+	 * Tells whether a file name is one a body may be staged under next
+	 * to its target. Such files should not be served or listed.
+	 */
+	static boolean isStagingName (String name) {
+		return name.startsWith(STAGING_PREFIX)
+			&& name.endsWith(STAGING_SUFFIX);
+	}
+
+	/**
+	 * Moves a complete body to a file, replacing it if it exists.
+	 * Readers of the file see either the old or the new contents.
+	 * The body should not be read afterwards. It may be moved on any
+	 * thread, but is released on the thread that read it.
+	 */
+	public void moveTo (File target) throws IOException {
+		File dir = target.getAbsoluteFile().getParentFile();
+		Path source;
+		if (file == null) {
+			File tmp = File.createTempFile("body", ".tmp", directory);
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				if (buffer != null) {
+					ByteBuffer b = buffer.duplicate();
+					while (b.hasRemaining())
+						out.getChannel().write(b);
+				}
+			} catch (IOException ex) {
+				out.close();
+				tmp.delete();
+				throw ex;
+			}
+			out.close();
+			source = tmp.toPath();
+		} else {
+			channel.close();
+			channel = null;
+			source = file.toPath();
+		}
+
+		try {
+			Files.move(source, target.toPath(),
+					   StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException ex) {
+			// the temporary directory is on another file system, so
+			// copy next to the target first, under a name that is
+			// not served
+			File tmp = File.createTempFile(STAGING_PREFIX, STAGING_SUFFIX,
+										   dir);
+			try {
+				Files.copy(source, tmp.toPath(),
+						   StandardCopyOption.REPLACE_EXISTING);
+				Files.move(tmp.toPath(), target.toPath(),
+						   StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				tmp.delete();
+				Files.deleteIfExists(source);
+			}
+		} finally {
+			if (file == null)
+				Files.deleteIfExists(source);
+		}
+		file = null;
+	}
+
+	/**
+	 * Gives back the buffer and deletes the temporary file. The body
+	 * cannot be used afterwards.
+	 */
+	void release () {
+		if (buffer != null) {
+			codings.recycle(buffer);
+			buffer = null;
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+			}
+			channel = null;
+		}
+		if (file != null) {
+			file.delete();
+			file = null;
+		}
+	}
+
+}
@@ -0,0 +1,31 @@
+
+import java.io.*;
+
+/**
+ * Makes the responses to the requests that a Router sends to it, such
+ * as the files below the server root, or a dynamic endpoint.
+ *
+ * A handler runs on the thread that read the request, which on the
+ * selector engine is a reactor that serves many other connections, so
+ * it must not block. It either fills in the response before it returns,
+ * or calls suspend() on the response and finishes it later with
+ * resume(), from any thread, without holding up the reactor meanwhile.
+ * A handler that has to wait for the file system may instead throw
+ * WouldBlockException if the response does not allow blocking; it is
+ * then called again on the file stage, where it may block but must not
+ * suspend.
+ *
+ */
+public interface RequestHandler {
+
+	/**
+	 * Handles a request.
+	 *
+	 * @throws ServerException If the request fails, to send an error
+	 * response. A handler that has suspended the response must not
+	 * throw.
+	 */
+	void handle (HttpRequest request, HttpResponse response)
+		throws ServerException, IOException;
+
+}
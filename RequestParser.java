@@ -0,0 +1,359 @@
+
+import java.nio.*;
+
+/**
+ * An incremental parser for HTTP request lines and headers. The parser
+ * works directly on the bytes that have been read and keeps its state
+ * between reads, so a request may arrive in any number of pieces and
+ * nothing is scanned twice. Known methods, versions and header names
+ * are recognized without creating strings.
+ *
+ */
+public class RequestParser {
+
+	private static final int START = 0;
+	private static final int METHOD = 1;
+	private static final int URI = 2;
+	private static final int VERSION = 3;
+	private static final int REQUEST_LINE_LF = 4;
+	private static final int HEADER_START = 5;
+	private static final int NAME = 6;
+	private static final int VALUE_START = 7;
+	private static final int VALUE = 8;
+	private static final int HEADER_LF = 9;
+	private static final int END_LF = 10;
+
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+
+	/**
+	 * The methods that are recognized without creating a string.
+	 */
+	private static final String[] METHODS = {
+		"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "TRACE",
+		"CONNECT", "PATCH"
+	};
+
+	/**
+	 * The versions that are recognized without creating a string.
+	 */
+	private static final String[] VERSIONS = { "HTTP/1.1", "HTTP/1.0" };
+
+	/**
+	 * The well-known header names in lower case, indexed by header
+	 * number.
+	 */
+	private static final byte[][] HEADER_BYTES =
+		toBytes(HttpRequest.HEADER_NAMES, true);
+
+	private static final byte[][] METHOD_BYTES = toBytes(METHODS, false);
+
+	private static final byte[][] VERSION_BYTES = toBytes(VERSIONS, false);
+
+	/**
+	 * The request being filled in.
+	 */
+	private HttpRequest request;
+
+	private int state = START;
+
+	/**
+	 * Where the token being parsed starts in the request data.
+	 */
+	private int tokenStart;
+
+	/**
+	 * Where the name of the header being parsed starts and ends.
+	 */
+	private int nameStart;
+
+	private int nameEnd;
+
+	/**
+	 * The number of bytes of the request line read so far.
+	 */
+	private int lineBytes;
+
+	/**
+	 * The number of bytes of headers read so far.
+	 */
+	private int headerBytes;
+
+	/**
+	 * The number of headers read so far.
+	 */
+	private int headerCount;
+
+	/**
+	 * The maximum length of the request line.
+	 */
+	private int maxRequestLine;
+
+	/**
+	 * The maximum number of headers.
+	 */
+	private int maxHeaders;
+
+	/**
+	 * The maximum total length of the headers.
+	 */
+	private int maxHeaderBytes;
+
+	/**
+	 * Creates a parser that fills in a request.
+	 *
+	 * @param maxRequestLine The maximum length of the request line. 
+	 * Longer requests get a 414 response.
+	 * @param maxHeaders The maximum number of headers.
+	 * @param maxHeaderBytes The maximum total length of the headers. 
+	 * Requests with more or longer headers get a 431 response.
+	 */
+	public RequestParser (HttpRequest request, int maxRequestLine, 
+						  int maxHeaders, int maxHeaderBytes) {
+		this.request = request;
+		this.maxRequestLine = maxRequestLine;
+		this.maxHeaders = maxHeaders;
+		this.maxHeaderBytes = maxHeaderBytes;
+	}
+
+	/**
+	 * Starts parsing a new request.
+	 */
+	public void reset (HttpRequest request) {
+		this.request = request;
+		this.state = START;
+	}
+
+	/**
+	 * Whether part of a request has been read, but not all of its
+	 * request line and headers.
+	 */
+	public boolean isStarted () {
+		return state != START;
+	}
+
+	/**
+	 * Parses bytes until the end of the request headers, or until
+	 * there are no more bytes. If the request is malformed, it is
+	 * completed with an error that is thrown when the request is
+	 * parsed.
+	 *
+	 * @return True if the request is complete, in which case the
+	 * buffer is positioned after it.
+	 */
+	@SuppressWarnings("fallthrough")
+	public boolean parse (ByteBuffer buf) {
+		while (buf.hasRemaining()) {
+			byte b = buf.get();
+			if (state < HEADER_START) {
+				if (++lineBytes > maxRequestLine)
+					return error(414, "Request-URI Too Long");
+			} else if (++headerBytes > maxHeaderBytes) {
+				return error(431, "Request Header Fields Too Large");
+			}
+
+			switch (state) {
+			case START:
+				// ignore empty lines before the request line
+				if (b == CR || b == LF) {
+					lineBytes = 0;
+					break;
+				}
+				tokenStart = request.getLength();
+				headerBytes = 0;
+				headerCount = 0;
+				state = METHOD;
+				// fall through
+			case METHOD:
+				if (b == ' ') {
+					request.setMethod(token(METHOD_BYTES, METHODS));
+					tokenStart = request.getLength();
+					state = URI;
+				} else if (isTokenChar(b)) {
+					request.append(b);
+				} else {
+					return error(400, "Bad request");
+				}
+				break;
+			case URI:
+				if (b == ' ') {
+					if (tokenStart == request.getLength())
+						return error(400, "Bad request");
+					request.setURI(tokenStart, request.getLength());
+					tokenStart = request.getLength();
+					state = VERSION;
+				} else if (b == CR || b == LF) {
+					return error(400, "Bad request");
+				} else {
+					request.append(b);
+				}
+				break;
+			case VERSION:
+				if (b == CR) {
+					state = REQUEST_LINE_LF;
+				} else if (b == LF) {
+					request.setVersion(token(VERSION_BYTES, VERSIONS));
+					state = HEADER_START;
+				} else {
+					request.append(b);
+				}
+				break;
+			case REQUEST_LINE_LF:
+				if (b != LF)
+					return error(400, "Bad request");
+				request.setVersion(token(VERSION_BYTES, VERSIONS));
+				state = HEADER_START;
+				break;
+			case HEADER_START:
+				if (b == CR) {
+					state = END_LF;
+				} else if (b == LF) {
+					return complete();
+				} else if (isTokenChar(b)) {
+					if (++headerCount > maxHeaders) {
+						return error(431, 
+									 "Request Header Fields Too Large");
+					}
+					nameStart = request.getLength();
+					request.append(b);
+					state = NAME;
+				} else {
+					// includes obsolete line folding
+					return error(400, "Bad request");
+				}
+				break;
+			case NAME:
+				if (b == ':') {
+					nameEnd = request.getLength();
+					tokenStart = nameEnd;
+					state = VALUE_START;
+				} else if (isTokenChar(b)) {
+					request.append(b);
+				} else {
+					return error(400, "Bad request");
+				}
+				break;
+			case VALUE_START:
+				if (b == ' ' || b == '\t')
+					break;
+				state = VALUE;
+				// fall through
+			case VALUE:
+				if (b == CR) {
+					state = HEADER_LF;
+				} else if (b == LF) {
+					endHeader();
+					state = HEADER_START;
+				} else {
+					request.append(b);
+				}
+				break;
+			case HEADER_LF:
+				if (b != LF)
+					return error(400, "Bad request");
+				endHeader();
+				state = HEADER_START;
+				break;
+			case END_LF:
+				if (b != LF)
+					return error(400, "Bad request");
+				return complete();
+			}
+		}
+		return false;
+	}
+
+	private boolean complete () {
+		state = START;
+		lineBytes = 0;
+		return true;
+	}
+
+	private boolean error (int code, String message) {
+		request.setError(new ServerException(code, message));
+		return complete();
+	}
+
+	/**
+	 * Adds the header that has just been parsed to the request.
+	 */
+	private void endHeader () {
+		int end = request.getLength();
+		while (end > tokenStart) {
+			byte b = request.getByte(end-1);
+			if (b != ' ' && b != '\t')
+				break;
+			end--;
+		}
+		request.addHeader(headerId(), nameStart, nameEnd, tokenStart, end);
+	}
+
+	/**
+	 * Gets the number of the header name that has just been parsed.
+	 */
+	private int headerId () {
+		int len = nameEnd - nameStart;
+		for (int i = 0; i < HEADER_BYTES.length; i++) {
+			byte[] name = HEADER_BYTES[i];
+			if (name.length != len)
+				continue;
+			int j = 0;
+			while (j < len && toLower(request.getByte(nameStart+j)) == name[j])
+				j++;
+			if (j == len)
+				return i;
+		}
+		return HttpRequest.OTHER;
+	}
+
+	/**
+	 * Gets the token that has just been parsed, using a constant string
+	 * if it is one of the known values.
+	 */
+	private String token (byte[][] known, String[] names) {
+		int len = request.getLength() - tokenStart;
+		for (int i = 0; i < known.length; i++) {
+			byte[] k = known[i];
+			if (k.length != len)
+				continue;
+			int j = 0;
+			while (j < len && request.getByte(tokenStart+j) == k[j])
+				j++;
+			if (j == len)
+				return names[i];
+		}
+		return request.getText(tokenStart, request.getLength());
+	}
+
+	private static byte toLower (byte b) {
+		return (b >= 'A' && b <= 'Z') ? (byte)(b + ('a' - 'A')) : b;
+	}
+
+	/**
+	 * Whether a byte may be part of a method or header name.
+	 */
+	private static boolean isTokenChar (byte b) {
+		if (b <= ' ' || b >= 127)
+			return false;
+		switch (b) {
+		case '(': case ')': case '<': case '>': case '@': case ',':
+		case ';': case ':': case '\\': case '"': case '/': case '[':
+		case ']': case '?': case '=': case '{': case '}':
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	private static byte[][] toBytes (String[] s, boolean lowerCase) {
+		byte[][] b = new byte[s.length][];
+		for (int i = 0; i < s.length; i++) {
+			String t = lowerCase ? s[i].toLowerCase() : s[i];
+			b[i] = new byte[t.length()];
+			for (int j = 0; j < t.length(); j++)
+				b[i][j] = (byte)t.charAt(j);
+		}
+		return b;
+	}
+
+}
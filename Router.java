@@ -0,0 +1,206 @@
+
+import java.util.*;
+
+/**
+ * Chooses the handler for each request path. Routes are added while
+ * the server is set up, and are then compiled into a radix tree, whose
+ * edges are labeled with whole runs of characters, so that routing a
+ * path takes one pass over it, however many routes there are, with no
+ * regular expressions and no allocation.
+ *
+ * A route is either exact, such as "/health", which matches only that
+ * path, or a prefix, such as "/api/*", which matches every path that
+ * starts with "/api/". An exact route wins over a prefix, and a longer
+ * prefix over a shorter one. Paths that match no route go to the
+ * default handler.
+ *
+ */
+public class Router {
+
+	/**
+	 * A node of the radix tree.
+	 */
+	private static class Node {
+
+		/**
+		 * The characters of the edge that leads to this node.
+		 */
+		char[] label;
+
+		/**
+		 * The first character of the label of each child, in order.
+		 */
+		char[] firsts = new char[0];
+
+		Node[] children = new Node[0];
+
+		/**
+		 * The handler for the path that ends at this node, or null.
+		 */
+		RequestHandler exact;
+
+		/**
+		 * The handler for paths that start with the path to this
+		 * node, or null.
+		 */
+		RequestHandler prefix;
+
+		Node (char[] label) {
+			this.label = label;
+		}
+
+		Node child (char c) {
+			int i = Arrays.binarySearch(firsts, c);
+			return (i >= 0) ? children[i] : null;
+		}
+
+		void addChild (Node child) {
+			int i = -Arrays.binarySearch(firsts, child.label[0]) - 1;
+			char[] f = new char[firsts.length + 1];
+			Node[] c = new Node[children.length + 1];
+			System.arraycopy(firsts, 0, f, 0, i);
+			System.arraycopy(children, 0, c, 0, i);
+			f[i] = child.label[0];
+			c[i] = child;
+			System.arraycopy(firsts, i, f, i + 1, firsts.length - i);
+			System.arraycopy(children, i, c, i + 1, children.length - i);
+			firsts = f;
+			children = c;
+		}
+	}
+
+	/**
+	 * The routes added, by pattern, in the order they were added.
+	 */
+	private LinkedHashMap<String,RequestHandler> routes =
+		new LinkedHashMap<String,RequestHandler>();
+
+	private RequestHandler defaultHandler;
+
+	/**
+	 * The root of the compiled tree, or null if routes have been added
+	 * since it was compiled.
+	 */
+	private volatile Node root = null;
+
+	/**
+	 * Creates a router.
+	 *
+	 * @param defaultHandler Handles the paths that match no route.
+	 */
+	public Router (RequestHandler defaultHandler) {
+		this.defaultHandler = defaultHandler;
+	}
+
+	/**
+	 * Adds a route, replacing any with the same pattern. The route is
+	 * used once the router is compiled again.
+	 *
+	 * @param pattern A path, such as "/health", or a path followed by
+	 * "*", such as "/api/*", for all paths that start with it.
+	 */
+	public synchronized void add (String pattern, RequestHandler handler) {
+		if (pattern.length() == 0 || pattern.charAt(0) != '/')
+			throw new IllegalArgumentException("Bad route " + pattern);
+		routes.put(pattern, handler);
+	}
+
+	/**
+	 * Gets the handler for the paths that match no route.
+	 */
+	public RequestHandler getDefaultHandler () {
+		return defaultHandler;
+	}
+
+	/**
+	 * Builds the tree from the routes. Must be called before routing.
+	 */
+	public synchronized void compile () {
+		Node r = new Node(new char[0]);
+		Iterator<Map.Entry<String,RequestHandler>> i =
+			routes.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<String,RequestHandler> e = i.next();
+			String pattern = e.getKey();
+			boolean prefix = pattern.endsWith("*");
+			if (prefix)
+				pattern = pattern.substring(0, pattern.length() - 1);
+			Node n = insert(r, pattern.toCharArray());
+			if (prefix)
+				n.prefix = e.getValue();
+			else
+				n.exact = e.getValue();
+		}
+		root = r;
+	}
+
+	/**
+	 * Gets the node for a path, splitting edges and adding nodes as
+	 * needed.
+	 */
+	private static Node insert (Node n, char[] path) {
+		int i = 0;
+		while (i < path.length) {
+			Node child = n.child(path[i]);
+			if (child == null) {
+				child = new Node(Arrays.copyOfRange(path, i, path.length));
+				n.addChild(child);
+				return child;
+			}
+			// the length of the common start of the label and the rest
+			// of the path
+			char[] label = child.label;
+			int j = 0;
+			while (j < label.length && i + j < path.length
+				   && label[j] == path[i + j])
+				j++;
+			if (j < label.length) {
+				// split the edge
+				Node middle = new Node(Arrays.copyOfRange(label, 0, j));
+				child.label = Arrays.copyOfRange(label, j, label.length);
+				middle.addChild(child);
+				int k = Arrays.binarySearch(n.firsts, label[0]);
+				n.children[k] = middle;
+				child = middle;
+			}
+			n = child;
+			i += j;
+		}
+		return n;
+	}
+
+	/**
+	 * Gets the handler for a request path.
+	 *
+	 * @param path The decoded request path, without the query.
+	 */
+	public RequestHandler route (String path) {
+		Node n = root;
+		if (n == null)
+			throw new IllegalStateException("Router is not compiled");
+		RequestHandler best = defaultHandler;
+		int i = 0;
+		int length = path.length();
+		while (true) {
+			if (i == length && n.exact != null)
+				return n.exact;
+			if (n.prefix != null)
+				best = n.prefix;
+			if (i == length)
+				return best;
+			Node child = n.child(path.charAt(i));
+			if (child == null)
+				return best;
+			char[] label = child.label;
+			if (length - i < label.length)
+				return best;
+			for (int j = 0; j < label.length; j++) {
+				if (path.charAt(i + j) != label[j])
+					return best;
+			}
+			i += label.length;
+			n = child;
+		}
+	}
+
+}
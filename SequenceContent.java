@@ -0,0 +1,55 @@
+
+import java.io.*;
+import java.nio.channels.*;
+
+/**
+ * Sends a number of contents one after the other, for example the 
+ * parts of a multipart/byteranges response.
+ *
+ */
+public class SequenceContent extends Content {
+
+	private Content[] parts;
+
+	/**
+	 * The part being sent.
+	 */
+	private int current = 0;
+
+	/**
+	 * The total number of bytes to be sent.
+	 */
+	private long size;
+
+	private String type;
+
+	public SequenceContent (Content[] parts, String type) {
+		this.parts = parts;
+		this.type = type;
+		for (int i = 0; i < parts.length; i++)
+			size += parts[i].getSize();
+	}
+
+	public boolean writeTo (WritableByteChannel to) throws IOException {
+		while (current < parts.length) {
+			if (!parts[current].writeTo(to))
+				return false;
+			current++;
+		}
+		return true;
+	}
+
+	public void close () throws IOException {
+		for (int i = 0; i < parts.length; i++)
+			parts[i].close();
+	}
+
+	public long getSize () {
+		return size;
+	}
+
+	public String getContentType () {
+		return type;
+	}
+
+}
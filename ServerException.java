@@ -3,13 +3,39 @@ class ServerException extends Exception {
 
 	private int code;
 
+	/**
+	 * A header that the error response must have, or null.
+	 */
+	private String headerName;
+
+	private String headerValue;
+
 	public ServerException(int code, String message) {
 		super(message);
 		this.code = code;
 	}
 
+	/**
+	 * Creates an exception whose error response has a header, such as
+	 * Allow or Content-Range.
+	 */
+	public ServerException(int code, String message, String headerName,
+						   String headerValue) {
+		this(code, message);
+		this.headerName = headerName;
+		this.headerValue = headerValue;
+	}
+
 	public int getCode() {
 		return code;
 	}
 
+	public String getHeaderName() {
+		return headerName;
+	}
+
+	public String getHeaderValue() {
+		return headerValue;
+	}
+
 }
@@ -0,0 +1,113 @@
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ * Reports on the server, for monitoring. The health path answers "ok"
+ * for as long as the server serves requests, and the status path gives
+ * the number of open connections, the work waiting for the file stage,
+ * and how well the caches do, as a JSON object. Neither is cached by
+ * clients.
+ *
+ */
+public class StatusHandler implements RequestHandler {
+
+	private NioWebServer server;
+
+	/**
+	 * The time the handler was created, about when the server started.
+	 */
+	private long started = System.currentTimeMillis();
+
+	/**
+	 * Creates a handler for a server.
+	 */
+	public StatusHandler (NioWebServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Routes the status and health paths below a prefix to a new 
+	 * handler.
+	 *
+	 * @param prefix A path that ends in "/", such as "/_server/".
+	 */
+	public static void mount (NioWebServer server, String prefix) {
+		StatusHandler handler = new StatusHandler(server);
+		server.addRoute(prefix + "status", handler);
+		server.addRoute(prefix + "health", handler);
+	}
+
+	public void handle (HttpRequest request, HttpResponse response)
+		throws ServerException, IOException {
+		String method = request.getMethod();
+		if (!(method.equals("GET") || method.equals("HEAD"))) {
+			throw new ServerException(405, "Method Not Allowed",
+									  "Allow", "GET, HEAD");
+		}
+		String text;
+		String type;
+		if (request.getRequestURI().endsWith("/health")) {
+			text = "ok\n";
+			type = "text/plain";
+		} else {
+			text = getStatus();
+			type = "application/json";
+		}
+		response.addHeader(HeaderWriter.CACHE_CONTROL_NO_STORE);
+		HttpCodings codings = response.getCodings();
+		ByteBuffer buf = codings.encodePooled(text);
+		if (request.allowsContent()) {
+			response.setContent(new BufferContent(buf, type, codings));
+		} else {
+			response.addContentType(type);
+			response.addHeader("Content-Length", buf.remaining());
+			codings.recycle(buf);
+		}
+	}
+
+	/**
+	 * Gets the status of the server as a JSON object.
+	 */
+	public String getStatus () {
+		StringBuilder sb = new StringBuilder(256);
+		ConnectionLimits limits = server.getConnectionLimits();
+		sb.append("{\"uptime\":")
+			.append((System.currentTimeMillis() - started) / 1000);
+		sb.append(",\"connections\":").append(limits.getCount());
+		sb.append(",\"maxConnections\":").append(limits.getMaxConnections());
+		sb.append(",\"refused\":").append(limits.getRefused());
+		FileStage stage = server.getFileStage();
+		if (stage != null)
+			sb.append(",\"fileStagePending\":").append(stage.getPending());
+		ContentCache cache = server.getContentCache();
+		if (cache != null) {
+			sb.append(",\"contentCache\":{\"hits\":").append(cache.getHits())
+				.append(",\"misses\":").append(cache.getMisses())
+				.append(",\"files\":").append(cache.getCount())
+				.append(",\"bytes\":").append(cache.getSize()).append('}');
+		}
+		MappedFileCache mapped = server.getMappedFiles();
+		if (mapped != null) {
+			sb.append(",\"mappedFiles\":{\"hits\":").append(mapped.getHits())
+				.append(",\"misses\":").append(mapped.getMisses())
+				.append('}');
+		}
+		VariantCache variants = server.getVariants();
+		if (variants != null) {
+			sb.append(",\"variants\":{\"hits\":").append(variants.getHits())
+				.append(",\"misses\":").append(variants.getMisses())
+				.append('}');
+		}
+		DirectoryListings listings = server.getListings();
+		if (listings != null) {
+			sb.append(",\"listings\":{\"hits\":").append(listings.getHits())
+				.append(",\"misses\":").append(listings.getMisses())
+				.append(",\"directories\":").append(listings.getCount())
+				.append(",\"bytes\":").append(listings.getSize()).append('}');
+		}
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,210 @@
+
+/**
+ * A hashed timing wheel that keeps the deadlines of the connections of
+ * one reactor. Deadlines are hashed by tick into a ring of slots, each
+ * a doubly linked list of timers, so scheduling, moving and cancelling
+ * a timer take constant time however many connections there are. The
+ * reactor advances the wheel between selects, which only visits the
+ * slots whose ticks have passed. A timer that is more than one turn of
+ * the wheel away stays in its slot and is passed over until its turn.
+ *
+ * The wheel is used only on its reactor's thread and is not
+ * synchronized.
+ *
+ */
+public class TimingWheel {
+
+	/**
+	 * Something that happens at a deadline. A timer is in at most one
+	 * wheel at a time.
+	 */
+	public static abstract class Timer {
+
+		private Timer prev;
+
+		private Timer next;
+
+		private long deadline;
+
+		/**
+		 * The slot the timer is in, EXPIRING if advance() has taken it
+		 * out to expire, or -1 if it is not scheduled.
+		 */
+		private int slot = -1;
+
+		public boolean isScheduled () {
+			return slot != -1;
+		}
+
+		public long getDeadline () {
+			return deadline;
+		}
+
+		/**
+		 * Called by advance() once the deadline has passed. The timer
+		 * is no longer scheduled, but may schedule itself again.
+		 */
+		protected abstract void expired ();
+	}
+
+	/**
+	 * The slot of a timer that advance() has taken out to expire, and
+	 * that has not been cancelled or scheduled again since.
+	 */
+	private static final int EXPIRING = -2;
+
+	/**
+	 * The first timer in each slot.
+	 */
+	private Timer[] slots;
+
+	/**
+	 * The timers that advance() is expiring, reused between calls.
+	 */
+	private Timer[] expiring = new Timer[16];
+
+	private int mask;
+
+	/**
+	 * The length of a tick in milliseconds.
+	 */
+	private long tick;
+
+	/**
+	 * The last tick that has been handled.
+	 */
+	private long currentTick;
+
+	/**
+	 * The number of scheduled timers.
+	 */
+	private int count = 0;
+
+	/**
+	 * Creates a wheel.
+	 *
+	 * @param tick The length of a tick in milliseconds. Timers expire
+	 * up to one tick late.
+	 * @param slotCount The number of slots, a power of two. One turn of
+	 * the wheel is tick * slotCount milliseconds.
+	 * @param now The current time.
+	 */
+	public TimingWheel (long tick, int slotCount, long now) {
+		if (slotCount <= 0 || (slotCount & (slotCount - 1)) != 0)
+			throw new IllegalArgumentException("slot count " + slotCount);
+		this.tick = tick;
+		this.slots = new Timer[slotCount];
+		this.mask = slotCount - 1;
+		this.currentTick = now / tick;
+	}
+
+	/**
+	 * Schedules a timer, or moves it if it is scheduled already.
+	 *
+	 * @param deadline The time at which it expires. If this has passed,
+	 * it expires at the next tick.
+	 */
+	public void schedule (Timer timer, long deadline) {
+		// the first tick at or after the deadline
+		long t = Math.max((deadline + tick - 1) / tick, currentTick + 1);
+		int s = (int)(t & mask);
+		timer.deadline = deadline;
+		if (timer.slot == s)
+			return;
+		cancel(timer);
+
+		timer.slot = s;
+		timer.prev = null;
+		timer.next = slots[s];
+		if (slots[s] != null)
+			slots[s].prev = timer;
+		slots[s] = timer;
+		count++;
+	}
+
+	/**
+	 * Unschedules a timer. Nothing happens if it is not scheduled. A
+	 * timer that is due but has not expired yet does not expire.
+	 */
+	public void cancel (Timer timer) {
+		if (timer.slot == -1)
+			return;
+		if (timer.slot == EXPIRING) {
+			timer.slot = -1;
+			return;
+		}
+		if (timer.prev != null)
+			timer.prev.next = timer.next;
+		else
+			slots[timer.slot] = timer.next;
+		if (timer.next != null)
+			timer.next.prev = timer.prev;
+		timer.prev = null;
+		timer.next = null;
+		timer.slot = -1;
+		count--;
+	}
+
+	/**
+	 * Expires the timers whose deadlines have passed, visiting the
+	 * slots of the ticks since the last call.
+	 */
+	public void advance (long now) {
+		long target = now / tick;
+		if (target - currentTick > slots.length)
+			currentTick = target - slots.length;
+		while (currentTick < target) {
+			currentTick++;
+			int s = (int)(currentTick & mask);
+
+			// take the expired timers out first, since expiring one
+			// may change the list
+			int n = 0;
+			Timer t = slots[s];
+			while (t != null) {
+				Timer next = t.next;
+				if (t.deadline <= now) {
+					cancel(t);
+					t.slot = EXPIRING;
+					if (n == expiring.length) {
+						Timer[] e = new Timer[n * 2];
+						System.arraycopy(expiring, 0, e, 0, n);
+						expiring = e;
+					}
+					expiring[n++] = t;
+				}
+				t = next;
+			}
+			for (int i = 0; i < n; i++) {
+				t = expiring[i];
+				expiring[i] = null;
+				// unless an earlier one cancelled or moved it
+				if (t.slot == EXPIRING) {
+					t.slot = -1;
+					t.expired();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets how long the reactor may wait before the wheel should be
+	 * advanced.
+	 *
+	 * @return The number of milliseconds to the next tick, or 0 if no
+	 * timer is scheduled.
+	 */
+	public long getTimeout (long now) {
+		if (count == 0)
+			return 0;
+		return Math.max(1, (currentTick + 1) * tick - now);
+	}
+
+	/**
+	 * Gets the number of scheduled timers.
+	 */
+	public int size () {
+		return count;
+	}
+
+}
@@ -0,0 +1,243 @@
+
+import java.util.*;
+
+/**
+ * A W-TinyLFU eviction policy. New entries go into a small LRU window.
+ * Entries pushed out of the window become candidates for the main
+ * area, and each candidate has to compete with the main area's
+ * eviction victim: whichever has been requested less often recently
+ * is evicted. The main area is a
+ * segmented LRU where entries hit a second time are protected.
+ * Request frequencies are kept approximately in a count-min sketch
+ * that is halved now and then, so old popularity fades.
+ *
+ */
+public class TinyLfuPolicy implements EvictionPolicy {
+
+	/**
+	 * The share of the capacity used for the window.
+	 */
+	private static final double WINDOW_SHARE = 0.01;
+
+	/**
+	 * The share of the main area used for protected entries.
+	 */
+	private static final double PROTECTED_SHARE = 0.8;
+
+	/**
+	 * The assumed average entry size, used to size the sketch.
+	 */
+	private static final long AVERAGE_ENTRY_SIZE = 8192;
+
+	/*
+	 * The three areas, each in access order with the least recently
+	 * used entry first. The values are the entry weights.
+	 */
+	private LinkedHashMap<String,Long> window =
+		new LinkedHashMap<String,Long>(16, 0.75f, true);
+
+	private LinkedHashMap<String,Long> probation =
+		new LinkedHashMap<String,Long>(16, 0.75f, true);
+
+	private LinkedHashMap<String,Long> protectedArea =
+		new LinkedHashMap<String,Long>(16, 0.75f, true);
+
+	/**
+	 * Entries that have been moved from the window to probation but 
+	 * have not yet competed with a victim, oldest first.
+	 */
+	private LinkedHashSet<String> candidates = new LinkedHashSet<String>();
+
+	private long windowBytes = 0;
+
+	private long protectedBytes = 0;
+
+	private long windowMax;
+
+	private long protectedMax;
+
+	private FrequencySketch sketch;
+
+	/**
+	 * Creates a policy for a cache of a given size.
+	 *
+	 * @param capacity The cache size in bytes.
+	 */
+	public TinyLfuPolicy (long capacity) {
+		windowMax = Math.max(1, (long)(capacity * WINDOW_SHARE));
+		protectedMax = (long)((capacity - windowMax) * PROTECTED_SHARE);
+		sketch = new FrequencySketch(capacity / AVERAGE_ENTRY_SIZE);
+	}
+
+	public void recordRequest (String key) {
+		sketch.increment(key);
+	}
+
+	public void recordHit (String key) {
+		if (window.get(key) != null || protectedArea.get(key) != null)
+			return;
+
+		Long weight = probation.remove(key);
+		if (weight == null)
+			return;
+
+		// a second hit moves the entry to the protected area, which
+		// may push its least recently used entries back to probation
+		protectedArea.put(key, weight);
+		protectedBytes += weight.longValue();
+		while (protectedBytes > protectedMax && protectedArea.size() > 1) {
+			Map.Entry<String,Long> e = first(protectedArea);
+			protectedArea.remove(e.getKey());
+			protectedBytes -= e.getValue().longValue();
+			probation.put(e.getKey(), e.getValue());
+		}
+	}
+
+	public void added (String key, long weight) {
+		window.put(key, Long.valueOf(weight));
+		windowBytes += weight;
+
+		while (windowBytes > windowMax && !window.isEmpty()) {
+			Map.Entry<String,Long> e = first(window);
+			window.remove(e.getKey());
+			windowBytes -= e.getValue().longValue();
+			probation.put(e.getKey(), e.getValue());
+			candidates.add(e.getKey());
+		}
+	}
+
+	public void removed (String key) {
+		Long weight;
+		candidates.remove(key);
+		if ((weight = window.remove(key)) != null)
+			windowBytes -= weight.longValue();
+		else if ((weight = protectedArea.remove(key)) != null)
+			protectedBytes -= weight.longValue();
+		else
+			probation.remove(key);
+	}
+
+	public String evict () {
+		Iterator<String> i = candidates.iterator();
+		while (i.hasNext()) {
+			String c = i.next();
+			i.remove();
+			if (!probation.containsKey(c))
+				continue;
+
+			String victim = first(probation).getKey();
+			if (victim.equals(c)) {
+				// no older entries on probation
+				if (protectedArea.isEmpty()) {
+					probation.remove(c);
+					return c;
+				}
+				victim = first(protectedArea).getKey();
+			}
+
+			if (sketch.frequency(c) > sketch.frequency(victim)) {
+				removed(victim);
+				return victim;
+			}
+			probation.remove(c);
+			return c;
+		}
+
+		String victim = null;
+		if (!probation.isEmpty())
+			victim = first(probation).getKey();
+		else if (!protectedArea.isEmpty())
+			victim = first(protectedArea).getKey();
+		else if (!window.isEmpty())
+			victim = first(window).getKey();
+		if (victim != null)
+			removed(victim);
+		return victim;
+	}
+
+	private static Map.Entry<String,Long> first (LinkedHashMap<String,Long> m) {
+		return m.entrySet().iterator().next();
+	}
+
+	/**
+	 * A count-min sketch of 4-bit counters that estimates how often
+	 * each key has been requested recently.
+	 */
+	static class FrequencySketch {
+
+		private static final int[] SEEDS = {
+			0x97cb3127, 0xb14c3de9, 0x6a7b7f1d, 0x3c6ef372
+		};
+
+		private static final int MAX_COUNT = 15;
+
+		private byte[] table;
+
+		private int mask;
+
+		/**
+		 * The number of increments since the counters were last halved.
+		 */
+		private int additions = 0;
+
+		/**
+		 * The number of increments after which the counters are halved.
+		 */
+		private int sampleSize;
+
+		/**
+		 * Creates a sketch with 16 counters per expected entry, which
+		 * are halved after 10 increments per expected entry. That keeps
+		 * the counters of keys seen only once or twice low.
+		 */
+		FrequencySketch (long expectedEntries) {
+			int size = 4096;
+			while (size < expectedEntries * 16 && size < (1 << 24))
+				size <<= 1;
+			table = new byte[size];
+			mask = size - 1;
+			sampleSize = size / 16 * 10;
+		}
+
+		void increment (String key) {
+			int h = spread(key.hashCode());
+			for (int i = 0; i < SEEDS.length; i++) {
+				int index = indexOf(h, i);
+				if (table[index] < MAX_COUNT)
+					table[index]++;
+			}
+			if (++additions >= sampleSize)
+				age();
+		}
+
+		int frequency (String key) {
+			int h = spread(key.hashCode());
+			int min = MAX_COUNT;
+			for (int i = 0; i < SEEDS.length; i++)
+				min = Math.min(min, table[indexOf(h, i)]);
+			return min;
+		}
+
+		private int indexOf (int h, int i) {
+			int x = h * SEEDS[i];
+			x ^= x >>> 15;
+			return x & mask;
+		}
+
+		private static int spread (int h) {
+			h ^= h >>> 16;
+			h *= 0x45d9f3b;
+			return h ^ (h >>> 16);
+		}
+
+		/**
+		 * Halves all counters.
+		 */
+		private void age () {
+			for (int i = 0; i < table.length; i++)
+				table[i] = (byte)(table[i] >> 1);
+			additions /= 2;
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A server that a ProxyHandler forwards requests to. It counts the
+ * requests it is busy with, for least-connections balancing, and keeps
+ * the connections to it that are open between requests.
+ *
+ * Idle connections are kept by the reactor they are registered with,
+ * so that a reactor only reuses its own. Connections used with blocking
+ * I/O are kept together, and may be reused by any thread.
+ *
+ */
+public class Upstream {
+
+	private InetSocketAddress address;
+
+	/**
+	 * The most idle connections kept for each reactor.
+	 */
+	private int maxIdle;
+
+	/**
+	 * The number of requests being forwarded.
+	 */
+	private AtomicInteger active = new AtomicInteger();
+
+	/**
+	 * The time until which the upstream is taken to be down, because
+	 * a connection to it failed.
+	 */
+	private volatile long downUntil = 0;
+
+	/**
+	 * The idle connections by reactor, most recently used first. The
+	 * connections used with blocking I/O are kept under this upstream.
+	 */
+	private ConcurrentHashMap<Object,ConcurrentLinkedDeque<UpstreamConnection>>
+		idle = new ConcurrentHashMap<Object,
+			ConcurrentLinkedDeque<UpstreamConnection>>();
+
+	/**
+	 * Creates an upstream.
+	 *
+	 * @param address A resolved address.
+	 * @param maxIdle The most idle connections kept for each reactor.
+	 */
+	public Upstream (InetSocketAddress address, int maxIdle) {
+		if (address.isUnresolved())
+			throw new IllegalArgumentException("Unknown host " + address);
+		this.address = address;
+		this.maxIdle = maxIdle;
+	}
+
+	public InetSocketAddress getAddress () {
+		return address;
+	}
+
+	/**
+	 * Gets the number of requests being forwarded to the upstream.
+	 */
+	public int getActive () {
+		return active.get();
+	}
+
+	void started () {
+		active.incrementAndGet();
+	}
+
+	void finished () {
+		active.decrementAndGet();
+	}
+
+	/**
+	 * Whether the upstream is taken to be down.
+	 */
+	public boolean isDown (long now) {
+		return now < downUntil;
+	}
+
+	/**
+	 * Takes the upstream to be down for a while.
+	 */
+	void markDown (long until) {
+		downUntil = until;
+	}
+
+	private ConcurrentLinkedDeque<UpstreamConnection> getIdle (Reactor reactor) {
+		Object owner = (reactor != null) ? (Object)reactor : this;
+		ConcurrentLinkedDeque<UpstreamConnection> q = idle.get(owner);
+		if (q == null) {
+			q = new ConcurrentLinkedDeque<UpstreamConnection>();
+			ConcurrentLinkedDeque<UpstreamConnection> old =
+				idle.putIfAbsent(owner, q);
+			if (old != null)
+				q = old;
+		}
+		return q;
+	}
+
+	/**
+	 * Takes an idle connection.
+	 *
+	 * @param reactor The reactor that will use it, or null for a
+	 * connection used with blocking I/O.
+	 * @return The connection, or null if there is none.
+	 */
+	UpstreamConnection takeIdle (Reactor reactor) {
+		return getIdle(reactor).pollFirst();
+	}
+
+	/**
+	 * Keeps a connection that is done with a request.
+	 *
+	 * @return False if there are as many idle connections as are kept.
+	 */
+	boolean offerIdle (Reactor reactor, UpstreamConnection connection) {
+		ConcurrentLinkedDeque<UpstreamConnection> q = getIdle(reactor);
+		if (q.size() >= maxIdle)
+			return false;
+		q.addFirst(connection);
+		return true;
+	}
+
+	/**
+	 * Forgets an idle connection that has been closed.
+	 */
+	void removeIdle (Reactor reactor, UpstreamConnection connection) {
+		getIdle(reactor).remove(connection);
+	}
+
+	public String toString () {
+		return address.getHostString() + ":" + address.getPort();
+	}
+
+}
@@ -0,0 +1,896 @@
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * A keep-alive connection to an upstream server, which forwards one
+ * request at a time and relays the response. On a reactor it is driven
+ * by its selection key, and kept by the reactor between requests, so
+ * that it is only used on that thread. With the thread engine it is
+ * used with blocking I/O by one connection thread at a time.
+ *
+ * The response head is read into a small buffer and handed to the
+ * client's response; the body is decoded from its framing, by length,
+ * chunked or up to the end of the stream, into a ProxyContent as it
+ * arrives.
+ *
+ */
+public class UpstreamConnection extends Handler {
+
+	/**
+	 * The size of the buffer that responses are read into, which is
+	 * also the longest response head accepted.
+	 */
+	private static final int READ_BUFFER = 8192;
+
+	/*
+	 * What the connection is doing.
+	 */
+	private static final int IDLE = 0;
+	private static final int CONNECTING = 1;
+	private static final int WRITING = 2;
+	private static final int READING_HEAD = 3;
+	private static final int READING_BODY = 4;
+	private static final int CLOSED = 5;
+
+	/*
+	 * Where the decoding of the response body is.
+	 */
+	private static final int LENGTH = 0;
+	private static final int UNTIL_CLOSE = 1;
+	private static final int SIZE = 2;
+	private static final int EXTENSION = 3;
+	private static final int SIZE_LF = 4;
+	private static final int DATA = 5;
+	private static final int DATA_CR = 6;
+	private static final int DATA_LF = 7;
+	private static final int TRAILER = 8;
+	private static final int TRAILER_LINE = 9;
+	private static final int END_LF = 10;
+	private static final int END = 11;
+
+	/**
+	 * Response headers that are not passed on: those about the
+	 * connection to the upstream, and those the server sets itself.
+	 */
+	private static final String[] HOP_BY_HOP = {
+		"connection", "keep-alive", "proxy-connection", "transfer-encoding",
+		"te", "trailer", "upgrade", "date", "server"
+	};
+
+	private ProxyHandler proxy;
+
+	private Upstream upstream;
+
+	private SocketChannel channel;
+
+	/**
+	 * The selection key, or null if the connection uses blocking I/O.
+	 */
+	private SelectionKey key = null;
+
+	/**
+	 * Reads with the socket timeout, for blocking I/O.
+	 */
+	private ReadableByteChannel in = null;
+
+	private int state;
+
+	/**
+	 * Whether the connection has carried a request before, so that the
+	 * upstream may have closed it while it was idle.
+	 */
+	private boolean reused = false;
+
+	/**
+	 * The time the connection became idle.
+	 */
+	private long idleSince;
+
+	/**
+	 * The time of the last progress of the request being forwarded.
+	 */
+	private long lastActivity;
+
+	/*
+	 * The request being forwarded and its response.
+	 */
+	private HttpRequest request;
+
+	private HttpResponse response;
+
+	private HttpCodings codings;
+
+	private boolean headRequest;
+
+	/**
+	 * The encoded request head, with what remains to be written.
+	 */
+	private ByteBuffer head;
+
+	/**
+	 * How much of the request body has been written.
+	 */
+	private long bodyPosition;
+
+	/**
+	 * What has been read of the response and not decoded.
+	 */
+	private ByteBuffer raw;
+
+	/**
+	 * How far the data read has been searched for the end of the head.
+	 */
+	private int scanned;
+
+	/**
+	 * Whether any of the response has arrived.
+	 */
+	private boolean received;
+
+	/**
+	 * How the body is framed, and where its decoding is.
+	 */
+	private int framing;
+
+	/**
+	 * The bytes that remain of the body or the chunk being decoded.
+	 */
+	private long remaining;
+
+	/**
+	 * Whether the upstream keeps the connection open after the
+	 * response.
+	 */
+	private boolean keepAlive;
+
+	/**
+	 * Whether the upstream has closed its side.
+	 */
+	private boolean eof;
+
+	/**
+	 * The body of the response, or null before the head has arrived, or
+	 * if the response has no body.
+	 */
+	private ProxyContent content;
+
+	/**
+	 * Fails the request when the upstream does not make progress, and
+	 * closes the connection when it has been idle for too long.
+	 */
+	private TimingWheel.Timer timer = new TimingWheel.Timer() {
+		protected void expired () {
+			timedOut();
+		}
+	};
+
+	private UpstreamConnection (NioWebServer server, Reactor reactor,
+								ProxyHandler proxy, Upstream upstream,
+								SocketChannel channel) throws IOException {
+		super(server, reactor);
+		this.proxy = proxy;
+		this.upstream = upstream;
+		this.channel = channel;
+		this.state = channel.isConnected() ? IDLE : CONNECTING;
+		if (reactor != null)
+			this.key = reactor.register(channel, this);
+		else
+			this.in = Channels.newChannel(channel.socket().getInputStream());
+	}
+
+	/**
+	 * Opens a connection to an upstream.
+	 *
+	 * @param reactor The reactor that the connection is registered with,
+	 * where it may have to finish connecting, or null for blocking I/O.
+	 */
+	static UpstreamConnection open (NioWebServer server, Reactor reactor,
+									ProxyHandler proxy, Upstream upstream)
+		throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.socket().setTcpNoDelay(true);
+			if (reactor == null) {
+				int timeout = (int)proxy.getTimeout();
+				channel.socket().connect(upstream.getAddress(), timeout);
+				channel.socket().setSoTimeout(timeout);
+			} else {
+				channel.configureBlocking(false);
+				channel.connect(upstream.getAddress());
+			}
+			return new UpstreamConnection(server, reactor, proxy, upstream,
+										  channel);
+		} catch (IOException ex) {
+			channel.close();
+			proxy.markDown(upstream);
+			throw ex;
+		}
+	}
+
+	Upstream getUpstream () {
+		return upstream;
+	}
+
+	/**
+	 * Whether the connection uses blocking I/O.
+	 */
+	boolean isBlocking () {
+		return key == null;
+	}
+
+	/**
+	 * Whether the connection has been idle for longer than it is kept.
+	 */
+	boolean isExpired (long now) {
+		return now - idleSince >= proxy.getIdleTimeout();
+	}
+
+	public int getInterestOps () {
+		switch (state) {
+		case IDLE:
+		case READING_HEAD:
+			return SelectionKey.OP_READ;
+		case CONNECTING:
+			return SelectionKey.OP_CONNECT;
+		case WRITING:
+			return SelectionKey.OP_WRITE;
+		case READING_BODY:
+			// paused while the client has not taken what was read
+			return (raw.hasRemaining() && !eof) ? SelectionKey.OP_READ : 0;
+		}
+		return 0;
+	}
+
+	/**
+	 * Starts forwarding a request on a reactor. The response has been
+	 * suspended, and is resumed once the response head has arrived, or
+	 * with an error. Called on the reactor thread.
+	 *
+	 * @param head The encoded request head, which the connection gives
+	 * back.
+	 */
+	void start (HttpRequest request, HttpResponse response, ByteBuffer head) {
+		begin(request, response, head);
+		if (state == IDLE)
+			state = WRITING;
+		handle(channel);
+	}
+
+	/**
+	 * Forwards a request and reads the response head with blocking I/O.
+	 * The body is read as the content is written.
+	 *
+	 * @param head The encoded request head, which the connection gives
+	 * back unless it returns false.
+	 * @return False if the upstream had closed the connection while it
+	 * was idle, and the request should be sent again on another. This
+	 * is only done when sending it twice is safe; see mayResend().
+	 * @throws IOException If the upstream failed; the connection has
+	 * been closed.
+	 */
+	boolean forward (HttpRequest request, HttpResponse response,
+					 ByteBuffer head) throws IOException {
+		begin(request, response, head);
+		state = WRITING;
+		try {
+			writeRequest();
+			state = READING_HEAD;
+			while (!readHead()) {
+				if (in.read(raw) == -1)
+					throw new EOFException("Upstream closed the connection");
+				received = true;
+			}
+		} catch (IOException ex) {
+			boolean stale = mayResend(ex);
+			if (stale)
+				this.head = null;
+			close();
+			if (stale)
+				return false;
+			throw ex;
+		}
+		try {
+			pump();
+		} catch (IOException ex) {
+			failed(ex);
+		}
+		return true;
+	}
+
+	/**
+	 * Sets up the forwarding of a request.
+	 */
+	private void begin (HttpRequest request, HttpResponse response,
+						ByteBuffer head) {
+		this.request = request;
+		this.response = response;
+		this.codings = response.getCodings();
+		this.head = head;
+		this.headRequest = request.getMethod().equals("HEAD");
+		this.bodyPosition = 0;
+		this.raw = codings.allocate(READ_BUFFER);
+		this.scanned = 0;
+		this.received = false;
+		this.eof = false;
+		this.content = null;
+		this.lastActivity = System.currentTimeMillis();
+		upstream.started();
+		if (reactor != null)
+			updateTimer();
+	}
+
+	/**
+	 * Connects, writes the request and reads the response, as far as
+	 * the channel is ready.
+	 */
+	public void handle (SelectableChannel ch) {
+		try {
+			if (state == IDLE) {
+				// closed by the upstream, or sent something unasked
+				upstream.removeIdle(reactor, this);
+				close();
+				return;
+			}
+			if (state == CONNECTING) {
+				if (!channel.finishConnect())
+					return;
+				state = WRITING;
+			}
+			if (state == WRITING) {
+				if (!writeRequest()) {
+					key.interestOps(getInterestOps());
+					updateTimer();
+					return;
+				}
+				state = READING_HEAD;
+			}
+			if (raw.hasRemaining()) {
+				int n = channel.read(raw);
+				if (n == -1) {
+					endOfStream();
+					return;
+				}
+				if (n > 0) {
+					received = true;
+					lastActivity = System.currentTimeMillis();
+				}
+			}
+			if (state == READING_HEAD && !readHead()) {
+				key.interestOps(getInterestOps());
+				updateTimer();
+				return;
+			}
+			pump();
+			if (state == READING_BODY) {
+				key.interestOps(getInterestOps());
+				updateTimer();
+			}
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+
+	/**
+	 * Writes as much of the request as the channel takes.
+	 *
+	 * @return True once all of it has been written.
+	 */
+	private boolean writeRequest () throws IOException {
+		if (head.hasRemaining()) {
+			channel.write(head);
+			if (head.hasRemaining())
+				return false;
+			lastActivity = System.currentTimeMillis();
+		}
+		RequestBody body = request.getBody();
+		while (body != null && bodyPosition < body.getLength()) {
+			long n = body.transferTo(bodyPosition, channel);
+			if (n == 0)
+				return false;
+			bodyPosition += n;
+			lastActivity = System.currentTimeMillis();
+		}
+		return true;
+	}
+
+	/**
+	 * Parses the response head, once all of it has been read, and hands
+	 * it to the client's response. Interim responses are skipped.
+	 *
+	 * @return False if more of the head has to be read.
+	 */
+	private boolean readHead () throws IOException {
+		while (true) {
+			int end = findHeadEnd();
+			if (end == -1) {
+				if (!raw.hasRemaining())
+					throw new IOException("Upstream response head too long");
+				return false;
+			}
+			char[] chars = new char[end];
+			for (int i = 0; i < end; i++)
+				chars[i] = (char)(raw.get(i) & 0xff);
+			raw.flip();
+			raw.position(end);
+			raw.compact();
+			scanned = 0;
+			if (parseHead(new String(chars)))
+				return true;
+		}
+	}
+
+	/**
+	 * Finds the blank line that ends the response head.
+	 *
+	 * @return The index after it, or -1 if it has not been read.
+	 */
+	private int findHeadEnd () {
+		int limit = raw.position();
+		for (int i = scanned; i < limit; i++) {
+			if (raw.get(i) != '\n')
+				continue;
+			if (i >= 1 && raw.get(i-1) == '\n')
+				return i + 1;
+			if (i >= 2 && raw.get(i-1) == '\r' && raw.get(i-2) == '\n')
+				return i + 1;
+		}
+		scanned = limit;
+		return -1;
+	}
+
+	/**
+	 * Parses a response head and sets up the decoding of its body.
+	 *
+	 * @return False if it is an interim response, which is dropped.
+	 */
+	private boolean parseHead (String text) throws IOException {
+		int lineEnd = text.indexOf('\n');
+		String status = text.substring(0, lineEnd).trim();
+		int sp = status.indexOf(' ');
+		if (!status.startsWith("HTTP/1.") || sp == -1
+			|| status.length() < sp + 4)
+			throw new IOException("Bad upstream status line: " + status);
+		String version = status.substring(0, sp);
+		final int code;
+		try {
+			code = Integer.parseInt(status.substring(sp + 1, sp + 4));
+		} catch (NumberFormatException ex) {
+			throw new IOException("Bad upstream status line: " + status);
+		}
+		if (code < 200)
+			return false;
+		final String message = status.substring(sp + 4).trim();
+
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<String> values = new ArrayList<String>();
+		String connection = "";
+		boolean chunked = false;
+		long length = -1;
+		int start = lineEnd + 1;
+		while (start < text.length()) {
+			int end = text.indexOf('\n', start);
+			String line = text.substring(start, end).trim();
+			start = end + 1;
+			int colon = line.indexOf(':');
+			if (colon <= 0)
+				continue;
+			String name = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+			if (name.equalsIgnoreCase("Connection")) {
+				connection += "," + value.toLowerCase();
+			} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+				chunked = value.toLowerCase().endsWith("chunked");
+			} else if (name.equalsIgnoreCase("Content-Length")) {
+				try {
+					length = Long.parseLong(value);
+				} catch (NumberFormatException ex) {
+					throw new IOException("Bad upstream Content-Length");
+				}
+				if (length < 0)
+					throw new IOException("Bad upstream Content-Length");
+			}
+			names.add(name);
+			values.add(value);
+		}
+		keepAlive = version.equals("HTTP/1.1")
+			? connection.indexOf("close") == -1
+			: connection.indexOf("keep-alive") != -1;
+
+		boolean noBody = headRequest || code == 204 || code == 304;
+		if (noBody) {
+			framing = END;
+		} else if (chunked) {
+			framing = SIZE;
+			remaining = 0;
+			length = -1;
+		} else if (length >= 0) {
+			framing = (length > 0) ? LENGTH : END;
+			remaining = length;
+		} else {
+			framing = UNTIL_CLOSE;
+			keepAlive = false;
+		}
+		if (!noBody)
+			content = new ProxyContent(this, codings, length);
+
+		// the headers that are passed on
+		final String[] n = new String[names.size()];
+		final String[] v = new String[names.size()];
+		int count = 0;
+		for (int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			if (isHopByHop(name, connection))
+				continue;
+			// the length of the content is set with it
+			if (!noBody && name.equalsIgnoreCase("Content-Length"))
+				continue;
+			n[count] = name;
+			v[count] = values.get(i);
+			count++;
+		}
+		final int headers = count;
+		final ProxyContent c = content;
+		final HttpResponse r = response;
+		Runnable task = new Runnable() {
+			public void run () {
+				r.setStatus(code, message);
+				for (int i = 0; i < headers; i++)
+					r.addHeader(n[i], v[i]);
+				if (c != null)
+					r.setContent(c);
+			}
+		};
+		if (key == null)
+			task.run();
+		else
+			response.resume(task);
+
+		state = READING_BODY;
+		if (framing == END)
+			finish();
+		return true;
+	}
+
+	/**
+	 * Whether a header is about the connection to the upstream.
+	 *
+	 * @param connection The tokens of the Connection header, which
+	 * names more such headers.
+	 */
+	private static boolean isHopByHop (String name, String connection) {
+		String lower = name.toLowerCase();
+		for (int i = 0; i < HOP_BY_HOP.length; i++) {
+			if (lower.equals(HOP_BY_HOP[i]))
+				return true;
+		}
+		int i = connection.indexOf(lower);
+		while (i != -1) {
+			int end = i + lower.length();
+			if (connection.charAt(i - 1) == ',' || connection.charAt(i - 1) == ' ')
+				if (end == connection.length() || connection.charAt(end) == ','
+					|| connection.charAt(end) == ' ')
+					return true;
+			i = connection.indexOf(lower, end);
+		}
+		return false;
+	}
+
+	/**
+	 * Decodes the body that has been read into the content, as far as
+	 * there is room, and finishes the request at the end of the body.
+	 */
+	private void pump () throws IOException {
+		if (state != READING_BODY)
+			return;
+		ByteBuffer data = content.getData();
+		int before = data.position();
+		raw.flip();
+		try {
+			decode(raw, data);
+		} finally {
+			raw.compact();
+		}
+		if (eof && framing == UNTIL_CLOSE && raw.position() == 0)
+			framing = END;
+		if (data.position() > before)
+			content.available();
+		if (framing == END)
+			finish();
+	}
+
+	/**
+	 * Moves body data from what has been read to the content, leaving
+	 * out the chunk framing.
+	 */
+	private void decode (ByteBuffer from, ByteBuffer to) throws IOException {
+		while (from.hasRemaining() && framing != END) {
+			if (framing == LENGTH || framing == UNTIL_CLOSE
+				|| framing == DATA) {
+				if (!to.hasRemaining())
+					return;
+				long max = (framing == UNTIL_CLOSE)
+					? Long.MAX_VALUE : remaining;
+				int n = (int)Math.min(Math.min(from.remaining(),
+											   to.remaining()), max);
+				int limit = from.limit();
+				from.limit(from.position() + n);
+				to.put(from);
+				from.limit(limit);
+				if (framing == UNTIL_CLOSE)
+					continue;
+				remaining -= n;
+				if (remaining == 0)
+					framing = (framing == LENGTH) ? END : DATA_CR;
+				continue;
+			}
+			byte b = from.get();
+			switch (framing) {
+			case SIZE:
+				int digit = Character.digit((char)b, 16);
+				if (digit != -1) {
+					if (remaining > (Long.MAX_VALUE >> 4))
+						throw new IOException("Bad upstream chunk size");
+					remaining = (remaining << 4) + digit;
+				} else if (b == ';' || b == ' ' || b == '\t') {
+					framing = EXTENSION;
+				} else if (b == '\r') {
+					framing = SIZE_LF;
+				} else if (b == '\n') {
+					endSizeLine();
+				} else {
+					throw new IOException("Bad upstream chunk size");
+				}
+				break;
+			case EXTENSION:
+				if (b == '\r')
+					framing = SIZE_LF;
+				else if (b == '\n')
+					endSizeLine();
+				break;
+			case SIZE_LF:
+				if (b != '\n')
+					throw new IOException("Bad upstream chunk size");
+				endSizeLine();
+				break;
+			case DATA_CR:
+				if (b == '\r')
+					framing = DATA_LF;
+				else if (b == '\n')
+					framing = SIZE;
+				else
+					throw new IOException("Bad upstream chunk");
+				break;
+			case DATA_LF:
+				if (b != '\n')
+					throw new IOException("Bad upstream chunk");
+				framing = SIZE;
+				break;
+			case TRAILER:
+				if (b == '\r')
+					framing = END_LF;
+				else if (b == '\n')
+					framing = END;
+				else
+					framing = TRAILER_LINE;
+				break;
+			case TRAILER_LINE:
+				if (b == '\n')
+					framing = TRAILER;
+				break;
+			case END_LF:
+				if (b != '\n')
+					throw new IOException("Bad upstream trailer");
+				framing = END;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Goes on after the size line of a chunk.
+	 */
+	private void endSizeLine () {
+		framing = (remaining == 0) ? TRAILER : DATA;
+	}
+
+	/**
+	 * Called when the upstream has closed the connection.
+	 */
+	private void endOfStream () throws IOException {
+		if (state == READING_BODY && framing == UNTIL_CLOSE) {
+			// the end of the body, once the client has taken the rest
+			eof = true;
+			pump();
+			return;
+		}
+		throw new EOFException("Upstream closed the connection");
+	}
+
+	/**
+	 * Called by the content when the client has taken some of the body,
+	 * so that more can be decoded and read.
+	 */
+	void drained () {
+		try {
+			pump();
+			if (state == READING_BODY && key != null) {
+				key.interestOps(getInterestOps());
+				updateTimer();
+			}
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+
+	/**
+	 * Reads more of the body with blocking I/O, once the client has
+	 * taken what had been read.
+	 */
+	void fill () {
+		try {
+			pump();
+			if (state == READING_BODY && !eof
+				&& content.getData().position() == 0) {
+				if (in.read(raw) == -1)
+					endOfStream();
+				else
+					pump();
+			}
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+
+	/**
+	 * Finishes forwarding a request once all of the response has
+	 * arrived, and keeps the connection for the next request if the
+	 * upstream allows it.
+	 */
+	private void finish () {
+		ProxyContent c = content;
+		boolean reuse = keepAlive && raw.position() == 0 && channel.isOpen();
+		end();
+		if (c != null)
+			c.complete();
+		if (!reuse) {
+			close();
+			return;
+		}
+		state = IDLE;
+		idleSince = System.currentTimeMillis();
+		if (key != null) {
+			key.interestOps(getInterestOps());
+			reactor.getTimers().schedule(timer,
+										 idleSince + proxy.getIdleTimeout());
+		}
+		if (!upstream.offerIdle(reactor, this))
+			close();
+	}
+
+	/**
+	 * Ends the forwarding of a request, and gives back its buffers.
+	 */
+	private void end () {
+		if (raw != null) {
+			codings.recycle(raw);
+			raw = null;
+		}
+		if (head != null) {
+			codings.recycle(head);
+			head = null;
+		}
+		upstream.finished();
+		request = null;
+		response = null;
+		codings = null;
+		content = null;
+		reused = true;
+	}
+
+	/**
+	 * Called when reading, writing or decoding has failed. If the
+	 * response head has been handed on, the client connection is closed
+	 * when it gets to the missing part of the body; otherwise the
+	 * request is sent again if the connection had been idle, the
+	 * upstream closed it meanwhile and mayResend() allows it, or fails
+	 * with an error response.
+	 */
+	private void failed (IOException ex) {
+		if (state == CLOSED)
+			return;
+		if (response == null) {
+			close();
+			return;
+		}
+		ProxyContent c = content;
+		HttpRequest req = request;
+		HttpResponse res = response;
+		ByteBuffer h = head;
+		boolean connecting = (state == CONNECTING);
+		boolean stale = c == null && mayResend(ex);
+		if (stale || connecting)
+			head = null;
+		close();
+		if (c != null) {
+			c.failed(ex);
+		} else if (key != null) {
+			if (stale) {
+				proxy.retry(upstream, reactor, req, res, h, ex);
+			} else if (connecting) {
+				// nothing was sent, so another upstream may take it
+				proxy.log(upstream, ex);
+				proxy.markDown(upstream);
+				proxy.retry(null, reactor, req, res, h, ex);
+			} else {
+				proxy.fail(req, res, ex);
+			}
+		}
+	}
+
+	/**
+	 * Whether a request that failed may be sent again on a new
+	 * connection: the connection had been kept open and none of the
+	 * response arrived, so the upstream probably closed it while it was
+	 * idle, and the request either has an idempotent method or was not
+	 * written at all, so that the upstream cannot have acted on it.
+	 */
+	private boolean mayResend (IOException ex) {
+		return reused && !received
+			&& !(ex instanceof SocketTimeoutException)
+			&& (head.position() == 0
+				|| ProxyHandler.isIdempotent(request.getMethod()));
+	}
+
+	/**
+	 * Called by the content when the client is gone before all of the
+	 * body has arrived.
+	 */
+	void abort () {
+		content = null;
+		close();
+	}
+
+	private void timedOut () {
+		if (state == IDLE) {
+			upstream.removeIdle(reactor, this);
+			close();
+			return;
+		}
+		failed(new SocketTimeoutException("Upstream timed out"));
+	}
+
+	/**
+	 * Sets the deadline for the upstream to make progress. There is
+	 * none while the client has not taken what has been read.
+	 */
+	private void updateTimer () {
+		TimingWheel timers = reactor.getTimers();
+		if (state == READING_BODY && (!raw.hasRemaining() || eof))
+			timers.cancel(timer);
+		else
+			timers.schedule(timer, lastActivity + proxy.getTimeout());
+	}
+
+	/**
+	 * Closes the connection, and ends the forwarding of a request if
+	 * there is one.
+	 */
+	void close () {
+		if (state == CLOSED)
+			return;
+		state = CLOSED;
+		if (reactor != null)
+			reactor.getTimers().cancel(timer);
+		try {
+			channel.close();
+		} catch (IOException ex) {
+		}
+		if (response != null)
+			end();
+	}
+
+}
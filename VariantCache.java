@@ -0,0 +1,276 @@
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps compressed variants of files in memory, keyed by canonical 
+ * path and content coding. Files are compressed on a small pool of 
+ * background threads, so the reactors never wait for a compression. 
+ * The total size of the variants is bounded and the least recently 
+ * used ones are dropped first.
+ *
+ * Each variant remembers the entity tag of the file it was made from,
+ * and is only used while the file still has that tag.
+ *
+ */
+public class VariantCache {
+
+	/**
+	 * A compressed file.
+	 */
+	public static class Variant {
+
+		/**
+		 * The compressed contents, read-only.
+		 */
+		private ByteBuffer buffer;
+
+		/**
+		 * The entity tag of the file that was compressed.
+		 */
+		private String sourceETag;
+
+		Variant (ByteBuffer buffer, String sourceETag) {
+			this.buffer = buffer.asReadOnlyBuffer();
+			this.sourceETag = sourceETag;
+		}
+
+		/**
+		 * Gets a buffer with the compressed contents that the caller
+		 * may consume.
+		 */
+		public ByteBuffer getBuffer () {
+			return buffer.duplicate();
+		}
+
+		public long getLength () {
+			return buffer.capacity();
+		}
+	}
+
+	/**
+	 * The content codings that variants can have.
+	 */
+	private static final String[] CODINGS = { "gzip", "deflate" };
+
+	/**
+	 * The most compressions waiting for a thread. Files requested 
+	 * while the queue is full are compressed when they are requested
+	 * again.
+	 */
+	private static final int MAX_PENDING = 256;
+
+	private LinkedHashMap<String,Variant> variants =
+		new LinkedHashMap<String,Variant>(16, 0.75f, true);
+
+	/**
+	 * The keys of the variants being made or waiting to be made.
+	 */
+	private Set<String> pending = new HashSet<String>();
+
+	private ExecutorService pool;
+
+	/**
+	 * The maximum total size of the variants.
+	 */
+	private long maxBytes;
+
+	/**
+	 * The largest file that is compressed in the background.
+	 */
+	private long maxSourceSize;
+
+	/**
+	 * The total size of the variants.
+	 */
+	private long bytes = 0;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param maxBytes The maximum total size of the variants.
+	 * @param maxSourceSize The largest file that is compressed in the
+	 * background.
+	 * @param threads The number of threads that compress files.
+	 */
+	public VariantCache (long maxBytes, long maxSourceSize, int threads) {
+		this.maxBytes = maxBytes;
+		this.maxSourceSize = Math.min(maxSourceSize, Integer.MAX_VALUE);
+		this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count = 0;
+
+			public synchronized Thread newThread (Runnable r) {
+				Thread t = new Thread(r, "compressor-" + count++);
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Whether files of a given size are compressed in the background.
+	 */
+	public boolean accepts (long size) {
+		return size <= maxSourceSize;
+	}
+
+	/**
+	 * Looks up a variant.
+	 *
+	 * @param file The file, with a canonical path.
+	 * @param coding The content coding.
+	 * @param etag The entity tag the file has now.
+	 * @return The variant, or null if there is none for this version
+	 * of the file.
+	 */
+	public synchronized Variant get (File file, String coding, String etag) {
+		Variant v = variants.get(key(file, coding));
+		if (v == null || !v.sourceETag.equals(etag)) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return v;
+	}
+
+	/**
+	 * Compresses a file on a background thread and adds the variant,
+	 * unless it is already being compressed.
+	 *
+	 * @param file The file, with a canonical path.
+	 * @param coding The content coding.
+	 * @param etag The entity tag the file has now.
+	 */
+	public void compressLater (final File file, final String coding,
+							   final String etag) {
+		final String key = key(file, coding);
+		synchronized (this) {
+			if (pending.size() >= MAX_PENDING || !pending.add(key))
+				return;
+		}
+		try {
+			pool.execute(new Runnable() {
+				public void run () {
+					try {
+						put(key, new Variant(compress(file, coding), etag));
+					} catch (IOException ex) {
+						// the file is sent compressed on the fly until
+						// it can be read again
+					} finally {
+						synchronized (VariantCache.this) {
+							pending.remove(key);
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			synchronized (this) {
+				pending.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Compresses a file into a direct buffer, with the same bytes that
+	 * a DeflaterContent sends.
+	 */
+	private static ByteBuffer compress (File file, String coding) 
+		throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		WritableByteChannel channel = Channels.newChannel(out);
+		FileChannel fc = new FileInputStream(file).getChannel();
+		DeflaterContent content = new DeflaterContent(fc, coding);
+		try {
+			while (!content.writeTo(channel))
+				;
+		} finally {
+			// ends the deflater too, rather than leaving its native
+			// memory to the finalizer
+			content.close();
+		}
+		byte[] b = out.toByteArray();
+		ByteBuffer buf = ByteBuffer.allocateDirect(b.length);
+		buf.put(b);
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Adds a variant, dropping the least recently used ones if needed.
+	 */
+	private synchronized void put (String key, Variant variant) {
+		if (variant.getLength() > maxBytes)
+			return;
+		Variant old = variants.put(key, variant);
+		if (old != null)
+			bytes -= old.getLength();
+		bytes += variant.getLength();
+
+		Iterator<Variant> i = variants.values().iterator();
+		while (bytes > maxBytes && i.hasNext()) {
+			bytes -= i.next().getLength();
+			i.remove();
+		}
+	}
+
+	private static String key (File file, String coding) {
+		return file.getPath() + ";" + coding;
+	}
+
+	/**
+	 * Drops all variants of a file.
+	 *
+	 * @param file The file, with a canonical path.
+	 */
+	public synchronized void remove (File file) {
+		for (int i = 0; i < CODINGS.length; i++) {
+			Variant v = variants.remove(key(file, CODINGS[i]));
+			if (v != null)
+				bytes -= v.getLength();
+		}
+	}
+
+	/**
+	 * Drops all variants.
+	 */
+	public synchronized void clear () {
+		variants.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Stops the compression threads.
+	 */
+	public void close () {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Gets the number of lookups that found a variant.
+	 */
+	public synchronized long getHits () {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of lookups that did not find a variant.
+	 */
+	public synchronized long getMisses () {
+		return misses;
+	}
+
+	public synchronized String toString () {
+		return "VariantCache[" + variants.size() + " variants, " + bytes
+			+ " bytes, " + hits + " hits, " + misses + " misses, "
+			+ pending.size() + " pending]";
+	}
+
+}
@@ -0,0 +1,27 @@
+import java.io.*;
+
+/**
+ * Thrown when a response cannot be made on a reactor thread without
+ * waiting for the file system. The response is then made on the file
+ * stage instead.
+ *
+ */
+class WouldBlockException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The exception is only a signal, so one instance without a stack
+	 * trace is shared.
+	 */
+	static final WouldBlockException INSTANCE = new WouldBlockException();
+
+	private WouldBlockException () {
+		super("would block");
+	}
+
+	public Throwable fillInStackTrace () {
+		return this;
+	}
+
+}